@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2012-2013 ${developer}, <http://windwaker.me>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package me.windwaker.permissions.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import me.windwaker.permissions.PermissionsHandler;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.spout.api.data.DataSubject;
+import org.spout.api.data.DataValue;
+import org.spout.api.event.Result;
+import org.spout.api.event.server.RetrieveDataEvent;
+import org.spout.api.event.server.permissions.PermissionGroupsEvent;
+import org.spout.api.event.server.permissions.PermissionNodeEvent;
+import org.spout.api.permissions.PermissionsSubject;
+
+/**
+ * Measures the event handlers Spout calls for PermissionsSubject.hasPermission(), getGroups() and getData().
+ * @author Windwaker
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class HandlerBenchmark {
+	@Param({"1000", "100000", "1000000"})
+	public int users;
+	@Param({"10", "100", "1000"})
+	public int groups;
+	@Param({"10", "1000", "10000"})
+	public int nodes;
+	@Param({"1", "4", "16"})
+	public int depth;
+	private PermissionsFixture fixture;
+	private PermissionsHandler handler;
+	private PermissionsSubject user;
+	private String[] inheritedNode;
+	private String[] wildcardNode;
+	private String[] missingNode;
+
+	@Setup
+	public void setUp() {
+		fixture = new PermissionsFixture(users, groups, nodes, depth);
+		handler = new PermissionsHandler(null, fixture.getUserManager(), fixture.getGroupManager());
+		user = PermissionsFixture.subject(fixture.getDeepestUser());
+		fixture.getGroupManager().getGroup(PermissionsFixture.groupName(0)).setMetadata("prefix", "[Guest]");
+		// the node of the first group of the chain is inherited through every other group
+		inheritedNode = new String[] {PermissionsFixture.node(0, nodes - 1)};
+		wildcardNode = new String[] {"g0.w.build", "g0.w.*", "g0.*"};
+		missingNode = new String[] {"missing.node", "missing.*"};
+	}
+
+	@TearDown
+	public void tearDown() {
+		fixture.close();
+	}
+
+	@Benchmark
+	public Result getNodesInherited() {
+		PermissionNodeEvent event = new PermissionNodeEvent(null, user, inheritedNode);
+		handler.getNodes(event);
+		return event.getResult();
+	}
+
+	@Benchmark
+	public Result getNodesWildcard() {
+		PermissionNodeEvent event = new PermissionNodeEvent(null, user, wildcardNode);
+		handler.getNodes(event);
+		return event.getResult();
+	}
+
+	@Benchmark
+	public Result getNodesMissing() {
+		PermissionNodeEvent event = new PermissionNodeEvent(null, user, missingNode);
+		handler.getNodes(event);
+		return event.getResult();
+	}
+
+	@Benchmark
+	public String[] getGroups() {
+		PermissionGroupsEvent event = new PermissionGroupsEvent(null, user);
+		handler.getGroups(event);
+		return event.getGroups();
+	}
+
+	@Benchmark
+	public DataValue retrieveData() {
+		RetrieveDataEvent event = new RetrieveDataEvent((DataSubject) user, "prefix");
+		handler.retrieveData(event);
+		return event.getResult();
+	}
+}
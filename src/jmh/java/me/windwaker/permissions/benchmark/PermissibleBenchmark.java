@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2012-2013 ${developer}, <http://windwaker.me>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package me.windwaker.permissions.benchmark;
+
+import java.util.BitSet;
+import java.util.concurrent.TimeUnit;
+
+import me.windwaker.permissions.permissible.Group;
+import me.windwaker.permissions.permissible.NodeHandle;
+import me.windwaker.permissions.permissible.User;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Measures permission checks on a subject and the propagation of a changed group node to the inheriting groups and
+ * their users.
+ * @author Windwaker
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PermissibleBenchmark {
+	@Param({"1000", "100000", "1000000"})
+	public int users;
+	@Param({"10", "100", "1000"})
+	public int groups;
+	@Param({"10", "1000", "10000"})
+	public int nodes;
+	@Param({"1", "4", "16"})
+	public int depth;
+	private PermissionsFixture fixture;
+	private User user;
+	private Group root;
+	private String inheritedNode;
+	private String[] batch;
+	private NodeHandle[] batchHandles;
+	private boolean state;
+
+	@Setup
+	public void setUp() {
+		fixture = new PermissionsFixture(users, groups, nodes, depth);
+		user = fixture.getUserManager().getUser(fixture.getDeepestUser());
+		root = fixture.getGroupManager().getGroup(PermissionsFixture.groupName(0));
+		inheritedNode = PermissionsFixture.node(0, nodes - 1);
+		// a protection plugin checking 40 nodes at once, half of them defined
+		batch = new String[40];
+		for (int i = 0; i < batch.length; i++) {
+			batch[i] = i % 2 == 0 ? PermissionsFixture.node(0, i % nodes) : "missing.node" + i;
+		}
+		batchHandles = NodeHandle.of(batch);
+	}
+
+	@TearDown
+	public void tearDown() {
+		fixture.close();
+	}
+
+	@Benchmark
+	public boolean hasPermissionInherited() {
+		return user.hasPermission(inheritedNode);
+	}
+
+	@Benchmark
+	public boolean hasPermissionWildcard() {
+		return user.hasPermission("g0.w.build");
+	}
+
+	@Benchmark
+	public boolean hasPermissionMissing() {
+		return user.hasPermission("missing.node");
+	}
+
+	@Benchmark
+	public boolean hasPermissionEach() {
+		boolean any = false;
+		for (String node : batch) {
+			any |= user.hasPermission(node);
+		}
+		return any;
+	}
+
+	@Benchmark
+	public BitSet hasPermissionsBatch() {
+		return user.hasPermissions(batch);
+	}
+
+	@Benchmark
+	public BitSet hasPermissionsHandles() {
+		return user.hasPermissions(batchHandles);
+	}
+
+	/**
+	 * Changes a node of the group all chains start with, which is propagated through its chain and to the users
+	 * of every group in it.
+	 */
+	@Benchmark
+	public void setPermissionAndReloadInheritance() {
+		state = !state;
+		root.setPermission("benchmark.toggle", state);
+		fixture.getGroupManager().reloadInheritance(root);
+	}
+}
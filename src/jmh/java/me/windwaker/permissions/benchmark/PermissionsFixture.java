@@ -0,0 +1,252 @@
+/*
+ * Copyright (c) 2012-2013 ${developer}, <http://windwaker.me>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package me.windwaker.permissions.benchmark;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import me.windwaker.permissions.io.AbstractGroupManager;
+import me.windwaker.permissions.io.AbstractUserManager;
+import me.windwaker.permissions.permissible.Group;
+import me.windwaker.permissions.permissible.User;
+
+import org.spout.api.Engine;
+import org.spout.api.Spout;
+import org.spout.api.data.DataSubject;
+import org.spout.api.permissions.PermissionsSubject;
+
+/**
+ * In-memory groups and users shaped by the benchmark parameters, without a running server or storage.
+ * <p>
+ * Groups form chains of the specified inheritance depth: group i inherits group i - 1 unless i is the first group
+ * of a chain. Every group defines its own nodes 'g&lt;i&gt;.n&lt;j&gt;' and one wildcard 'g&lt;i&gt;.w.*'. Users are
+ * spread over the groups round-robin.
+ * @author Windwaker
+ */
+public class PermissionsFixture {
+	static final Logger LOGGER = Logger.getLogger("WindPerms-benchmark");
+	private final int groupCount;
+	private final int depth;
+	private final AbstractGroupManager groupManager;
+	private final AbstractUserManager userManager;
+
+	static {
+		LOGGER.setLevel(Level.WARNING);
+	}
+
+	/**
+	 * Builds a new fixture.
+	 * @param users number of users
+	 * @param groups number of groups
+	 * @param nodes number of nodes defined by each group
+	 * @param depth length of the inheritance chains
+	 */
+	public PermissionsFixture(int users, int groups, int nodes, int depth) {
+		installEngine();
+		groupCount = groups;
+		this.depth = depth;
+		groupManager = createGroupManager();
+		userManager = createUserManager(groupManager);
+
+		for (int i = 0; i < groups; i++) {
+			groupManager.addGroup(groupName(i));
+			Group group = groupManager.getGroup(groupName(i));
+			Map<String, Boolean> permissions = new LinkedHashMap<String, Boolean>();
+			for (int j = 0; j < nodes; j++) {
+				permissions.put(node(i, j), true);
+			}
+			permissions.put("g" + i + ".w.*", true);
+			group.setPermissions(permissions);
+			if (i % depth != 0) {
+				group.setInheritedGroup(groupManager.getGroup(groupName(i - 1)), true);
+			}
+		}
+		groupManager.setDefaultGroup(groupManager.getGroup(groupName(0)));
+
+		for (int i = 0; i < users; i++) {
+			userManager.addUser(userName(i));
+			userManager.getUser(userName(i)).setGroup(groupManager.getGroup(groupName(i % groups)));
+		}
+	}
+
+	/**
+	 * Sets a no-op engine so Spout's static helpers, e.g. debug(), work outside of a server.
+	 */
+	static void installEngine() {
+		if (Spout.getEngine() == null) {
+			Spout.setEngine((Engine) Proxy.newProxyInstance(Engine.class.getClassLoader(), new Class<?>[] {Engine.class}, new DefaultsHandler(null)));
+		}
+	}
+
+	static AbstractGroupManager createGroupManager() {
+		return new AbstractGroupManager(LOGGER) {
+			@Override
+			protected void readAll() {
+			}
+
+			@Override
+			public void loadGroup(String group) {
+			}
+
+			@Override
+			protected void store(Map<String, Map<String, Object>> serialized) {
+			}
+
+			@Override
+			protected void delete(String name) {
+			}
+
+			@Override
+			protected void storeDefault(String name) {
+			}
+
+			@Override
+			protected void commit() {
+			}
+		};
+	}
+
+	static AbstractUserManager createUserManager(AbstractGroupManager groupManager) {
+		return new AbstractUserManager(LOGGER, groupManager) {
+			@Override
+			protected void readAll() {
+			}
+
+			@Override
+			protected User readUser(String name) {
+				return null;
+			}
+
+			@Override
+			protected void store(Map<String, Map<String, Object>> serialized) {
+			}
+
+			@Override
+			protected void delete(String name) {
+			}
+
+			@Override
+			protected void commit() {
+			}
+		};
+	}
+
+	/**
+	 * Creates a subject as passed to the permission events.
+	 * @param name of subject
+	 * @return subject
+	 */
+	public static PermissionsSubject subject(String name) {
+		return (PermissionsSubject) Proxy.newProxyInstance(PermissionsSubject.class.getClassLoader(),
+				new Class<?>[] {PermissionsSubject.class, DataSubject.class}, new DefaultsHandler(name));
+	}
+
+	public static String groupName(int group) {
+		return "group" + group;
+	}
+
+	public static String userName(int user) {
+		return "user" + user;
+	}
+
+	public static String node(int group, int node) {
+		return "g" + group + ".n" + node;
+	}
+
+	/**
+	 * Gets the group at the end of the deepest chain, which inherits the most groups.
+	 * @return index of group
+	 */
+	public int getDeepestGroup() {
+		return Math.min(groupCount, depth) - 1;
+	}
+
+	/**
+	 * Gets a user of the deepest group.
+	 * @return name of user
+	 */
+	public String getDeepestUser() {
+		return userName(getDeepestGroup());
+	}
+
+	public AbstractGroupManager getGroupManager() {
+		return groupManager;
+	}
+
+	public AbstractUserManager getUserManager() {
+		return userManager;
+	}
+
+	/**
+	 * Stops the background writers.
+	 */
+	public void close() {
+		userManager.close();
+		groupManager.close();
+	}
+
+	/**
+	 * Answers calls on proxies with the name or the default value of the return type.
+	 */
+	private static class DefaultsHandler implements InvocationHandler {
+		private final String name;
+
+		private DefaultsHandler(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) {
+			Class<?> type = method.getReturnType();
+			if (method.getName().equals("getName")) {
+				return name;
+			} else if (method.getName().equals("hashCode")) {
+				return System.identityHashCode(proxy);
+			} else if (method.getName().equals("equals")) {
+				return proxy == args[0];
+			} else if (type == boolean.class) {
+				return false;
+			} else if (type == int.class) {
+				return 0;
+			} else if (type == long.class) {
+				return 0L;
+			} else if (type == double.class) {
+				return 0.0;
+			} else if (type == float.class) {
+				return 0.0f;
+			} else if (type == short.class) {
+				return (short) 0;
+			} else if (type == byte.class) {
+				return (byte) 0;
+			} else if (type == char.class) {
+				return '\0';
+			}
+			return null;
+		}
+	}
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2012-2013 ${developer}, <http://windwaker.me>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package me.windwaker.permissions.benchmark;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import me.windwaker.permissions.io.yaml.YamlSnapshot;
+import me.windwaker.permissions.io.yaml.YamlUserManager;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+/**
+ * Measures loading and saving 'users.yml' and loading the snapshot written on close.
+ * @author Windwaker
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class StorageBenchmark {
+	@Param({"1000", "10000", "100000", "1000000"})
+	public int users;
+	@Param({"10", "100"})
+	public int groups;
+	@Param({"0", "10"})
+	public int userNodes;
+	private PermissionsFixture fixture;
+	private File directory;
+	private File file;
+	private YamlUserManager loaded;
+	private int changes;
+
+	@Setup
+	public void setUp() throws IOException {
+		// groups only, the users come from the file
+		fixture = new PermissionsFixture(0, groups, 10, 1);
+		directory = File.createTempFile("windperms", "benchmark");
+		directory.delete();
+		directory.mkdirs();
+		file = new File(directory, "users.yml");
+		BufferedWriter out = new BufferedWriter(new FileWriter(file));
+		try {
+			out.write("users:\n");
+			for (int i = 0; i < users; i++) {
+				out.write("    " + PermissionsFixture.userName(i) + ":\n");
+				out.write("        group: " + PermissionsFixture.groupName(i % groups) + "\n");
+				if (userNodes > 0) {
+					out.write("        permissions:\n");
+					for (int j = 0; j < userNodes; j++) {
+						out.write("            u" + i + ".n" + j + ": true\n");
+					}
+				}
+			}
+		} finally {
+			out.close();
+		}
+		loaded = newManager();
+		loaded.load();
+	}
+
+	/**
+	 * Closing a manager writes the snapshot, which the next load would read instead of the file. Only
+	 * {@link #loadSnapshot()} reads it.
+	 */
+	@Setup(Level.Invocation)
+	public void prepareSnapshot(BenchmarkParams params) {
+		File snapshot = YamlSnapshot.fileFor(file);
+		if (!params.getBenchmark().endsWith(".loadSnapshot")) {
+			snapshot.delete();
+		} else if (!snapshot.exists()) {
+			YamlUserManager manager = newManager();
+			manager.load();
+			manager.close();
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		loaded.close();
+		fixture.close();
+		FileUtils.deleteDirectory(directory);
+	}
+
+	private YamlUserManager newManager() {
+		return new YamlUserManager(PermissionsFixture.LOGGER, fixture.getGroupManager(), file);
+	}
+
+	@Benchmark
+	public YamlUserManager load() {
+		YamlUserManager manager = newManager();
+		manager.load();
+		manager.close();
+		return manager;
+	}
+
+	@Benchmark
+	public YamlUserManager loadSnapshot() {
+		YamlUserManager manager = newManager();
+		manager.load();
+		manager.close();
+		return manager;
+	}
+
+	/**
+	 * Saves without changes, which only compares every user with its last written state.
+	 */
+	@Benchmark
+	public void saveUnchanged() {
+		loaded.save();
+	}
+
+	/**
+	 * Saves after changing a single user, which appends the change to the journal.
+	 */
+	@Benchmark
+	public void saveChanged() {
+		loaded.getUser(PermissionsFixture.userName(0)).setPermission("benchmark.change", (changes++ & 1) == 0);
+		loaded.save();
+	}
+}
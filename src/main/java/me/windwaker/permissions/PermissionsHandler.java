@@ -22,27 +22,29 @@
  */
 package me.windwaker.permissions;
 
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import me.windwaker.permissions.io.GroupManager;
 import me.windwaker.permissions.io.UserManager;
+import me.windwaker.permissions.metrics.Metric;
 import me.windwaker.permissions.permissible.Group;
 import me.windwaker.permissions.permissible.Permissible;
 import me.windwaker.permissions.permissible.User;
-import me.windwaker.permissions.io.Settings;
+import me.windwaker.permissions.trace.Trace;
+import me.windwaker.permissions.trace.TraceCategory;
 
 import org.spout.api.data.DataValue;
 import org.spout.api.event.EventHandler;
 import org.spout.api.event.Listener;
 import org.spout.api.event.Order;
 import org.spout.api.event.Result;
+import org.spout.api.event.player.PlayerLeaveEvent;
 import org.spout.api.event.player.PlayerLoginEvent;
 import org.spout.api.event.server.RetrieveDataEvent;
 import org.spout.api.event.server.permissions.PermissionGroupsEvent;
 import org.spout.api.event.server.permissions.PermissionNodeEvent;
 
-import static org.spout.api.Spout.*;
-
 /**
  * Handles all calls in SpoutAPI like PermissionsSubject.getGroups(), PermissionsSubject.isInGroup(String group),
  * PermissionsSubject.hasPermission(String node), or DataSubject.getData(String node).
@@ -50,13 +52,35 @@ import static org.spout.api.Spout.*;
  */
 public class PermissionsHandler implements Listener {
 	private final WindPerms plugin;
-	private final UserManager userManager;
-	private final GroupManager groupManager;
+	// answers from these managers instead of the plugin's current state, if set
+	private final PermissionsState fixed;
 
+	/**
+	 * Constructs a handler answering from the current state of the plugin, which may be swapped by a reload.
+	 * @param plugin to answer for
+	 */
 	public PermissionsHandler(WindPerms plugin) {
 		this.plugin = plugin;
-		userManager = plugin.getUserManager();
-		groupManager = plugin.getGroupManager();
+		fixed = null;
+	}
+
+	/**
+	 * Constructs a handler answering from the specified managers.
+	 * @param plugin to answer for
+	 * @param userManager to answer from
+	 * @param groupManager to answer from
+	 */
+	public PermissionsHandler(WindPerms plugin, UserManager userManager, GroupManager groupManager) {
+		this.plugin = plugin;
+		fixed = new PermissionsState(null, groupManager, userManager);
+	}
+
+	/**
+	 * Gets the state to answer an event from. Each event reads it once, so it is answered from one state even
+	 * if a reload swaps the state meanwhile.
+	 */
+	private PermissionsState getState() {
+		return fixed != null ? fixed : plugin.getState();
 	}
 
 	/**
@@ -66,25 +90,36 @@ public class PermissionsHandler implements Listener {
 	 */
 	@EventHandler(order = Order.EARLIEST)
 	public void getGroups(PermissionGroupsEvent event) {
-		// Get the user
-		String subject = event.getSubject().getName();
-		debug("Groups requested for user: " + subject);
-		User user = userManager.getUser(subject);
-		if (user == null) {
-			debug("\tUser not found.");
-			return;
-		}
-
-		// Get the users group
-		Group group = user.getGroup();
-		if (group == null)
-			throw new IllegalStateException("Specified user exists but does not have a group.");
+		long start = System.nanoTime();
+		try {
+			// Get the user
+			String subject = event.getSubject().getName();
+			PermissionsState state = getState();
+			User user = state.getUserManager().getLoadedUser(subject);
+			Group group;
+			if (user != null) {
+				// Get the users group
+				group = user.getGroup();
+				if (group == null)
+					throw new IllegalStateException("Specified user exists but does not have a group.");
+			} else {
+				// a stored profile that is not in memory is being loaded in the background, it has no groups yet
+				if (Trace.LOOKUP) {
+					Trace.log(TraceCategory.LOOKUP, Level.FINE, "Groups requested for unknown or loading user {0}", subject);
+				}
+				return;
+			}
 
-		// Return the group
-		String groupName = group.getName();
-		debug("\tReturning group: " + groupName);
-		String[] name = {groupName};
-		event.setGroups(name);
+			// Return the group
+			String groupName = group.getName();
+			if (Trace.LOOKUP) {
+				Trace.log(TraceCategory.LOOKUP, Level.FINE, "Groups requested for user {0}: {1}", subject, groupName);
+			}
+			String[] name = {groupName};
+			event.setGroups(name);
+		} finally {
+			Metric.GROUPS_EVENT.record(start);
+		}
 	}
 
 	/**
@@ -94,33 +129,39 @@ public class PermissionsHandler implements Listener {
 	 */
 	@EventHandler(order = Order.EARLIEST)
 	public void getNodes(PermissionNodeEvent event) {
-		// Get the subject - hasPermission(String node) can be called on a group or a user
-		String name = event.getSubject().getName();
-		debug("Permission nodes requested for subject: " + name);
-		Permissible subject = groupManager.getGroup(name) != null ? groupManager.getGroup(name) : userManager.getUser(name);
-		if (subject == null) {
-			debug("\tSubject not found.");
-			return;
-		}
+		long start = System.nanoTime();
+		try {
+			// Get the subject - hasPermission(String node) can be called on a group or a user
+			String name = event.getSubject().getName();
+			// a stored user that is not loaded yet is answered once it is loaded
+			Permissible subject = getState().getResidentSubject(name);
+			if (subject == null) {
+				if (Trace.RESOLVE) {
+					Trace.log(TraceCategory.RESOLVE, Level.FINE, "Permission requested for unknown or loading subject {0}", name);
+				}
+				return;
+			}
 
-		/*
-		 * Get the node and all parent nodes of the events.
-		 *	For instance, if 'foo.bar.baz' is queried, 
-		 *	PermissionNodeEvent.getNodes() will return 'foo.bar.baz', 'foo.bar.*', and 'foo.*'.
-		 * 
-		 * Then loop through the nodes to see if the subject has any of the nodes and set the result.
-		 * If one node is found, return. We only need one node to grant permission.
-		 */
-		for (String node : event.getNodes()) {
-			if (subject.hasPermission(node) || (subject.hasPermission("*") && Settings.WILDCARD_ENABLED.getBoolean())) {
-				debug("\tSubject has permission.");
-				event.setResult(Result.ALLOW);
+			/*
+			 * PermissionNodeEvent.getNodes() returns the queried node followed by its parents.
+			 *	For instance, if 'foo.bar.baz' is queried,
+			 *	PermissionNodeEvent.getNodes() will return 'foo.bar.baz', 'foo.bar.*', and 'foo.*'.
+			 *
+			 * The subject's compiled permissions resolve the node and all of its parents in one walk, so only the
+			 * queried node is needed.
+			 */
+			String[] nodes = event.getNodes();
+			if (nodes.length == 0) {
 				return;
-			} else {
-				event.setResult(Result.DEFAULT);
 			}
+			Result result = subject.resolvePermission(nodes[0]);
+			if (Trace.RESOLVE) {
+				Trace.log(TraceCategory.RESOLVE, Level.FINE, "Resolved {0} for {1}: {2}", nodes[0], name, result);
+			}
+			event.setResult(result);
+		} finally {
+			Metric.NODE_EVENT.record(start);
 		}
-		debug("\tSubject does not have permission.");
 	}
 
 	/**
@@ -130,24 +171,31 @@ public class PermissionsHandler implements Listener {
 	 */
 	@EventHandler(order = Order.EARLIEST)
 	public void retrieveData(RetrieveDataEvent event) {
-		// Gets the subject (group or user)
-		String name = event.getSubject().getName();
-		debug("Data requested for subject: " + name);
-		Permissible subject = groupManager.getGroup(name) != null ? groupManager.getGroup(name) : userManager.getUser(name);
-		if (subject == null) {
-			debug("\tSubject not found.");
-			return;
-		}
+		long start = System.nanoTime();
+		try {
+			// Gets the subject (group or user)
+			String name = event.getSubject().getName();
+			// a stored user that is not loaded yet is answered once it is loaded
+			Permissible subject = getState().getResidentSubject(name);
+			if (subject == null) {
+				if (Trace.LOOKUP) {
+					Trace.log(TraceCategory.LOOKUP, Level.FINE, "Data requested for unknown or loading subject {0}", name);
+				}
+				return;
+			}
 
-		// Set the data if we have some
-		String node = event.getNode();
-		debug("\tKey: " + node);
-		if (subject.hasMetadata(node)) {
+			// Set the data if we have some
+			String node = event.getNode();
 			DataValue value = subject.getMetadata(node);
-			debug("\tValue: " + value);
-			event.setResult(value);
+			if (Trace.LOOKUP) {
+				Trace.log(TraceCategory.LOOKUP, Level.FINE, "Data {0} requested for {1}: {2}", node, name, value);
+			}
+			if (value != null) {
+				event.setResult(value);
+			}
+		} finally {
+			Metric.DATA_EVENT.record(start);
 		}
-		debug("\tData not found.");
 	}
 
 	/**
@@ -157,14 +205,31 @@ public class PermissionsHandler implements Listener {
 	 */
 	@EventHandler(order = Order.EARLIEST)
 	public void playerLogin(PlayerLoginEvent event) {
-		String playerName = event.getPlayer().getName();
-		User user = userManager.getUser(playerName);
-		Logger logger = plugin.getLogger();
-		if (user != null) {
-			logger.info(playerName + " returned, found Permissions profile.");
-			return;
+		long start = System.nanoTime();
+		try {
+			String playerName = event.getPlayer().getName();
+			UserManager userManager = getState().getUserManager();
+			Logger logger = plugin.getLogger();
+			// a stored profile is loaded in the background by startSession
+			if (userManager.hasUser(playerName)) {
+				logger.info(playerName + " returned, found Permissions profile.");
+			} else {
+				logger.info(playerName + " does not have a Permissions profile, creating...");
+				userManager.addUser(playerName);
+			}
+			userManager.startSession(playerName);
+		} finally {
+			Metric.PLAYER_LOGIN.record(start);
 		}
-		logger.info(playerName + " does not have a Permissions profile, creating...");
-		userManager.addUser(playerName);
+	}
+
+	/**
+	 * Catches the PlayerLeaveEvent and lets the user manager release the profile.
+	 * This is invoked when a player disconnects.
+	 * @param event
+	 */
+	@EventHandler(order = Order.LATEST)
+	public void playerLeave(PlayerLeaveEvent event) {
+		getState().getUserManager().endSession(event.getPlayer().getName());
 	}
 }
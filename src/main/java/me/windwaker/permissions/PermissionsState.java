@@ -0,0 +1,262 @@
+/*
+ * Copyright (c) 2012-2013 ${developer}, <http://windwaker.me>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package me.windwaker.permissions;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import me.windwaker.permissions.io.GroupManager;
+import me.windwaker.permissions.io.PendingChanges;
+import me.windwaker.permissions.io.Settings;
+import me.windwaker.permissions.io.UserManager;
+import me.windwaker.permissions.io.yaml.YamlGroupManager;
+import me.windwaker.permissions.io.yaml.YamlUserManager;
+import me.windwaker.permissions.io.yaml.YamlWatcher;
+import me.windwaker.permissions.permissible.Group;
+import me.windwaker.permissions.permissible.Permissible;
+import me.windwaker.permissions.permissible.Transaction;
+import me.windwaker.permissions.permissible.User;
+
+/**
+ * The settings, groups and users WindPerms answers from. A state is loaded as a whole and replaced as a whole on
+ * reload, so everything reading it through {@link WindPerms#getState()} sees either the old or the new data,
+ * never a mix.
+ * @author Windwaker
+ */
+public final class PermissionsState {
+	private final Settings settings;
+	private final GroupManager groupManager;
+	private final UserManager userManager;
+	private YamlWatcher watcher;
+	private volatile boolean closed;
+
+	/**
+	 * Constructs a state from loaded managers.
+	 * @param settings the managers were created from or null
+	 * @param groupManager of the state
+	 * @param userManager of the state
+	 */
+	public PermissionsState(Settings settings, GroupManager groupManager, UserManager userManager) {
+		this.settings = settings;
+		this.groupManager = groupManager;
+		this.userManager = userManager;
+	}
+
+	/**
+	 * Loads the settings, groups and users from storage. If loading fails, the managers created so far are closed.
+	 * @param plugin to load for
+	 * @return loaded state
+	 */
+	public static PermissionsState load(WindPerms plugin) {
+		Settings settings = new Settings(plugin);
+		settings.load();
+		GroupManager groupManager = null;
+		UserManager userManager = null;
+		try {
+			// Create and load group manager
+			groupManager = settings.createGroupManager();
+			groupManager.load();
+			// Create and load user manager
+			userManager = settings.createUserManager(groupManager);
+			userManager.load();
+			PermissionsState state = new PermissionsState(settings, groupManager, userManager);
+			// edits of the YAML files are applied without a reload
+			long interval = Settings.WATCH_INTERVAL.getLong();
+			if (interval > 0 && groupManager instanceof YamlGroupManager && userManager instanceof YamlUserManager) {
+				state.watcher = new YamlWatcher(plugin.getLogger(), (YamlGroupManager) groupManager,
+						(YamlUserManager) userManager, interval, Settings.WATCH_DEBOUNCE.getLong());
+			}
+			return state;
+		} catch (RuntimeException e) {
+			// the writer threads and journals of the managers created so far must not outlive the failed load, and
+			// suspended they leave the files to the previous state
+			if (userManager != null) {
+				userManager.suspend();
+				userManager.close();
+			}
+			if (groupManager != null) {
+				groupManager.suspend();
+				groupManager.close();
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Checks that the state can answer requests.
+	 * @return the problem found or null if the state is usable
+	 */
+	public String validate() {
+		if (groupManager.getGroups().isEmpty()) {
+			return "No groups were loaded.";
+		}
+		if (groupManager.getDefaultGroup() == null) {
+			return "No default group is defined.";
+		}
+		return null;
+	}
+
+	/**
+	 * Gets the {@link GroupManager} of the state.
+	 * @return group manager
+	 */
+	public GroupManager getGroupManager() {
+		return groupManager;
+	}
+
+	/**
+	 * Gets the {@link UserManager} of the state.
+	 * @return user manager
+	 */
+	public UserManager getUserManager() {
+		return userManager;
+	}
+
+	/**
+	 * Gets the group or, if no group exists with the name, the user with the specified name, without reading the
+	 * storage. A stored user that is not in memory is loaded in the background and null is returned until it is
+	 * loaded, so the event handlers and {@link WindPerms#hasPermissions(String, String...)} answer the same.
+	 * @param name of subject
+	 * @return subject or null if not found or not loaded yet
+	 */
+	public Permissible getResidentSubject(String name) {
+		Group group = groupManager.getGroup(name);
+		return group != null ? group : userManager.getLoadedUser(name);
+	}
+
+	/**
+	 * Whether the state was closed. A closed state still answers requests from memory, but changes to it are
+	 * rejected with an {@link IllegalStateException}.
+	 * @return true if closed
+	 */
+	public boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Stops writing to the storage while another state loads from it. Changes keep being accepted and are
+	 * written by {@link #resume()} or handed over by {@link #handOver(PermissionsState, Logger)}.
+	 */
+	public void suspend() {
+		if (watcher != null) {
+			watcher.pause();
+		}
+		groupManager.suspend();
+		userManager.suspend();
+	}
+
+	/**
+	 * Writes the changes made while suspended and continues writing, e.g. because loading the next state failed.
+	 */
+	public void resume() {
+		groupManager.resume();
+		userManager.resume();
+		if (watcher != null) {
+			watcher.resume();
+		}
+	}
+
+	/**
+	 * Applies the changes made to a suspended state while this state was loaded, so they are written by this
+	 * state. The previous state must be closed first, so no change is made to it afterwards.
+	 * @param previous state that was suspended
+	 * @param logger to report changes that could not be applied to
+	 */
+	public void handOver(PermissionsState previous, Logger logger) {
+		PendingChanges<Group> groups = previous.groupManager.drainChanges();
+		PendingChanges<User> users = previous.userManager.drainChanges();
+		for (String name : groups.getRemoved()) {
+			groupManager.removeGroup(name);
+		}
+		for (String name : users.getRemoved()) {
+			userManager.removeUser(name);
+		}
+		for (Group group : groups.getChanged()) {
+			if (groupManager.getGroup(group.getName()) == null) {
+				groupManager.addGroup(group.getName());
+			}
+		}
+
+		Transaction transaction = new Transaction(groupManager, userManager);
+		for (Group group : groups.getChanged()) {
+			Group target = groupManager.getGroup(group.getName());
+			transaction.replacePermissions(target, group.getPermissions());
+			transaction.replaceMetadata(target, group.getMetadataMap());
+			Map<Group, Boolean> inherited = new LinkedHashMap<Group, Boolean>();
+			for (Map.Entry<Group, Boolean> parent : group.getInheritedGroups().entrySet()) {
+				Group targetParent = groupManager.getGroup(parent.getKey().getName());
+				if (targetParent != null) {
+					inherited.put(targetParent, parent.getValue());
+				}
+			}
+			transaction.replaceInheritedGroups(target, inherited);
+		}
+		for (User user : users.getChanged()) {
+			User target = userManager.getUser(user.getName());
+			if (target == null) {
+				userManager.addUser(user.getName());
+				target = userManager.getUser(user.getName());
+			}
+			transaction.replacePermissions(target, user.getPermissions());
+			transaction.replaceMetadata(target, user.getMetadataMap());
+			Group group = user.getGroup() != null ? groupManager.getGroup(user.getGroup().getName()) : null;
+			if (group != null && group != target.getGroup()) {
+				transaction.setGroup(target, group);
+			}
+		}
+		try {
+			transaction.commit();
+		} catch (IllegalStateException e) {
+			logger.severe("Failed to apply the changes made while reloading: " + e.getMessage());
+		}
+
+		Group defaultGroup = groups.getDefaultGroup() != null ? groupManager.getGroup(groups.getDefaultGroup()) : null;
+		if (defaultGroup != null) {
+			groupManager.setDefaultGroup(defaultGroup);
+		}
+	}
+
+	/**
+	 * Saves all data of the state.
+	 */
+	public void save() {
+		if (settings != null) {
+			settings.save();
+		}
+		groupManager.save();
+		userManager.save();
+	}
+
+	/**
+	 * Writes pending changes and releases the storage, so another state can load from it.
+	 */
+	public void close() {
+		closed = true;
+		if (watcher != null) {
+			watcher.close();
+		}
+		userManager.close();
+		groupManager.close();
+	}
+}
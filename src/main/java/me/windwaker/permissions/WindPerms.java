@@ -22,11 +22,15 @@
  */
 package me.windwaker.permissions;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
 
 import me.windwaker.permissions.io.GroupManager;
 import me.windwaker.permissions.io.UserManager;
@@ -34,6 +38,14 @@ import me.windwaker.permissions.cmd.sub.GroupCommands;
 import me.windwaker.permissions.cmd.sub.PermissionsCommands;
 import me.windwaker.permissions.cmd.sub.UserCommands;
 import me.windwaker.permissions.io.Settings;
+import me.windwaker.permissions.metrics.Metric;
+import me.windwaker.permissions.metrics.MetricsWriter;
+import me.windwaker.permissions.permissible.Group;
+import me.windwaker.permissions.permissible.NodeHandle;
+import me.windwaker.permissions.permissible.Permissible;
+import me.windwaker.permissions.permissible.Transaction;
+import me.windwaker.permissions.trace.Trace;
+import me.windwaker.permissions.trace.TraceCategory;
 import org.apache.maven.artifact.versioning.DefaultArtifactVersion;
 
 import org.spout.api.Engine;
@@ -54,36 +66,74 @@ import static org.spout.api.Spout.*;
  * @author Windwaker
  */
 public class WindPerms extends Plugin {
-	private PermissionsHandler handler;
-	private Settings settings;
-	private GroupManager groupManager;
-	private UserManager userManager;
+	private final PermissionsHandler handler = new PermissionsHandler(this);
+	// replaced as a whole by a reload, read once by every event, command and API call
+	private volatile PermissionsState state;
+	private final AtomicBoolean reloading = new AtomicBoolean();
+	private volatile Thread reloader;
+	private MetricsWriter metricsWriter;
 
 	/**
 	 * Loads all data within the plugin.
 	 */
 	private void load() {
-		loadData();
-		loadPlayers();
-		handler = new PermissionsHandler(this);
+		PermissionsState loaded = PermissionsState.load(this);
+		String problem = loaded.validate();
+		if (problem != null) {
+			getLogger().severe("Loaded data is incomplete: " + problem);
+		}
+		state = loaded;
+		loadPlayers(loaded);
 	}
 
-	private void loadData() {
-		// Create and load data
-		settings = new Settings(this);
-		settings.load();
-		// Create and load group manager
-		groupManager = settings.createGroupManager();
-		groupManager.load();
-		// Create and load user manager
-		userManager = settings.createUserManager();
-		userManager.load();
+	/**
+	 * Builds a new state in the background and swaps it in once it is complete. Until then events and commands
+	 * are answered from the previous state, which keeps accepting changes but stops writing, since the storage can
+	 * only have one writer at a time. The changes are handed over to the new state once it is swapped in, or
+	 * written by the previous state if the reload fails.
+	 */
+	private void reload() {
+		long start = System.nanoTime();
+		PermissionsState previous = state;
+		if (previous.isClosed()) {
+			return;
+		}
+		previous.suspend();
+		PermissionsState next;
+		try {
+			next = PermissionsState.load(this);
+		} catch (RuntimeException e) {
+			getLogger().log(Level.SEVERE, "Reload failed, keeping the previous data.", e);
+			previous.resume();
+			return;
+		}
+		String problem = next.validate();
+		if (problem != null) {
+			getLogger().severe("Reload failed, keeping the previous data. " + problem);
+			next.suspend();
+			next.close();
+			previous.resume();
+			return;
+		}
+		state = next;
+		// changes made through the previous state from now on are rejected, the ones made so far are handed over
+		previous.close();
+		next.handOver(previous, getLogger());
+		// players who joined while reloading were only added to the previous state
+		loadPlayers(next);
+		getLogger().info("Reloaded " + next.getGroupManager().getGroups().size() + " groups in "
+				+ (System.nanoTime() - start) / 1000000 + " ms.");
 	}
 
-	private void loadPlayers() {
+	private void loadPlayers(PermissionsState state) {
+		UserManager userManager = state.getUserManager();
 		Engine engine = getEngine();
 		for (Player player : ((Server) engine).getOnlinePlayers()) {
-			userManager.addUser(player.getName());
+			String name = player.getName();
+			if (userManager.getUser(name) == null) {
+				userManager.addUser(name);
+			}
+			userManager.startSession(name);
 		}
 	}
 
@@ -103,13 +153,22 @@ public class WindPerms extends Plugin {
 	}
 
 	/**
-	 * Saves all data in the plugin.
+	 * Gets the current {@link PermissionsState} of WindPerms. Read it once and use its managers to get a
+	 * consistent view across a reload.
+	 *
+	 * @return current state
+	 */
+	public PermissionsState getState() {
+		return state;
+	}
+
+	/**
+	 * Whether a reload is in progress.
+	 *
+	 * @return true if reloading
 	 */
-	private void save() {
-		// Save all data
-		settings.save();
-		groupManager.save();
-		userManager.save();
+	public boolean isReloading() {
+		return reloading.get();
 	}
 
 	/**
@@ -118,7 +177,7 @@ public class WindPerms extends Plugin {
 	 * @return group manager
 	 */
 	public GroupManager getGroupManager() {
-		return groupManager;
+		return state.getGroupManager();
 	}
 
 	/**
@@ -127,13 +186,112 @@ public class WindPerms extends Plugin {
 	 * @return user manager
 	 */
 	public UserManager getUserManager() {
-		return userManager;
+		return state.getUserManager();
+	}
+
+	/**
+	 * Starts a {@link Transaction} to change many groups and users at once.
+	 * @return new transaction
+	 */
+	public Transaction newTransaction() {
+		PermissionsState state = this.state;
+		return new Transaction(state.getGroupManager(), state.getUserManager());
+	}
+
+	/**
+	 * Gets the group or, if no group exists with the name, the user with the specified name. With lazy loading,
+	 * a user that is not in memory is read from the storage, so this is not meant for the main thread; see
+	 * {@link PermissionsState#getResidentSubject(String)}.
+	 * @param name of subject
+	 * @return subject or null if not found
+	 */
+	public Permissible getSubject(String name) {
+		PermissionsState state = this.state;
+		Group group = state.getGroupManager().getGroup(name);
+		return group != null ? group : state.getUserManager().getUser(name);
+	}
+
+	/**
+	 * Checks several permission nodes of a subject at once. The subject is looked up once and every node is
+	 * resolved against the same state of its permissions.
+	 * <pre>
+	 * BitSet allowed = plugin.hasPermissions(player.getName(), "kit.a", "kit.b", "kit.c");
+	 * if (allowed.get(1)) {
+	 *     // the player may use kit b
+	 * }
+	 * </pre>
+	 * The storage is not read: a stored user that is not in memory is loaded in the background and no node is
+	 * granted until it is loaded, as for {@link org.spout.api.event.server.permissions.PermissionNodeEvent}.
+	 * @param subject name of group or user
+	 * @param nodes to check
+	 * @return bits of the granted nodes, indexed like the nodes, or null if no group or user has the name
+	 */
+	public BitSet hasPermissions(String subject, String... nodes) {
+		long start = System.nanoTime();
+		try {
+			PermissionsState state = this.state;
+			Permissible permissible = state.getResidentSubject(subject);
+			if (permissible == null) {
+				// like the permission events, a user that is still loading has no nodes yet
+				return state.getUserManager().hasUser(subject) ? new BitSet(nodes.length) : null;
+			}
+			BitSet allowed = permissible.hasPermissions(nodes);
+			if (Trace.RESOLVE) {
+				Trace.log(TraceCategory.RESOLVE, Level.FINE, "Resolved {0} nodes for {1}: {2}", nodes.length, subject, allowed);
+			}
+			return allowed;
+		} finally {
+			Metric.BATCH_QUERY.record(start);
+		}
+	}
+
+	/**
+	 * Checks several precompiled permission nodes of a subject at once. Compile the nodes once with
+	 * {@link NodeHandle#of(String...)} and reuse the handles, resolving them does not hash the nodes again.
+	 * @param subject name of group or user
+	 * @param nodes to check
+	 * @return bits of the granted nodes, indexed like the nodes, or null if no group or user has the name
+	 * @see #hasPermissions(String, String...)
+	 */
+	public BitSet hasPermissions(String subject, NodeHandle[] nodes) {
+		long start = System.nanoTime();
+		try {
+			PermissionsState state = this.state;
+			Permissible permissible = state.getResidentSubject(subject);
+			if (permissible == null) {
+				// like the permission events, a user that is still loading has no nodes yet
+				return state.getUserManager().hasUser(subject) ? new BitSet(nodes.length) : null;
+			}
+			BitSet allowed = permissible.hasPermissions(nodes);
+			if (Trace.RESOLVE) {
+				Trace.log(TraceCategory.RESOLVE, Level.FINE, "Resolved {0} nodes for {1}: {2}", nodes.length, subject, allowed);
+			}
+			return allowed;
+		} finally {
+			Metric.BATCH_QUERY.record(start);
+		}
 	}
 
 	@Override
 	public void onReload() {
-		// Load data directly from disk
-		load();
+		// Load data directly from disk, without blocking the server
+		if (!reloading.compareAndSet(false, true)) {
+			getLogger().warning("A reload is already in progress.");
+			return;
+		}
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					reload();
+				} finally {
+					reloading.set(false);
+				}
+			}
+		}, "WindPerms-reloader");
+		thread.setDaemon(true);
+		reloader = thread;
+		thread.start();
 	}
 
 	@Override
@@ -147,12 +305,33 @@ public class WindPerms extends Plugin {
 		// Register events
 		getEngine().getEventManager().registerEvents(handler, this);
 		registerCommands();
+		// Start writing metrics
+		int interval = Settings.METRICS_INTERVAL.getInt();
+		if (interval > 0) {
+			metricsWriter = new MetricsWriter(this, new File(getDataFolder(), "metrics.txt"), interval);
+		}
 	}
 
 	@Override
 	public void onDisable() {
-		// Save data
-		save();
+		// Save data and stop background writers
+		if (metricsWriter != null) {
+			metricsWriter.close();
+			metricsWriter = null;
+		}
+		Thread thread = reloader;
+		if (thread != null) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		PermissionsState state = this.state;
+		if (!state.isClosed()) {
+			state.save();
+			state.close();
+		}
 	}
 
 	@Override
@@ -22,9 +22,12 @@
  */
 package me.windwaker.permissions.cmd;
 
+import me.windwaker.permissions.PermissionsState;
+import me.windwaker.permissions.WindPerms;
 import me.windwaker.permissions.io.GroupManager;
 import me.windwaker.permissions.io.UserManager;
 import me.windwaker.permissions.permissible.Group;
+import me.windwaker.permissions.permissible.Transaction;
 import me.windwaker.permissions.permissible.User;
 
 import org.spout.api.command.CommandArguments;
@@ -78,6 +81,51 @@ public final class CommandUtil {
 		return Boolean.valueOf(args.getString(index));
 	}
 
+	/**
+	 * Splits a 'key=value' argument from the given {@link CommandArguments} at the index.
+	 * @param args
+	 * @param index
+	 * @return key and value, the value is null if the argument has no '='
+	 */
+	public static String[] getAssignment(CommandArguments args, int index) {
+		String arg = args.getString(index);
+		int split = arg.indexOf('=');
+		if (split < 0) {
+			return new String[] {arg, null};
+		}
+		return new String[] {arg.substring(0, split), arg.substring(split + 1)};
+	}
+
+	/**
+	 * Commits a {@link Transaction}.
+	 * @param transaction to commit
+	 * @throws CommandException if the transaction is invalid and nothing was applied
+	 */
+	public static void commit(Transaction transaction) throws CommandException {
+		try {
+			transaction.commit();
+		} catch (IllegalStateException e) {
+			throw new CommandException(e.getMessage() + " Nothing was changed.");
+		}
+	}
+
+	/**
+	 * Gets the current {@link PermissionsState} of the plugin, checking that changes to it are still written.
+	 * @param plugin
+	 * @return state to change
+	 * @throws CommandException if the state was just replaced by a reload or the plugin is disabled
+	 */
+	public static PermissionsState getWritableState(WindPerms plugin) throws CommandException {
+		PermissionsState state = plugin.getState();
+		if (state.isClosed()) {
+			if (plugin.isReloading()) {
+				throw new CommandException("WindPerms is reloading, try again in a moment.");
+			}
+			throw new CommandException("WindPerms is disabled, changes can not be saved.");
+		}
+		return state;
+	}
+
 	/**
 	 * Checks if the given {@link CommandSource} has permission for the given node.
 	 * @param source
@@ -22,9 +22,11 @@
  */
 package me.windwaker.permissions.cmd.sub;
 
+import me.windwaker.permissions.PermissionsState;
 import me.windwaker.permissions.WindPerms;
 import me.windwaker.permissions.io.GroupManager;
 import me.windwaker.permissions.permissible.Group;
+import me.windwaker.permissions.permissible.Transaction;
 
 import org.spout.api.command.CommandArguments;
 import org.spout.api.command.CommandSource;
@@ -35,14 +37,15 @@ import org.spout.api.exception.CommandException;
 import static me.windwaker.permissions.cmd.CommandUtil.*;
 
 public class GroupCommands {
-	private final GroupManager groupManager;
+	private final WindPerms plugin;
 
 	public GroupCommands(WindPerms plugin) {
-		groupManager = plugin.getGroupManager();
+		this.plugin = plugin;
 	}
 
 	@Command(aliases = {"info", "information"}, usage = "<group>", desc = "Get general info about a group.", min = 1, max = 1)
 	public void info(CommandSource source, CommandArguments args) throws CommandException {
+		GroupManager groupManager = plugin.getGroupManager();
 		Group group = getGroup(groupManager, args, 0);
 		assertHasPermission(source, "windperms.group.info." + group.getName());
 		source.sendMessage("========== " + group.getName() + " ==========");
@@ -51,6 +54,7 @@ public class GroupCommands {
 	@Command(aliases = {"mk", "make", "add", "create"}, usage = "<group>", desc = "Creates a new group.", min = 1, max = 1)
 	@Permissible("windperms.group.add")
 	public void add(CommandSource source, CommandArguments args) throws CommandException {
+		GroupManager groupManager = getWritableState(plugin).getGroupManager();
 		String name = args.getString(0);
 		groupManager.addGroup(name);
 		source.sendMessage("Added group '" + name + "'.");
@@ -59,6 +63,7 @@ public class GroupCommands {
 	@Command(aliases = {"rm", "remove", "del", "delete"}, usage = "<group>", desc = "Remove a group.", min = 1, max = 1)
 	@Permissible("windperms.group.remove")
 	public void remove(CommandSource source, CommandArguments args) throws CommandException {
+		GroupManager groupManager = getWritableState(plugin).getGroupManager();
 		String name = args.getString(0);
 		groupManager.removeGroup(name);
 		source.sendMessage("Removed group '" + name + "'.");
@@ -66,6 +71,7 @@ public class GroupCommands {
 
 	@Command(aliases = "set", usage = "<default|inherit|perm> <group> <value...>", desc = "Set a property for a group.", min = 3, max = 4)
 	public void set(CommandSource source, CommandArguments args) throws CommandException {
+		GroupManager groupManager = getWritableState(plugin).getGroupManager();
 		String property = args.getString(0);
 		Group group = getGroup(groupManager, args, 1);
 		String groupName = group.getName();
@@ -103,4 +109,44 @@ public class GroupCommands {
 		}
 		source.sendMessage(message);
 	}
+
+	@Command(aliases = "bulk", usage = "<group> <perm|inherit|data> <node[=state]|group[=state]|key=value...>", desc = "Set many properties of a group at once.", min = 3)
+	public void bulk(CommandSource source, CommandArguments args) throws CommandException {
+		PermissionsState current = getWritableState(plugin);
+		GroupManager groupManager = current.getGroupManager();
+		Group group = getGroup(groupManager, args, 0);
+		String groupName = group.getName();
+		String property = args.getString(1);
+		Transaction transaction = new Transaction(groupManager, current.getUserManager());
+		if (property.equalsIgnoreCase("perm")) {
+			assertHasPermission(source, "windperms.group.set.perm." + groupName);
+			for (int i = 2; i < args.length(); i++) {
+				String[] node = getAssignment(args, i);
+				transaction.setPermission(group, node[0], node[1] == null || Boolean.valueOf(node[1]));
+			}
+		} else if (property.equalsIgnoreCase("inherit")) {
+			assertHasPermission(source, "windperms.group.set.inherit." + groupName);
+			for (int i = 2; i < args.length(); i++) {
+				String[] inherited = getAssignment(args, i);
+				Group parent = groupManager.getGroup(inherited[0]);
+				if (parent == null) {
+					throw new CommandException("Group not found: " + inherited[0]);
+				}
+				transaction.setInheritedGroup(group, parent, inherited[1] == null || Boolean.valueOf(inherited[1]));
+			}
+		} else if (property.equalsIgnoreCase("data") || property.equalsIgnoreCase("md") || property.equalsIgnoreCase("metadata")) {
+			assertHasPermission(source, "windperms.group.set.metadata." + groupName);
+			for (int i = 2; i < args.length(); i++) {
+				String[] entry = getAssignment(args, i);
+				if (entry[1] == null) {
+					throw new CommandException("Expected key=value: " + entry[0]);
+				}
+				transaction.setMetadata(group, entry[0], entry[1]);
+			}
+		} else {
+			throw new CommandException("Unknown argument: " + property);
+		}
+		commit(transaction);
+		source.sendMessage("Applied " + transaction.size() + " changes to group '" + groupName + "'.");
+	}
 }
@@ -23,6 +23,9 @@
 package me.windwaker.permissions.cmd.sub;
 
 import me.windwaker.permissions.WindPerms;
+import me.windwaker.permissions.metrics.Metric;
+import me.windwaker.permissions.metrics.MetricsReport;
+import me.windwaker.permissions.permissible.DecisionCache;
 
 import org.spout.api.Spout;
 import org.spout.api.command.CommandArguments;
@@ -46,5 +49,18 @@ public class PermissionsCommands {
 		source.sendMessage("Powered by Spout " + Spout.getEngine().getVersion() + " (Implementing SpoutAPI " + Spout.getAPIVersion() + ")");
 		source.sendMessage("There are " + plugin.getGroupManager().getGroups().size() + " unique groups registered.");
 		source.sendMessage("There are " + plugin.getUserManager().getUsers().size() + " unique users registered.");
+		source.sendMessage("Decision cache: " + DecisionCache.getHits() + " hits, " + DecisionCache.getMisses() + " misses.");
+	}
+
+	@Command(aliases = {"stats", "metrics"}, usage = "[reset]", desc = "Prints latencies, throughput and memory footprint", max = 1)
+	@Permissible("windperms.stats")
+	public void stats(CommandSource source, CommandArguments args) throws CommandException {
+		for (String line : MetricsReport.build(plugin.getGroupManager(), plugin.getUserManager())) {
+			source.sendMessage(line);
+		}
+		if (args.length() > 0 && args.getString(0).equalsIgnoreCase("reset")) {
+			Metric.resetAll();
+			source.sendMessage("Metrics reset.");
+		}
 	}
 }
@@ -22,10 +22,15 @@
  */
 package me.windwaker.permissions.cmd.sub;
 
+import java.util.ArrayList;
+import java.util.List;
+
+import me.windwaker.permissions.PermissionsState;
 import me.windwaker.permissions.WindPerms;
 import me.windwaker.permissions.io.GroupManager;
 import me.windwaker.permissions.io.UserManager;
 import me.windwaker.permissions.permissible.Group;
+import me.windwaker.permissions.permissible.Transaction;
 import me.windwaker.permissions.permissible.User;
 import org.spout.api.command.CommandArguments;
 import org.spout.api.command.CommandSource;
@@ -36,17 +41,15 @@ import org.spout.api.exception.CommandException;
 import static me.windwaker.permissions.cmd.CommandUtil.*;
 
 public class UserCommands {
-	private final UserManager userManager;
-	private final GroupManager groupManager;
+	private final WindPerms plugin;
 
 	public UserCommands(WindPerms plugin) {
-		userManager = plugin.getUserManager();
-		groupManager = plugin.getGroupManager();
+		this.plugin = plugin;
 	}
 
 	@Command(aliases = {"info", "information"}, usage = "<user>", desc = "Get general information about a user.", min = 1, max = 1)
 	public void info(CommandSource source, CommandArguments args) throws CommandException {
-		User user = getUser(userManager, args, 0);
+		User user = getUser(plugin.getUserManager(), args, 0);
 		String name = user.getName();
 		assertHasPermission(source, "windperms.user.info." + name);
 		source.sendMessage("========== " + name + " ==========");
@@ -57,6 +60,7 @@ public class UserCommands {
 	@Command(aliases = {"mk", "make", "create", "add"}, usage = "<user>", desc = "Add a new user.", min = 1, max = 1)
 	@Permissible("windchat.user.add")
 	public void add(CommandSource source, CommandArguments args) throws CommandException {
+		UserManager userManager = getWritableState(plugin).getUserManager();
 		String name = args.getString(0);
 		userManager.addUser(name);
 		source.sendMessage("Added user '" + name + "'.");
@@ -65,6 +69,7 @@ public class UserCommands {
 	@Command(aliases = {"rm", "remove", "del", "delete"}, usage = "<user>", desc = "Remove a user.", min = 1, max = 1)
 	@Permissible("windchat.user.remove")
 	public void remove(CommandSource source, CommandArguments args) throws CommandException {
+		UserManager userManager = getWritableState(plugin).getUserManager();
 		String name = args.getString(0);
 		userManager.removeUser(name);
 		source.sendMessage("Removed user '" + name + "'.");
@@ -72,6 +77,9 @@ public class UserCommands {
 
 	@Command(aliases = "set", usage = "<group|perm|data> <user> <value...>", desc = "Set a property of a user.", min = 3, max = 4)
 	public void set(CommandSource source, CommandArguments args) throws CommandException {
+		PermissionsState current = getWritableState(plugin);
+		UserManager userManager = current.getUserManager();
+		GroupManager groupManager = current.getGroupManager();
 		String property = args.getString(0);
 		User user = getUser(userManager, args, 1);
 		String name = user.getName();
@@ -101,4 +109,62 @@ public class UserCommands {
 		}
 		source.sendMessage(message);
 	}
+
+	@Command(aliases = "bulk", usage = "<group|perm|data|move> <group|node[=state]|key=value|from-group> <user...|to-group>", desc = "Set a property of many users at once.", min = 3)
+	public void bulk(CommandSource source, CommandArguments args) throws CommandException {
+		PermissionsState current = getWritableState(plugin);
+		UserManager userManager = current.getUserManager();
+		GroupManager groupManager = current.getGroupManager();
+		String property = args.getString(0);
+		Transaction transaction = new Transaction(groupManager, userManager);
+		if (property.equalsIgnoreCase("move")) {
+			// moves every user of a group, including users not in memory
+			Group from = getGroup(groupManager, args, 1);
+			Group to = getGroup(groupManager, args, 2);
+			// filtered on the index, only the users moved are read from storage
+			for (String name : userManager.getUserNames(from)) {
+				assertHasPermission(source, "windperms.user.set.group." + name);
+				User user = userManager.getUser(name);
+				if (user != null) {
+					transaction.setGroup(user, to);
+				}
+			}
+		} else if (property.equalsIgnoreCase("group")) {
+			Group group = getGroup(groupManager, args, 1);
+			for (User user : getUsers(userManager, source, args, "group")) {
+				transaction.setGroup(user, group);
+			}
+		} else if (property.equalsIgnoreCase("perm")) {
+			String[] node = getAssignment(args, 1);
+			boolean state = node[1] == null || Boolean.valueOf(node[1]);
+			for (User user : getUsers(userManager, source, args, "perm")) {
+				transaction.setPermission(user, node[0], state);
+			}
+		} else if (property.equalsIgnoreCase("data") || property.equalsIgnoreCase("md") || property.equalsIgnoreCase("metadata")) {
+			String[] entry = getAssignment(args, 1);
+			if (entry[1] == null) {
+				throw new CommandException("Expected key=value: " + entry[0]);
+			}
+			for (User user : getUsers(userManager, source, args, "metadata")) {
+				transaction.setMetadata(user, entry[0], entry[1]);
+			}
+		} else {
+			throw new CommandException("Unknown argument: " + property);
+		}
+		commit(transaction);
+		source.sendMessage("Applied " + transaction.size() + " changes.");
+	}
+
+	/**
+	 * Gets the users listed from the third argument on, checking the permission to set the property of each.
+	 */
+	private static List<User> getUsers(UserManager userManager, CommandSource source, CommandArguments args, String property) throws CommandException {
+		List<User> users = new ArrayList<User>();
+		for (int i = 2; i < args.length(); i++) {
+			User user = getUser(userManager, args, i);
+			assertHasPermission(source, "windperms.user.set." + property + "." + user.getName());
+			users.add(user);
+		}
+		return users;
+	}
 }
@@ -0,0 +1,450 @@
+/*
+ * Copyright (c) 2012-2013 ${developer}, <http://windwaker.me>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package me.windwaker.permissions.io;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import me.windwaker.permissions.metrics.Metric;
+import me.windwaker.permissions.permissible.Group;
+import me.windwaker.permissions.permissible.InheritanceGraph;
+import me.windwaker.permissions.permissible.Permissible;
+import me.windwaker.permissions.trace.Trace;
+import me.windwaker.permissions.trace.TraceCategory;
+
+import org.spout.api.data.DataValue;
+
+/**
+ * Storage independent part of a {@link GroupManager}: the name index, inheritance propagation and write-behind
+ * persistence of changed groups.
+ * <p>
+ * Groups are written in their serialized form, a map with the optional keys 'inherited' (group name to boolean),
+ * 'permissions' (node to boolean) and 'metadata' (key to raw value). Groups whose serialized form did not change
+ * since they were last written are skipped; only a {@link Fingerprint} of the written form is kept.
+ * @author Windwaker
+ */
+public abstract class AbstractGroupManager implements GroupManager {
+	protected final Logger logger;
+	protected final NameIndex<Group> groups = new NameIndex<Group>();
+	protected final InheritanceGraph inheritance = new InheritanceGraph();
+	// fingerprint of the serialized form of the groups as last written
+	private final Map<String, Long> written = new HashMap<String, Long>();
+	// stored but not committed yet, only counts as written once the commit succeeded
+	private final Map<String, Long> staged = new HashMap<String, Long>();
+	private final WriteBehindQueue<Group> queue;
+	protected volatile Group defaultGroup;
+	// names of the groups removed and whether the default group changed while writing was suspended
+	private final Set<String> removedWhileSuspended = Collections.synchronizedSet(new LinkedHashSet<String>());
+	private volatile boolean defaultChangedWhileSuspended;
+	private volatile boolean closed;
+
+	public AbstractGroupManager(Logger logger) {
+		this.logger = logger;
+		queue = new WriteBehindQueue<Group>("WindPerms-groups-writer", logger, Settings.SAVE_INTERVAL.getLong(), Settings.SAVE_THRESHOLD.getInt()) {
+			@Override
+			protected boolean write(List<Group> batch) throws IOException {
+				return writeChanged(batch);
+			}
+
+			@Override
+			protected void commit() throws IOException {
+				AbstractGroupManager.this.commit();
+				committed();
+			}
+		};
+	}
+
+	/**
+	 * Reads all groups, their inheritance and the default group from the storage and registers them.
+	 */
+	protected abstract void readAll();
+
+	/**
+	 * Writes the serialized form of changed groups to the storage.
+	 * @param serialized groups by name
+	 * @throws IOException if the groups could not be written
+	 */
+	protected abstract void store(Map<String, Map<String, Object>> serialized) throws IOException;
+
+	/**
+	 * Deletes a group from the storage.
+	 * @param name of group as stored
+	 */
+	protected abstract void delete(String name);
+
+	/**
+	 * Writes the name of the default group to the storage.
+	 * @param name of the default group
+	 */
+	protected abstract void storeDefault(String name);
+
+	/**
+	 * Commits everything stored or deleted since the last commit.
+	 * @throws IOException if the storage could not be committed
+	 */
+	protected abstract void commit() throws IOException;
+
+	@Override
+	public void load() {
+		long start = System.nanoTime();
+		try {
+			readAll();
+		} finally {
+			Metric.GROUPS_LOAD.record(start);
+		}
+	}
+
+	@Override
+	public void save() {
+		long start = System.nanoTime();
+		try {
+			for (Group group : groups.values()) {
+				queue.markDirty(group);
+			}
+			if (defaultGroup != null) {
+				if (queue.isSuspended()) {
+					defaultChangedWhileSuspended = true;
+				} else {
+					storeDefault(defaultGroup.getName());
+				}
+			}
+			queue.markUncommitted();
+			queue.flush();
+		} finally {
+			Metric.GROUPS_SAVE.record(start);
+		}
+	}
+
+	@Override
+	public void suspend() {
+		queue.suspend();
+	}
+
+	@Override
+	public void resume() {
+		synchronized (removedWhileSuspended) {
+			for (String name : removedWhileSuspended) {
+				delete(name);
+			}
+			removedWhileSuspended.clear();
+		}
+		if (defaultChangedWhileSuspended && defaultGroup != null) {
+			storeDefault(defaultGroup.getName());
+		}
+		defaultChangedWhileSuspended = false;
+		queue.markUncommitted();
+		queue.resume();
+	}
+
+	@Override
+	public PendingChanges<Group> drainChanges() {
+		Set<String> removed;
+		synchronized (removedWhileSuspended) {
+			removed = new LinkedHashSet<String>(removedWhileSuspended);
+			removedWhileSuspended.clear();
+		}
+		Group defaultGroup = this.defaultGroup;
+		String defaultName = defaultChangedWhileSuspended && defaultGroup != null ? defaultGroup.getName() : null;
+		defaultChangedWhileSuspended = false;
+		return new PendingChanges<Group>(queue.drain(), removed, defaultName);
+	}
+
+	/**
+	 * Whether writing is suspended, e.g. while another manager loads from the storage.
+	 * @return true if suspended
+	 */
+	protected boolean isSuspended() {
+		return queue.isSuspended();
+	}
+
+	/**
+	 * Rejects changes once the manager is closed, since they would never be written.
+	 */
+	protected void checkOpen() {
+		if (closed) {
+			throw new IllegalStateException("The group manager was closed by a reload, use WindPerms#getState() for the current one.");
+		}
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		queue.close();
+	}
+
+	@Override
+	public void saveGroup(Group group) {
+		checkOpen();
+		long start = System.nanoTime();
+		queue.markDirty(group);
+		Metric.GROUP_SAVE.record(start);
+	}
+
+	@Override
+	public void saveGroups(Collection<Group> groups) {
+		checkOpen();
+		long start = System.nanoTime();
+		try {
+			queue.flush(groups);
+		} finally {
+			Metric.GROUPS_SAVE.record(start);
+		}
+	}
+
+	private boolean writeChanged(List<Group> batch) throws IOException {
+		Map<String, Map<String, Object>> changed = new LinkedHashMap<String, Map<String, Object>>();
+		Map<String, Long> fingerprints = new HashMap<String, Long>();
+		synchronized (written) {
+			// anything stored by a flush that failed is written again
+			staged.clear();
+			for (Group group : batch) {
+				if (groups.get(group.getName()) != group) {
+					// removed after a failed write put it back into the queue
+					continue;
+				}
+				Map<String, Object> serialized = serialize(group);
+				Long fingerprint = Fingerprint.of(serialized);
+				if (!fingerprint.equals(written.get(group.getCanonicalName()))) {
+					changed.put(group.getName(), serialized);
+					fingerprints.put(group.getCanonicalName(), fingerprint);
+				}
+			}
+		}
+		if (changed.isEmpty()) {
+			return false;
+		}
+		if (Trace.PERSIST) {
+			Trace.log(TraceCategory.PERSIST, Level.FINE, "Saving {0} of {1} groups: {2}", changed.size(), batch.size(),
+					changed.keySet());
+		}
+		store(changed);
+		synchronized (written) {
+			staged.putAll(fingerprints);
+		}
+		return true;
+	}
+
+	/**
+	 * Remembers the groups stored since the last commit as written, once the commit succeeded.
+	 */
+	private void committed() {
+		synchronized (written) {
+			written.putAll(staged);
+			staged.clear();
+		}
+	}
+
+	/**
+	 * Remembers the current state of a group as the state in storage, so it is not written again unless it
+	 * changes. Called after loading a group.
+	 * @param group that was loaded
+	 */
+	protected void remember(Group group) {
+		long fingerprint = Fingerprint.of(serialize(group));
+		synchronized (written) {
+			written.put(group.getCanonicalName(), fingerprint);
+		}
+	}
+
+	/**
+	 * Serializes a group.
+	 * @param group to serialize
+	 * @return serialized form
+	 */
+	protected Map<String, Object> serialize(Group group) {
+		Map<String, Object> serialized = new LinkedHashMap<String, Object>();
+		Map<String, Boolean> inherited = new LinkedHashMap<String, Boolean>();
+		for (Map.Entry<Group, Boolean> entry : group.getInheritedGroups().entrySet()) {
+			inherited.put(entry.getKey().getName(), entry.getValue());
+		}
+		if (!inherited.isEmpty()) {
+			serialized.put("inherited", inherited);
+		}
+		Map<String, Boolean> perms = new LinkedHashMap<String, Boolean>(group.getPermissions());
+		if (!perms.isEmpty()) {
+			serialized.put("permissions", perms);
+		}
+		Map<String, Object> values = new LinkedHashMap<String, Object>();
+		for (Map.Entry<String, DataValue> value : group.getMetadataMap().entrySet()) {
+			values.put(value.getKey(), value.getValue().getValue());
+		}
+		if (!values.isEmpty()) {
+			serialized.put("metadata", values);
+		}
+		return serialized;
+	}
+
+	@Override
+	public void addGroup(String name) {
+		checkOpen();
+		Group group = new Group(this, name);
+		groups.put(group);
+		saveGroup(group);
+	}
+
+	@Override
+	public void removeGroup(String name) {
+		checkOpen();
+		Group group;
+		ReentrantLock lock = Permissible.getWriteLock();
+		lock.lock();
+		try {
+			group = groups.remove(name);
+			if (group == null) {
+				return;
+			}
+			// groups inheriting the removed group stop inheriting it
+			for (Group child : group.getChildren()) {
+				child.removeInheritedGroup(group);
+			}
+		} finally {
+			lock.unlock();
+		}
+		queue.discard(group);
+		synchronized (written) {
+			written.remove(group.getCanonicalName());
+			staged.remove(group.getCanonicalName());
+		}
+		if (queue.isSuspended()) {
+			removedWhileSuspended.add(group.getName());
+		} else {
+			delete(group.getName());
+		}
+		queue.markUncommitted();
+	}
+
+	@Override
+	public Group getDefaultGroup() {
+		return defaultGroup;
+	}
+
+	@Override
+	public void setDefaultGroup(Group defaultGroup) {
+		checkOpen();
+		this.defaultGroup = defaultGroup;
+		if (queue.isSuspended()) {
+			defaultChangedWhileSuspended = true;
+		} else {
+			storeDefault(defaultGroup.getName());
+		}
+		queue.markUncommitted();
+	}
+
+	@Override
+	public Group getGroup(String name) {
+		return groups.get(name);
+	}
+
+	@Override
+	public Set<Group> getGroups() {
+		return groups.values();
+	}
+
+	@Override
+	public void reloadInheritance() {
+		long start = System.nanoTime();
+		ReentrantLock lock = Permissible.getWriteLock();
+		lock.lock();
+		try {
+			for (Group group : groups.values()) {
+				inheritance.markDirty(group);
+			}
+			inheritance.update();
+		} finally {
+			lock.unlock();
+			Metric.RELOAD_INHERITANCE.record(start);
+		}
+	}
+
+	@Override
+	public void reloadInheritance(Group group) {
+		ReentrantLock lock = Permissible.getWriteLock();
+		lock.lock();
+		try {
+			inheritance.markDirty(group);
+			inheritance.update();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void reloadInheritance(Collection<Group> groups) {
+		long start = System.nanoTime();
+		ReentrantLock lock = Permissible.getWriteLock();
+		lock.lock();
+		try {
+			for (Group group : groups) {
+				inheritance.markDirty(group);
+			}
+			inheritance.update();
+		} finally {
+			lock.unlock();
+			Metric.RELOAD_INHERITANCE.record(start);
+		}
+	}
+
+	/**
+	 * Links the inherited groups of the loaded groups and computes the effective data of all groups in one
+	 * parents-first pass, instead of propagating every edge on its own. Edges closing a cycle are dropped and
+	 * logged.
+	 * @param inherited inherited groups by inheriting group
+	 */
+	protected void linkInheritance(Map<Group, Map<Group, Boolean>> inherited) {
+		long start = System.nanoTime();
+		ReentrantLock lock = Permissible.getWriteLock();
+		lock.lock();
+		try {
+			for (Map.Entry<Group, Map<Group, Boolean>> entry : inherited.entrySet()) {
+				entry.getKey().linkInheritedGroups(entry.getValue());
+			}
+			Set<Group> all = new LinkedHashSet<Group>(inherited.keySet());
+			all.addAll(groups.values());
+			Map<Group, Set<Group>> dropped = inheritance.rebuild(all);
+			for (Map.Entry<Group, Set<Group>> entry : dropped.entrySet()) {
+				for (Group parent : entry.getValue()) {
+					logger.severe("Group " + parent.getName() + " already inherits " + entry.getKey().getName()
+							+ ". Two groups may not inherit each other, ignoring the inheritance.");
+				}
+			}
+		} finally {
+			lock.unlock();
+			Metric.RELOAD_INHERITANCE.record(start);
+		}
+	}
+
+	@Override
+	public void clear() {
+		groups.clear();
+	}
+}
@@ -0,0 +1,733 @@
+/*
+ * Copyright (c) 2012-2013 ${developer}, <http://windwaker.me>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package me.windwaker.permissions.io;
+
+import java.io.IOException;
+import java.util.AbstractCollection;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import me.windwaker.permissions.metrics.Metric;
+import me.windwaker.permissions.permissible.Group;
+import me.windwaker.permissions.permissible.User;
+import me.windwaker.permissions.trace.Trace;
+import me.windwaker.permissions.trace.TraceCategory;
+
+import org.spout.api.data.DataValue;
+
+/**
+ * Storage independent part of a {@link UserManager}: the name index, on-demand loading and unloading of users and
+ * write-behind persistence of changed users.
+ * <p>
+ * Users are written in their serialized form, a map with the key 'group' (group name) and the optional keys
+ * 'permissions' (node to boolean) and 'metadata' (key to raw value). Users whose serialized form did not change
+ * since they were last written are skipped; only a {@link Fingerprint} of the written form is kept.
+ * @author Windwaker
+ */
+public abstract class AbstractUserManager implements UserManager {
+	protected final Logger logger;
+	protected final GroupManager groupManager;
+	protected final NameIndex<User> users = new NameIndex<User>();
+	// canonical name to name and group as stored, for every user whether loaded or not
+	private final ConcurrentMap<String, StoredUser> stored = new ConcurrentHashMap<String, StoredUser>();
+	// fingerprint of the serialized form of the users in memory as last written; the entries of unloaded users
+	// are dropped
+	private final Map<String, Long> written = new HashMap<String, Long>();
+	// stored but not committed yet, only counts as written once the commit succeeded
+	private final Map<String, Long> staged = new HashMap<String, Long>();
+	private final WriteBehindQueue<User> queue;
+	private final Set<String> online = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private final ConcurrentMap<String, ScheduledFuture<?>> pendingUnloads = new ConcurrentHashMap<String, ScheduledFuture<?>>();
+	protected final boolean lazy;
+	// names of the users removed while writing was suspended
+	private final Set<String> removedWhileSuspended = Collections.synchronizedSet(new LinkedHashSet<String>());
+	private volatile boolean closed;
+	private final long unloadDelay;
+	// loads users in the background and unloads them again
+	private final ScheduledExecutorService loader;
+	private final Set<String> loading = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private final Set<User> storedUsers = new AbstractSet<User>() {
+		@Override
+		public Iterator<User> iterator() {
+			final Iterator<StoredUser> names = stored.values().iterator();
+			return new Iterator<User>() {
+				@Override
+				public boolean hasNext() {
+					return names.hasNext();
+				}
+
+				@Override
+				public User next() {
+					String name = names.next().name;
+					User user = users.get(name);
+					return user != null ? user : readDetachedUser(name);
+				}
+
+				@Override
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			};
+		}
+
+		@Override
+		public int size() {
+			return stored.size();
+		}
+	};
+	private final Collection<String> storedNames = new AbstractCollection<String>() {
+		@Override
+		public Iterator<String> iterator() {
+			final Iterator<StoredUser> entries = stored.values().iterator();
+			return new Iterator<String>() {
+				@Override
+				public boolean hasNext() {
+					return entries.hasNext();
+				}
+
+				@Override
+				public String next() {
+					return entries.next().name;
+				}
+
+				@Override
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			};
+		}
+
+		@Override
+		public int size() {
+			return stored.size();
+		}
+	};
+
+	public AbstractUserManager(Logger logger, GroupManager groupManager) {
+		this.logger = logger;
+		this.groupManager = groupManager;
+		queue = new WriteBehindQueue<User>("WindPerms-users-writer", logger, Settings.SAVE_INTERVAL.getLong(), Settings.SAVE_THRESHOLD.getInt()) {
+			@Override
+			protected boolean write(List<User> batch) throws IOException {
+				return writeChanged(batch);
+			}
+
+			@Override
+			protected void commit() throws IOException {
+				AbstractUserManager.this.commit();
+				committed();
+			}
+		};
+		lazy = Settings.LAZY_LOADING.getBoolean();
+		unloadDelay = Settings.UNLOAD_DELAY.getLong();
+		loader = lazy ? Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "WindPerms-users-loader");
+				thread.setDaemon(true);
+				return thread;
+			}
+		}) : null;
+	}
+
+	/**
+	 * Reads the users to load at startup from the storage and registers them, usually through
+	 * {@link #loadAll(Map)}.
+	 */
+	protected abstract void readAll();
+
+	/**
+	 * Reads a user from the storage. The user must have its group set but must not be registered with the manager.
+	 * While {@link #loadAll(Map)} loads users, this is called from several threads at once.
+	 * @param name of user as stored
+	 * @return user
+	 */
+	protected abstract User readUser(String name);
+
+	/**
+	 * Writes the serialized form of changed users to the storage.
+	 * @param serialized users by name
+	 * @throws IOException if the users could not be written
+	 */
+	protected abstract void store(Map<String, Map<String, Object>> serialized) throws IOException;
+
+	/**
+	 * Deletes a user from the storage.
+	 * @param name of user as stored
+	 */
+	protected abstract void delete(String name);
+
+	/**
+	 * Commits everything stored or deleted since the last commit.
+	 * @throws IOException if the storage could not be committed
+	 */
+	protected abstract void commit() throws IOException;
+
+	/**
+	 * Indexes the names of all stored users and, unless users are loaded on demand, loads them.
+	 * @param names of all stored users
+	 */
+	protected void loadAll(Collection<String> names) {
+		Map<String, String> groups = new LinkedHashMap<String, String>();
+		for (String name : names) {
+			groups.put(name, null);
+		}
+		loadAll(groups);
+	}
+
+	/**
+	 * Indexes the names and groups of all stored users and, unless users are loaded on demand, loads them.
+	 * @param groups of all stored users by name; a group is only needed if users are loaded on demand and may be
+	 *            null for the default group
+	 */
+	protected void loadAll(Map<String, String> groups) {
+		for (Map.Entry<String, String> entry : groups.entrySet()) {
+			index(entry.getKey(), entry.getValue());
+		}
+		Collection<String> names = groups.keySet();
+
+		if (lazy) {
+			// Users are loaded on login or first lookup
+			if (!names.isEmpty()) {
+				logger.info("User data indexed. " + stored.size() + " unique users found!");
+			}
+			return;
+		}
+
+		if (!names.isEmpty()) {
+			logger.info("Loading user data...");
+		}
+		// users only depend on their groups, so they are read in parallel and registered in order
+		List<User> loaded = ParallelLoader.load(names, new ParallelLoader.Task<User>() {
+			@Override
+			public User load(String name) {
+				return readUser(name);
+			}
+		});
+		for (User user : loaded) {
+			register(user);
+		}
+		if (!names.isEmpty()) {
+			logger.info("User data loaded. " + users.size() + " unique users loaded!");
+		}
+	}
+
+	/**
+	 * Creates the profile in memory with the default group so it can be used right away. The profile is written
+	 * by the background writer together with other changes; it is not remembered as written, so the queue
+	 * always writes it.
+	 */
+	@Override
+	public void addUser(String username) {
+		checkOpen();
+		User user = new User(this, username);
+		user.setAutoSave(false);
+		user.setGroup(groupManager.getDefaultGroup());
+		user.setAutoSave(true);
+		users.put(user);
+		index(user);
+		saveUser(user);
+	}
+
+	@Override
+	public void loadUser(String user) {
+		register(readUser(user));
+	}
+
+	/**
+	 * Adds a user to the index, remembering its current state as the state in storage.
+	 * @param user to register
+	 */
+	protected void register(User user) {
+		users.put(user);
+		index(user);
+		remember(user);
+	}
+
+	/**
+	 * Remembers the current state of a user as the state in storage, so it is not written again unless it
+	 * changes.
+	 * @param user that was read
+	 */
+	protected void remember(User user) {
+		long fingerprint = Fingerprint.of(serialize(user));
+		synchronized (written) {
+			written.put(user.getCanonicalName(), fingerprint);
+		}
+	}
+
+	/**
+	 * Adds the name and group of a user in storage to the index without loading the user, so it is loaded on
+	 * first lookup, or updates the group of an indexed user.
+	 * @param name of the stored user
+	 * @param group name of the group of the user or null for the default group
+	 * @return true if the user was not indexed before
+	 */
+	protected boolean index(String name, String group) {
+		if (group != null) {
+			// the name of the group instance is shared by all of its users
+			Group existing = groupManager.getGroup(group);
+			if (existing != null) {
+				group = existing.getName();
+			}
+		}
+		return stored.put(NameIndex.canonical(name), new StoredUser(name, group)) == null;
+	}
+
+	private void index(User user) {
+		index(user.getName(), user.getGroup() != null ? user.getGroup().getName() : null);
+	}
+
+	/**
+	 * Updates the group of an indexed user, unless it was removed meanwhile.
+	 */
+	private void reindex(User user) {
+		String group = user.getGroup() != null ? user.getGroup().getName() : null;
+		StoredUser entry = stored.get(user.getCanonicalName());
+		if (entry != null && (group == null ? entry.group != null : !group.equals(entry.group))) {
+			stored.replace(user.getCanonicalName(), entry, new StoredUser(entry.name, group));
+		}
+	}
+
+	/**
+	 * Gets the names of all users in storage, loaded or not.
+	 * @return names of stored users
+	 */
+	protected Collection<String> getStoredNames() {
+		return storedNames;
+	}
+
+	/**
+	 * Reads a user that is not kept in memory, e.g. while iterating all stored users.
+	 */
+	private User readDetachedUser(String name) {
+		User user = readUser(name);
+		user.getGroup().removeUser(user);
+		return user;
+	}
+
+	@Override
+	public void load() {
+		long start = System.nanoTime();
+		try {
+			readAll();
+		} finally {
+			Metric.USERS_LOAD.record(start);
+		}
+	}
+
+	@Override
+	public void save() {
+		long start = System.nanoTime();
+		try {
+			for (User user : users.values()) {
+				queue.markDirty(user);
+			}
+			queue.flush();
+		} finally {
+			Metric.USERS_SAVE.record(start);
+		}
+	}
+
+	@Override
+	public void suspend() {
+		queue.suspend();
+	}
+
+	@Override
+	public void resume() {
+		synchronized (removedWhileSuspended) {
+			for (String name : removedWhileSuspended) {
+				delete(name);
+			}
+			removedWhileSuspended.clear();
+		}
+		queue.markUncommitted();
+		queue.resume();
+	}
+
+	@Override
+	public PendingChanges<User> drainChanges() {
+		Set<String> removed;
+		synchronized (removedWhileSuspended) {
+			removed = new LinkedHashSet<String>(removedWhileSuspended);
+			removedWhileSuspended.clear();
+		}
+		return new PendingChanges<User>(queue.drain(), removed);
+	}
+
+	/**
+	 * Whether writing is suspended, e.g. while another manager loads from the storage.
+	 * @return true if suspended
+	 */
+	protected boolean isSuspended() {
+		return queue.isSuspended();
+	}
+
+	/**
+	 * Rejects changes once the manager is closed, since they would never be written.
+	 */
+	protected void checkOpen() {
+		if (closed) {
+			throw new IllegalStateException("The user manager was closed by a reload, use WindPerms#getState() for the current one.");
+		}
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		if (loader != null) {
+			loader.shutdownNow();
+		}
+		queue.close();
+	}
+
+	@Override
+	public void saveUser(User user) {
+		checkOpen();
+		long start = System.nanoTime();
+		queue.markDirty(user);
+		Metric.USER_SAVE.record(start);
+	}
+
+	@Override
+	public void saveUsers(Collection<User> users) {
+		checkOpen();
+		long start = System.nanoTime();
+		try {
+			queue.flush(users);
+		} finally {
+			Metric.USERS_SAVE.record(start);
+		}
+	}
+
+	private boolean writeChanged(List<User> batch) throws IOException {
+		Map<String, Map<String, Object>> changed = new LinkedHashMap<String, Map<String, Object>>();
+		Map<String, Long> fingerprints = new HashMap<String, Long>();
+		synchronized (written) {
+			// anything stored by a flush that failed is written again
+			staged.clear();
+			for (User user : batch) {
+				if (!stored.containsKey(user.getCanonicalName())) {
+					// removed after a failed write put it back into the queue
+					continue;
+				}
+				Map<String, Object> serialized = serialize(user);
+				Long fingerprint = Fingerprint.of(serialized);
+				if (!fingerprint.equals(written.get(user.getCanonicalName()))) {
+					changed.put(user.getName(), serialized);
+					fingerprints.put(user.getCanonicalName(), fingerprint);
+					// keeps the group of users that are not in memory, e.g. changed while iterating all users
+					reindex(user);
+				}
+			}
+		}
+		if (changed.isEmpty()) {
+			return false;
+		}
+		if (Trace.PERSIST) {
+			Trace.log(TraceCategory.PERSIST, Level.FINE, "Saving {0} of {1} users: {2}", changed.size(), batch.size(),
+					changed.keySet());
+		}
+		store(changed);
+		synchronized (written) {
+			staged.putAll(fingerprints);
+		}
+		return true;
+	}
+
+	/**
+	 * Remembers the users stored since the last commit as written, once the commit succeeded.
+	 */
+	private void committed() {
+		synchronized (written) {
+			for (Map.Entry<String, Long> entry : staged.entrySet()) {
+				// users unloaded meanwhile are compared against the storage again once they are loaded
+				if (users.contains(entry.getKey())) {
+					written.put(entry.getKey(), entry.getValue());
+				} else {
+					written.remove(entry.getKey());
+				}
+			}
+			staged.clear();
+		}
+	}
+
+	/**
+	 * Serializes a user.
+	 * @param user to serialize
+	 * @return serialized form
+	 */
+	protected Map<String, Object> serialize(User user) {
+		Map<String, Object> serialized = new LinkedHashMap<String, Object>();
+		serialized.put("group", user.getGroup() != null ? user.getGroup().getName() : "");
+		Map<String, Boolean> perms = new LinkedHashMap<String, Boolean>(user.getPermissions());
+		if (!perms.isEmpty()) {
+			serialized.put("permissions", perms);
+		}
+		Map<String, Object> values = new LinkedHashMap<String, Object>();
+		for (Map.Entry<String, DataValue> value : user.getMetadataMap().entrySet()) {
+			values.put(value.getKey(), value.getValue().getValue());
+		}
+		if (!values.isEmpty()) {
+			serialized.put("metadata", values);
+		}
+		return serialized;
+	}
+
+	/**
+	 * Loads a stored user on first lookup and schedules it to be unloaded again if the player is not online.
+	 */
+	private User loadOnDemand(String name) {
+		String key = NameIndex.canonical(name);
+		StoredUser entry = stored.get(key);
+		if (entry == null) {
+			return null;
+		}
+		String storedName = entry.name;
+		synchronized (users) {
+			User user = users.get(key);
+			if (user == null) {
+				if (Trace.PERSIST) {
+					Trace.log(TraceCategory.PERSIST, Level.FINE, "Loading user {0} on demand", storedName);
+				}
+				loadUser(storedName);
+				user = users.get(key);
+				if (!online.contains(key)) {
+					scheduleUnload(key);
+				}
+			}
+			return user;
+		}
+	}
+
+	/**
+	 * Loads a stored user on the background thread unless it is in memory or being loaded already.
+	 */
+	private void loadInBackground(final String name) {
+		final String key = NameIndex.canonical(name);
+		if (users.contains(key) || !stored.containsKey(key) || !loading.add(key)) {
+			return;
+		}
+		try {
+			loader.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						loadOnDemand(name);
+					} catch (RuntimeException e) {
+						logger.log(Level.SEVERE, "Failed to load user " + name, e);
+					} finally {
+						loading.remove(key);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// the manager was closed
+			loading.remove(key);
+		}
+	}
+
+	private void scheduleUnload(final String key) {
+		ScheduledFuture<?> task = loader.schedule(new Runnable() {
+			@Override
+			public void run() {
+				unload(key);
+			}
+		}, unloadDelay, TimeUnit.SECONDS);
+		ScheduledFuture<?> previous = pendingUnloads.put(key, task);
+		if (previous != null) {
+			previous.cancel(false);
+		}
+	}
+
+	private void unload(String key) {
+		pendingUnloads.remove(key);
+		if (online.contains(key)) {
+			return;
+		}
+		synchronized (users) {
+			User user = users.remove(key);
+			if (user == null) {
+				return;
+			}
+			reindex(user);
+			synchronized (written) {
+				// a change that is still pending is compared against nothing and written as a whole
+				if (!queue.isDirty(user) && !staged.containsKey(key)) {
+					written.remove(key);
+				}
+			}
+			if (user.getGroup() != null) {
+				// pending changes are still written since the queue holds on to the user
+				user.getGroup().removeUser(user);
+			}
+			if (Trace.PERSIST) {
+				Trace.log(TraceCategory.PERSIST, Level.FINE, "Unloaded user {0}", user.getName());
+			}
+		}
+	}
+
+	@Override
+	public void startSession(String username) {
+		String key = NameIndex.canonical(username);
+		online.add(key);
+		ScheduledFuture<?> pending = pendingUnloads.remove(key);
+		if (pending != null) {
+			pending.cancel(false);
+		}
+		// the profile is read off the event thread, checks are answered from the default group until it is loaded
+		if (lazy) {
+			loadInBackground(username);
+		}
+	}
+
+	@Override
+	public void endSession(String username) {
+		String key = NameIndex.canonical(username);
+		online.remove(key);
+		if (lazy && users.contains(key)) {
+			scheduleUnload(key);
+		}
+	}
+
+	@Override
+	public void removeUser(String username) {
+		checkOpen();
+		String key = NameIndex.canonical(username);
+		StoredUser entry = stored.remove(key);
+		String storedName = entry != null ? entry.name : null;
+		User user = users.remove(key);
+		if (user != null) {
+			if (user.getGroup() != null) {
+				user.getGroup().removeUser(user);
+			}
+			queue.discard(user);
+			storedName = user.getName();
+		}
+		if (storedName == null) {
+			return;
+		}
+		synchronized (written) {
+			written.remove(key);
+			staged.remove(key);
+		}
+		if (queue.isSuspended()) {
+			removedWhileSuspended.add(storedName);
+		} else {
+			delete(storedName);
+		}
+		queue.markUncommitted();
+	}
+
+	@Override
+	public User getLoadedUser(String name) {
+		User user = users.get(name);
+		if (user == null && lazy && name != null) {
+			loadInBackground(name);
+		}
+		return user;
+	}
+
+	@Override
+	public boolean hasUser(String name) {
+		return name != null && (users.contains(name) || stored.containsKey(NameIndex.canonical(name)));
+	}
+
+	@Override
+	public User getUser(String name) {
+		User user = users.get(name);
+		if (user != null || !lazy || name == null) {
+			return user;
+		}
+		return loadOnDemand(name);
+	}
+
+	@Override
+	public Set<User> getUsers() {
+		// with lazy loading, users that are not in memory are read from storage while iterating
+		return lazy ? storedUsers : users.values();
+	}
+
+	@Override
+	public List<String> getUserNames(Group group) {
+		List<String> names = new ArrayList<String>();
+		Group defaultGroup = groupManager.getDefaultGroup();
+		for (StoredUser entry : stored.values()) {
+			User user = users.get(entry.name);
+			Group current;
+			if (user != null) {
+				current = user.getGroup();
+			} else {
+				// users of unknown groups are read into the default group
+				current = entry.group != null ? groupManager.getGroup(entry.group) : null;
+				if (current == null) {
+					current = defaultGroup;
+				}
+			}
+			if (current == group) {
+				names.add(entry.name);
+			}
+		}
+		return names;
+	}
+
+	@Override
+	public void clear() {
+		users.clear();
+		stored.clear();
+	}
+
+	/**
+	 * Entry of the index of stored users.
+	 */
+	private static final class StoredUser {
+		private final String name;
+		// null for the default group
+		private final String group;
+
+		private StoredUser(String name, String group) {
+			this.name = name;
+			this.group = group;
+		}
+	}
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2012-2013 ${developer}, <http://windwaker.me>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package me.windwaker.permissions.io;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * 64-bit fingerprint of the serialized form of a group or user, kept instead of a copy of the serialized form to
+ * detect whether it changed since it was last written.
+ * <p>
+ * Map entries are hashed in the order of their keys, so equal maps have equal fingerprints whatever their
+ * iteration order. Values are hashed with their type, so the number 5 and the string '5' differ.
+ * @author Windwaker
+ */
+public final class Fingerprint {
+	private static final long OFFSET = 0xcbf29ce484222325L;
+	private static final long PRIME = 0x100000001b3L;
+
+	private Fingerprint() {
+	}
+
+	/**
+	 * Computes the fingerprint of a serialized form.
+	 * @param serialized form, made of maps, lists and plain values
+	 * @return fingerprint
+	 */
+	public static long of(Map<String, Object> serialized) {
+		return hash(OFFSET, serialized);
+	}
+
+	private static long hash(long hash, Object value) {
+		if (value == null) {
+			return hash(hash, 'n');
+		}
+		if (value instanceof Map) {
+			Map<String, Object> sorted = new TreeMap<String, Object>();
+			for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+				sorted.put(String.valueOf(entry.getKey()), entry.getValue());
+			}
+			hash = hash(hash, '{');
+			for (Map.Entry<String, Object> entry : sorted.entrySet()) {
+				hash = hash(hash, entry.getKey());
+				hash = hash(hash, entry.getValue());
+			}
+			return hash(hash, '}');
+		}
+		if (value instanceof List) {
+			hash = hash(hash, '[');
+			for (Object element : (List<?>) value) {
+				hash = hash(hash, element);
+			}
+			return hash(hash, ']');
+		}
+		hash = hash(hash, value.getClass().getName());
+		return hash(hash, value.toString());
+	}
+
+	private static long hash(long hash, String string) {
+		// the length separates consecutive strings
+		hash = hash(hash, (char) string.length());
+		for (int i = 0; i < string.length(); i++) {
+			hash = hash(hash, string.charAt(i));
+		}
+		return hash;
+	}
+
+	private static long hash(long hash, char c) {
+		hash = (hash ^ (c & 0xFF)) * PRIME;
+		return (hash ^ (c >>> 8)) * PRIME;
+	}
+}
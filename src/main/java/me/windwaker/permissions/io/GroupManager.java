@@ -22,6 +22,7 @@
  */
 package me.windwaker.permissions.io;
 
+import java.util.Collection;
 import java.util.Set;
 
 import me.windwaker.permissions.permissible.Group;
@@ -59,6 +60,12 @@ public interface GroupManager {
 	 */
 	public void saveGroup(Group group);
 
+	/**
+	 * Writes the specified groups, together with any other pending changes, in a single batch before returning.
+	 * @param groups to write
+	 */
+	public void saveGroups(Collection<Group> groups);
+
 	/**
 	 * Loads a group from disk.
 	 * @param group
@@ -79,7 +86,8 @@ public interface GroupManager {
 	public void setDefaultGroup(Group group);
 
 	/**
-	 * Gets a group from said name
+	 * Gets a group from said name, ignoring case.
+	 * Implementations must answer this in constant time since it is called for every permission check.
 	 * @param name
 	 * @return group
 	 */
@@ -96,8 +104,44 @@ public interface GroupManager {
 	 */
 	public void reloadInheritance();
 
+	/**
+	 * Reloads the inheritance of the specified group, the groups inheriting it and the users of those groups.
+	 * @param group that changed
+	 */
+	public void reloadInheritance(Group group);
+
+	/**
+	 * Reloads the inheritance of the specified groups, the groups inheriting them and the users of those groups,
+	 * recomputing every affected group once.
+	 * @param groups that changed
+	 */
+	public void reloadInheritance(Collection<Group> groups);
+
 	/**
 	 * Clears all groups.
 	 */
 	public void clear();
+
+	/**
+	 * Stops writing to the storage, e.g. while another manager loads from it. Changes are kept in memory until
+	 * {@link #resume()} writes them or {@link #drainChanges()} hands them over.
+	 */
+	public void suspend();
+
+	/**
+	 * Writes the changes made while suspended and continues writing.
+	 */
+	public void resume();
+
+	/**
+	 * Removes and returns the changes made while suspended without writing them.
+	 * @return pending changes
+	 */
+	public PendingChanges<Group> drainChanges();
+
+	/**
+	 * Writes pending changes, unless suspended, and stops any background work. Changes to a closed manager are
+	 * rejected with an {@link IllegalStateException}.
+	 */
+	public void close();
 }
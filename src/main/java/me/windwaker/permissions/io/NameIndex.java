@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) 2012-2013 ${developer}, <http://windwaker.me>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package me.windwaker.permissions.io;
+
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import me.windwaker.permissions.permissible.Permissible;
+
+/**
+ * Case-insensitive index of {@link Permissible}s keyed by their canonical (lower-cased) name.
+ * @author Windwaker
+ */
+public class NameIndex<T extends Permissible> {
+	private static final ThreadLocal<Probe> PROBES = new ThreadLocal<Probe>() {
+		@Override
+		protected Probe initialValue() {
+			return new Probe();
+		}
+	};
+	private final ConcurrentMap<String, T> entries = new ConcurrentHashMap<String, T>();
+	private final Set<T> view = new AbstractSet<T>() {
+		@Override
+		public Iterator<T> iterator() {
+			return entries.values().iterator();
+		}
+
+		@Override
+		public int size() {
+			return entries.size();
+		}
+
+		@Override
+		public boolean contains(Object o) {
+			return o instanceof Permissible && entries.get(((Permissible) o).getCanonicalName()) == o;
+		}
+
+		@Override
+		public boolean remove(Object o) {
+			return o instanceof Permissible && entries.remove(((Permissible) o).getCanonicalName(), o);
+		}
+	};
+
+	/**
+	 * Returns the canonical form of a name used as the key of the index. Names are lower-cased by the rules of
+	 * {@link Locale#ENGLISH}, so keys do not depend on the locale of the server, e.g. 'I' stays 'i' in Turkish.
+	 * {@link String#toLowerCase(Locale)} returns the same instance for names that are already lower-case, so
+	 * lookups of canonical names do not allocate.
+	 * @param name to canonicalize
+	 * @return canonical name
+	 */
+	public static String canonical(String name) {
+		return name.toLowerCase(Locale.ENGLISH);
+	}
+
+	/**
+	 * Returns the key to look up a name with. Names of ASCII characters, which player names are, are looked up
+	 * with the {@link Probe} of the thread instead of lower-casing them, so lookups of mixed-case names do not
+	 * allocate either.
+	 */
+	private static Object key(String name) {
+		Probe probe = PROBES.get();
+		return probe.wrap(name) ? probe : canonical(name);
+	}
+
+	/**
+	 * Gets the entry with the specified name, ignoring case.
+	 * @param name of entry
+	 * @return entry or null if not indexed
+	 */
+	public T get(String name) {
+		if (name == null) {
+			return null;
+		}
+		return entries.get(key(name));
+	}
+
+	/**
+	 * Adds an entry to the index, replacing any entry with the same name.
+	 * @param entry to add
+	 * @return the replaced entry or null
+	 */
+	public T put(T entry) {
+		return entries.put(entry.getCanonicalName(), entry);
+	}
+
+	/**
+	 * Removes the entry with the specified name.
+	 * @param name of entry
+	 * @return the removed entry or null
+	 */
+	public T remove(String name) {
+		return entries.remove(canonical(name));
+	}
+
+	/**
+	 * Whether an entry with the specified name is indexed.
+	 * @param name of entry
+	 * @return true if indexed
+	 */
+	public boolean contains(String name) {
+		return entries.containsKey(key(name));
+	}
+
+	/**
+	 * Gets the number of indexed entries.
+	 * @return size of index
+	 */
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Gets a live, unmodifiable-by-addition view of all indexed entries.
+	 * @return entries
+	 */
+	public Set<T> values() {
+		return view;
+	}
+
+	/**
+	 * Removes all entries.
+	 */
+	public void clear() {
+		entries.clear();
+	}
+
+	/**
+	 * Lookup key equal to the canonical form of an ASCII name, with the same hash code, computed from the name as
+	 * given. Probes are only passed to {@link ConcurrentMap#get(Object)} and
+	 * {@link ConcurrentMap#containsKey(Object)}, which compare the probe to the stored keys and never keep it.
+	 */
+	private static final class Probe {
+		private String name;
+		private int hash;
+
+		/**
+		 * Wraps a name unless it contains characters other than ASCII, whose lower-case form may differ in length.
+		 * @return true if wrapped
+		 */
+		private boolean wrap(String name) {
+			int h = 0;
+			for (int i = 0, length = name.length(); i < length; i++) {
+				char c = name.charAt(i);
+				if (c >= 0x80) {
+					return false;
+				}
+				h = 31 * h + lower(c);
+			}
+			this.name = name;
+			hash = h;
+			return true;
+		}
+
+		private static char lower(char c) {
+			return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+		}
+
+		@Override
+		public int hashCode() {
+			// equal to the hash code of the canonical name, see String#hashCode()
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof String)) {
+				return false;
+			}
+			String key = (String) obj;
+			int length = name.length();
+			if (key.length() != length) {
+				return false;
+			}
+			for (int i = 0; i < length; i++) {
+				if (lower(name.charAt(i)) != key.charAt(i)) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+}
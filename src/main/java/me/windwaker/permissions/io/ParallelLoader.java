@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2012-2013 ${developer}, <http://windwaker.me>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package me.windwaker.permissions.io;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Loads many entities on several threads at startup.
+ * <p>
+ * The names are split into contiguous partitions that are loaded by a pool of {@link Settings#LOAD_THREADS}
+ * threads, and the results are returned in the order of the names. Callers register the results on their own
+ * thread in that order, so the loaded state is the same as if the entities had been loaded one after another.
+ * @author Windwaker
+ */
+public final class ParallelLoader {
+	// fewer entities per thread are not worth starting a thread for
+	private static final int MIN_PARTITION = 256;
+	// more partitions than threads, so threads that finish early take over the remaining work
+	private static final int PARTITIONS_PER_THREAD = 4;
+
+	private ParallelLoader() {
+	}
+
+	/**
+	 * Loads a single entity. Called from several threads at once.
+	 * @param <T> type of entity
+	 */
+	public interface Task<T> {
+		/**
+		 * Loads an entity.
+		 * @param name of entity
+		 * @return entity
+		 */
+		public T load(String name);
+	}
+
+	/**
+	 * Gets the number of threads to load with.
+	 * @return number of threads
+	 */
+	public static int getThreads() {
+		int threads = Settings.LOAD_THREADS.getInt();
+		return threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+	}
+
+	/**
+	 * Loads an entity for each name.
+	 * @param names of entities
+	 * @param task that loads an entity
+	 * @param <T> type of entity
+	 * @return loaded entities in the order of the names
+	 */
+	public static <T> List<T> load(Collection<String> names, final Task<T> task) {
+		final String[] input = names.toArray(new String[names.size()]);
+		final Object[] results = new Object[input.length];
+		int threads = Math.min(getThreads(), (input.length + MIN_PARTITION - 1) / MIN_PARTITION);
+		if (threads <= 1) {
+			for (int i = 0; i < input.length; i++) {
+				results[i] = task.load(input[i]);
+			}
+			return cast(results);
+		}
+
+		final AtomicInteger count = new AtomicInteger();
+		ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "WindPerms-loader-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		try {
+			int partitions = threads * PARTITIONS_PER_THREAD;
+			int partition = Math.max(MIN_PARTITION / PARTITIONS_PER_THREAD, (input.length + partitions - 1) / partitions);
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+			for (int start = 0; start < input.length; start += partition) {
+				final int from = start;
+				final int to = Math.min(start + partition, input.length);
+				futures.add(executor.submit(new Runnable() {
+					@Override
+					public void run() {
+						for (int i = from; i < to; i++) {
+							results[i] = task.load(input[i]);
+						}
+					}
+				}));
+			}
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while loading", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IllegalStateException(cause);
+		} finally {
+			executor.shutdownNow();
+		}
+		return cast(results);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> List<T> cast(Object[] results) {
+		return (List<T>) Arrays.asList(results);
+	}
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2012-2013 ${developer}, <http://windwaker.me>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package me.windwaker.permissions.io;
+
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * Changes made to a manager while its writes were suspended, so they can be applied to the manager that takes over
+ * the storage.
+ * @param <T> type of entity
+ * @author Windwaker
+ */
+public class PendingChanges<T> {
+	private final Set<T> changed;
+	private final Set<String> removed;
+	private final String defaultGroup;
+
+	/**
+	 * Constructs new pending changes.
+	 * @param changed entities
+	 * @param removed names of entities
+	 */
+	public PendingChanges(Set<T> changed, Set<String> removed) {
+		this(changed, removed, null);
+	}
+
+	/**
+	 * Constructs new pending changes of groups.
+	 * @param changed entities
+	 * @param removed names of entities
+	 * @param defaultGroup name of the default group if it was changed, else null
+	 */
+	public PendingChanges(Set<T> changed, Set<String> removed, String defaultGroup) {
+		this.changed = Collections.unmodifiableSet(changed);
+		this.removed = Collections.unmodifiableSet(removed);
+		this.defaultGroup = defaultGroup;
+	}
+
+	/**
+	 * Gets the entities that were added or changed.
+	 * @return changed entities
+	 */
+	public Set<T> getChanged() {
+		return changed;
+	}
+
+	/**
+	 * Gets the names of the entities that were removed.
+	 * @return removed names
+	 */
+	public Set<String> getRemoved() {
+		return removed;
+	}
+
+	/**
+	 * Gets the name of the default group if it was changed.
+	 * @return name of the default group or null
+	 */
+	public String getDefaultGroup() {
+		return defaultGroup;
+	}
+}
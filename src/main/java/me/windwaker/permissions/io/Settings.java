@@ -25,6 +25,7 @@ package me.windwaker.permissions.io;
 import java.io.File;
 
 import me.windwaker.permissions.WindPerms;
+import me.windwaker.permissions.io.sql.SqlDatabase;
 import me.windwaker.permissions.io.sql.SqlGroupManager;
 import me.windwaker.permissions.io.sql.SqlUserManager;
 import me.windwaker.permissions.io.yaml.YamlGroupManager;
@@ -68,8 +69,69 @@ public class Settings extends ConfigurationHolderConfiguration {
 	 * Password for the SQL database
 	 */
 	public static final ConfigurationHolder SQL_PASSWORD = new ConfigurationHolder("unleashtheflow", "sql", "password");
+	/**
+	 * JDBC URL of the SQL database, overrides protocol, host and database name if set (e.g. 'jdbc:h2:plugins/WindPerms/permissions').
+	 */
+	public static final ConfigurationHolder SQL_URL = new ConfigurationHolder("", "sql", "url");
+	/**
+	 * Maximum number of open connections to the SQL database.
+	 */
+	public static final ConfigurationHolder SQL_POOL_SIZE = new ConfigurationHolder(4, "sql", "pool-size");
+	/**
+	 * Milliseconds between background writes of changed {@link me.windwaker.permissions.permissible.Group}s and {@link me.windwaker.permissions.permissible.User}s.
+	 */
+	public static final ConfigurationHolder SAVE_INTERVAL = new ConfigurationHolder(5000, "storage", "save-interval");
+	/**
+	 * Number of changed entities that triggers a background write before the interval elapses.
+	 */
+	public static final ConfigurationHolder SAVE_THRESHOLD = new ConfigurationHolder(500, "storage", "save-threshold");
+	/**
+	 * Size in bytes at which the journal of the YAML storage is compacted into 'groups.yml' or 'users.yml'.
+	 */
+	public static final ConfigurationHolder JOURNAL_COMPACT_SIZE = new ConfigurationHolder(1048576, "storage", "journal-compact-size");
+	/**
+	 * Seconds after which changes in the journal of the YAML storage are compacted into 'groups.yml' or 'users.yml'.
+	 */
+	public static final ConfigurationHolder JOURNAL_COMPACT_INTERVAL = new ConfigurationHolder(300, "storage", "journal-compact-interval");
+
+	/**
+	 * Number of threads that load groups and users at startup, 0 for one per processor and 1 to load on the main thread only.
+	 */
+	public static final ConfigurationHolder LOAD_THREADS = new ConfigurationHolder(0, "storage", "load-threads");
+	/**
+	 * Whether a binary snapshot of the YAML storage is written on shutdown and read on startup instead of 'groups.yml' and 'users.yml' if they did not change.
+	 */
+	public static final ConfigurationHolder SNAPSHOT_ENABLED = new ConfigurationHolder(true, "storage", "snapshot");
+	/**
+	 * Milliseconds between checks of 'groups.yml' and 'users.yml' for changes made by hand or other tools, 0 disables the check.
+	 */
+	public static final ConfigurationHolder WATCH_INTERVAL = new ConfigurationHolder(1000, "storage", "watch-interval");
+	/**
+	 * Milliseconds a changed 'groups.yml' or 'users.yml' has to stay unchanged before the changes are applied.
+	 */
+	public static final ConfigurationHolder WATCH_DEBOUNCE = new ConfigurationHolder(2000, "storage", "watch-debounce");
+
+	/**
+	 * Whether {@link me.windwaker.permissions.permissible.User}s are loaded on login or first lookup instead of at startup.
+	 */
+	public static final ConfigurationHolder LAZY_LOADING = new ConfigurationHolder(false, "users", "lazy-loading");
+	/**
+	 * Seconds a lazily loaded {@link me.windwaker.permissions.permissible.User} stays in memory after the player disconnects.
+	 */
+	public static final ConfigurationHolder UNLOAD_DELAY = new ConfigurationHolder(300, "users", "unload-delay");
+
+	/**
+	 * Number of resolved nodes cached per subject, 0 disables the cache.
+	 */
+	public static final ConfigurationHolder DECISION_CACHE_SIZE = new ConfigurationHolder(32, "cache", "decision-cache-size");
+
+	/**
+	 * Seconds between writes of the metrics to 'plugins/WindPerms/metrics.txt', 0 disables the file.
+	 */
+	public static final ConfigurationHolder METRICS_INTERVAL = new ConfigurationHolder(60, "metrics", "write-interval");
 
 	private final WindPerms plugin;
+	private SqlDatabase database;
 
 	/**
 	 * Constructs a new Settings configuration at 'plugins/WindPerms/config.yml'
@@ -86,7 +148,7 @@ public class Settings extends ConfigurationHolderConfiguration {
 	 */
 	public GroupManager createGroupManager() {
 		if (SQL_ENABLED.getBoolean()) {
-			return new SqlGroupManager();
+			return new SqlGroupManager(plugin, getDatabase());
 		}
 		return new YamlGroupManager(plugin);
 	}
@@ -94,13 +156,22 @@ public class Settings extends ConfigurationHolderConfiguration {
 	/**
 	 * Creates a user manager from the specified settings.
 	 *
+	 * @param groupManager of the groups the users are in
 	 * @return a new UserManager
 	 */
-	public UserManager createUserManager() {
+	public UserManager createUserManager(GroupManager groupManager) {
 		if (SQL_ENABLED.getBoolean()) {
-			return new SqlUserManager();
+			return new SqlUserManager(plugin.getLogger(), groupManager, getDatabase());
+		}
+		return new YamlUserManager(plugin.getLogger(), groupManager, new File(plugin.getDataFolder(), "users.yml"));
+	}
+
+	private SqlDatabase getDatabase() {
+		// the group and user manager share one connection pool
+		if (database == null || database.isClosed()) {
+			database = new SqlDatabase();
 		}
-		return new YamlUserManager(plugin);
+		return database;
 	}
 
 	@Override
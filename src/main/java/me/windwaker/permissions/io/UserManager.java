@@ -22,8 +22,11 @@
  */
 package me.windwaker.permissions.io;
 
+import java.util.Collection;
+import java.util.List;
 import java.util.Set;
 
+import me.windwaker.permissions.permissible.Group;
 import me.windwaker.permissions.permissible.User;
 
 /**
@@ -42,7 +45,8 @@ public interface UserManager {
 	public void save();
 
 	/**
-	 * Adds a user
+	 * Adds a user in the default group. The user can be used as soon as this returns; it is persisted
+	 * asynchronously.
 	 * @param username
 	 */
 	public void addUser(String username);
@@ -59,6 +63,12 @@ public interface UserManager {
 	 */
 	public void saveUser(User user);
 
+	/**
+	 * Writes the specified users, together with any other pending changes, in a single batch before returning.
+	 * @param users to write
+	 */
+	public void saveUsers(Collection<User> users);
+
 	/**
 	 * Load a user from disk.
 	 * @param user
@@ -66,20 +76,82 @@ public interface UserManager {
 	public void loadUser(String user);
 
 	/**
-	 * Gets a user from said name
+	 * Gets a user from said name, ignoring case, without reading the storage. With lazy loading, a stored user
+	 * that is not in memory is loaded in the background and null is returned until it is loaded.
+	 * @param name
+	 * @return user or null if not in memory
+	 */
+	public User getLoadedUser(String name);
+
+	/**
+	 * Whether a user with said name is stored, ignoring case, whether or not it is in memory. Does not read the
+	 * storage.
+	 * @param name
+	 * @return true if stored
+	 */
+	public boolean hasUser(String name);
+
+	/**
+	 * Gets a user from said name, ignoring case.
+	 * Implementations must answer this in constant time since it is called for every permission check.
 	 * @param name
 	 * @return user
 	 */
 	public User getUser(String name);
 
 	/**
-	 * Gets all defined users.
+	 * Gets all defined users. Implementations that load users on demand may read users that are not in memory
+	 * from storage while iterating.
 	 * @return all users.
 	 */
 	public Set<User> getUsers();
 
+	/**
+	 * Gets the names of the users in a group, including users that are not in memory, without reading them from
+	 * storage.
+	 * @param group of the users
+	 * @return names of the users in the group
+	 */
+	public List<String> getUserNames(Group group);
+
+	/**
+	 * Called when a player logs in. Loads the user if needed and keeps it in memory while the player is online.
+	 * @param username of player
+	 */
+	public void startSession(String username);
+
+	/**
+	 * Called when a player disconnects. Implementations that load users on demand unload the user after a grace
+	 * period unless the player logs in again.
+	 * @param username of player
+	 */
+	public void endSession(String username);
+
 	/**
 	 * Clears all users.
 	 */
 	public void clear();
+
+	/**
+	 * Stops writing to the storage, e.g. while another manager loads from it. Changes are kept in memory until
+	 * {@link #resume()} writes them or {@link #drainChanges()} hands them over.
+	 */
+	public void suspend();
+
+	/**
+	 * Writes the changes made while suspended and continues writing.
+	 */
+	public void resume();
+
+	/**
+	 * Removes and returns the changes made while suspended without writing them.
+	 * @return pending changes
+	 */
+	public PendingChanges<User> drainChanges();
+
+	/**
+	 * Writes pending changes, unless suspended, and stops any background work. Changes to a closed manager are
+	 * rejected with an {@link IllegalStateException}.
+	 */
+	public void close();
 }
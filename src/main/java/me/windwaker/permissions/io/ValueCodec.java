@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2012-2013 ${developer}, <http://windwaker.me>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package me.windwaker.permissions.io;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binary encoding of metadata values with their type, shared by the storage backends: the YAML journal and
+ * snapshot write values in it, the SQL tables store lists and maps in it.
+ * @author Windwaker
+ */
+public final class ValueCodec {
+	private static final byte NULL = 0;
+	private static final byte BOOLEAN = 1;
+	private static final byte INTEGER = 2;
+	private static final byte LONG = 3;
+	private static final byte DOUBLE = 4;
+	private static final byte STRING = 5;
+	private static final byte LIST = 6;
+	private static final byte MAP = 7;
+
+	private ValueCodec() {
+	}
+
+	/**
+	 * Writes a metadata value with its type, so it is read back as the same type.
+	 * @param out to write to
+	 * @param value to write; lists and maps are written with their elements, other objects as strings
+	 * @throws IOException on failure
+	 */
+	public static void writeValue(DataOutputStream out, Object value) throws IOException {
+		if (value == null) {
+			out.writeByte(NULL);
+		} else if (value instanceof Boolean) {
+			out.writeByte(BOOLEAN);
+			out.writeBoolean((Boolean) value);
+		} else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+			out.writeByte(INTEGER);
+			out.writeInt(((Number) value).intValue());
+		} else if (value instanceof Long) {
+			out.writeByte(LONG);
+			out.writeLong((Long) value);
+		} else if (value instanceof Double || value instanceof Float) {
+			out.writeByte(DOUBLE);
+			out.writeDouble(((Number) value).doubleValue());
+		} else if (value instanceof List) {
+			List<?> list = (List<?>) value;
+			out.writeByte(LIST);
+			out.writeInt(list.size());
+			for (Object element : list) {
+				writeValue(out, element);
+			}
+		} else if (value instanceof Map) {
+			Map<?, ?> map = (Map<?, ?>) value;
+			out.writeByte(MAP);
+			out.writeInt(map.size());
+			for (Map.Entry<?, ?> entry : map.entrySet()) {
+				writeString(out, String.valueOf(entry.getKey()));
+				writeValue(out, entry.getValue());
+			}
+		} else {
+			out.writeByte(STRING);
+			writeString(out, value.toString());
+		}
+	}
+
+	/**
+	 * Reads a metadata value written by {@link #writeValue(DataOutputStream, Object)}.
+	 * @param in to read from
+	 * @return value
+	 * @throws IOException on failure or an unknown type
+	 */
+	public static Object readValue(DataInputStream in) throws IOException {
+		byte type = in.readByte();
+		switch (type) {
+			case NULL:
+				return null;
+			case BOOLEAN:
+				return in.readBoolean();
+			case INTEGER:
+				return in.readInt();
+			case LONG:
+				return in.readLong();
+			case DOUBLE:
+				return in.readDouble();
+			case STRING:
+				return readString(in);
+			case LIST:
+				int length = in.readInt();
+				List<Object> list = new ArrayList<Object>(length);
+				for (int i = 0; i < length; i++) {
+					list.add(readValue(in));
+				}
+				return list;
+			case MAP:
+				int size = in.readInt();
+				Map<String, Object> map = new LinkedHashMap<String, Object>();
+				for (int i = 0; i < size; i++) {
+					String key = readString(in);
+					map.put(key, readValue(in));
+				}
+				return map;
+			default:
+				throw new IOException("Unknown value type " + type);
+		}
+	}
+
+	/**
+	 * Writes a string as its length and UTF-8 bytes.
+	 * @param out to write to
+	 * @param value to write
+	 * @throws IOException on failure
+	 */
+	public static void writeString(DataOutputStream out, String value) throws IOException {
+		byte[] bytes = value.getBytes("UTF-8");
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Reads a string written by {@link #writeString(DataOutputStream, String)}.
+	 * @param in to read from
+	 * @return string
+	 * @throws IOException on failure
+	 */
+	public static String readString(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+}
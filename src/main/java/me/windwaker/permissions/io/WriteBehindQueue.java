@@ -0,0 +1,229 @@
+/*
+ * Copyright (c) 2012-2013 ${developer}, <http://windwaker.me>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package me.windwaker.permissions.io;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Coalesces changes to entities into periodic writes on a background thread.
+ * <p>
+ * Changed entities are only marked dirty. The queue writes all dirty entities at once every interval, or as soon
+ * as the number of dirty entities reaches the threshold, and commits the storage only if a write changed it.
+ * @param <T> type of entity
+ * @author Windwaker
+ */
+public abstract class WriteBehindQueue<T> {
+	private final Set<T> dirty = Collections.newSetFromMap(new ConcurrentHashMap<T, Boolean>());
+	private final AtomicBoolean flushQueued = new AtomicBoolean();
+	private final ScheduledExecutorService executor;
+	private final Logger logger;
+	private final int threshold;
+	private volatile boolean uncommitted;
+	private volatile boolean suspended;
+	private final Runnable flushTask = new Runnable() {
+		@Override
+		public void run() {
+			flushQueued.set(false);
+			try {
+				flush();
+			} catch (RuntimeException e) {
+				logger.log(Level.SEVERE, "Failed to write pending changes", e);
+			}
+		}
+	};
+
+	/**
+	 * Constructs and starts a new queue.
+	 * @param name of the background thread
+	 * @param logger to report failures to
+	 * @param interval between writes in milliseconds
+	 * @param threshold of dirty entities that triggers an early write
+	 */
+	public WriteBehindQueue(final String name, Logger logger, long interval, int threshold) {
+		this.logger = logger;
+		this.threshold = threshold;
+		executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, name);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		executor.scheduleWithFixedDelay(flushTask, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Marks an entity as changed.
+	 * @param entity that changed
+	 */
+	public void markDirty(T entity) {
+		dirty.add(entity);
+		// a closed queue only keeps the change in memory
+		if (dirty.size() >= threshold && !executor.isShutdown() && flushQueued.compareAndSet(false, true)) {
+			executor.execute(flushTask);
+		}
+	}
+
+	/**
+	 * Whether a change of an entity is waiting to be written.
+	 * @param entity to check
+	 * @return true if dirty
+	 */
+	public boolean isDirty(T entity) {
+		return dirty.contains(entity);
+	}
+
+	/**
+	 * Forgets a pending change, e.g. because the entity was removed.
+	 * @param entity to forget
+	 */
+	public void discard(T entity) {
+		dirty.remove(entity);
+	}
+
+	/**
+	 * Marks the storage as changed outside of an entity, so it is committed on the next flush.
+	 */
+	public void markUncommitted() {
+		uncommitted = true;
+	}
+
+	/**
+	 * Writes all dirty entities and commits the storage if anything changed. Called periodically on the background
+	 * thread and may be called directly to write synchronously.
+	 */
+	public void flush() {
+		flush(Collections.<T>emptySet());
+	}
+
+	/**
+	 * Writes the specified entities together with all dirty entities in one batch and commits the storage if
+	 * anything changed.
+	 * @param entities to write
+	 */
+	public synchronized void flush(Collection<T> entities) {
+		if (suspended) {
+			dirty.addAll(entities);
+			return;
+		}
+		Set<T> pending = new LinkedHashSet<T>(entities);
+		for (Iterator<T> i = dirty.iterator(); i.hasNext();) {
+			pending.add(i.next());
+			i.remove();
+		}
+		List<T> batch = new ArrayList<T>(pending);
+		try {
+			boolean changed = !batch.isEmpty() && write(batch);
+			if (changed || uncommitted) {
+				uncommitted = false;
+				commit();
+			}
+		} catch (IOException e) {
+			// nothing of the batch counts as written, it is written again with the next flush
+			dirty.addAll(batch);
+			uncommitted = true;
+			logger.severe("Failed to write " + batch.size() + " changes, retrying with the next write: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Writes everything pending and then stops writing until {@link #resume()}; changed entities are only kept
+	 * dirty meanwhile.
+	 */
+	public synchronized void suspend() {
+		flush();
+		suspended = true;
+	}
+
+	/**
+	 * Continues writing after {@link #suspend()} and writes the entities changed meanwhile.
+	 */
+	public synchronized void resume() {
+		suspended = false;
+		flush();
+	}
+
+	/**
+	 * Whether writing is suspended.
+	 * @return true if suspended
+	 */
+	public boolean isSuspended() {
+		return suspended;
+	}
+
+	/**
+	 * Removes and returns all dirty entities without writing them.
+	 * @return entities that changed since the last write
+	 */
+	public synchronized Set<T> drain() {
+		Set<T> drained = new LinkedHashSet<T>();
+		for (Iterator<T> i = dirty.iterator(); i.hasNext();) {
+			drained.add(i.next());
+			i.remove();
+		}
+		return drained;
+	}
+
+	/**
+	 * Stops the background thread and writes anything still pending, unless writing is suspended.
+	 */
+	public void close() {
+		executor.shutdown();
+		try {
+			executor.awaitTermination(10, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		flush();
+	}
+
+	/**
+	 * Writes a batch of dirty entities to the storage.
+	 * @param batch to write
+	 * @return true if the serialized content of any entity changed
+	 * @throws IOException if the batch could not be written, in which case it is marked dirty again
+	 */
+	protected abstract boolean write(List<T> batch) throws IOException;
+
+	/**
+	 * Commits the storage, e.g. by saving the file to disk.
+	 * @throws IOException if the storage could not be committed, in which case the batch is marked dirty again
+	 */
+	protected abstract void commit() throws IOException;
+}
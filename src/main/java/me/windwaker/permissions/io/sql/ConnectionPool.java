@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2012-2013 ${developer}, <http://windwaker.me>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package me.windwaker.permissions.io.sql;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Minimal bounded pool of JDBC connections.
+ * @author Windwaker
+ */
+public class ConnectionPool {
+	private static final long TIMEOUT = 30;
+	private final String url;
+	private final String username;
+	private final String password;
+	private final BlockingQueue<Connection> idle = new LinkedBlockingQueue<Connection>();
+	private final Semaphore permits;
+	private volatile boolean closed;
+
+	/**
+	 * Constructs a new pool.
+	 * @param url of the database
+	 * @param username to connect with
+	 * @param password to connect with
+	 * @param size maximum number of connections in use at once
+	 */
+	public ConnectionPool(String url, String username, String password, int size) {
+		this.url = url;
+		this.username = username;
+		this.password = password;
+		permits = new Semaphore(size, true);
+	}
+
+	/**
+	 * Borrows a connection, opening a new one if no idle connection is available. The connection must be given
+	 * back with {@link #release(Connection)}.
+	 * @return connection
+	 * @throws SQLException if no connection could be opened or the pool is exhausted for too long
+	 */
+	public Connection acquire() throws SQLException {
+		if (closed) {
+			throw new SQLException("Connection pool is closed.");
+		}
+		try {
+			if (!permits.tryAcquire(TIMEOUT, TimeUnit.SECONDS)) {
+				throw new SQLException("Timed out waiting for a database connection.");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for a database connection.");
+		}
+		try {
+			Connection connection;
+			while ((connection = idle.poll()) != null) {
+				if (!connection.isClosed()) {
+					return connection;
+				}
+			}
+			return DriverManager.getConnection(url, username, password);
+		} catch (SQLException e) {
+			permits.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Gives back a borrowed connection.
+	 * @param connection to give back
+	 */
+	public void release(Connection connection) {
+		try {
+			if (closed || connection.isClosed() || !connection.getAutoCommit()) {
+				// never hand out a closed connection or one with an unfinished transaction
+				connection.close();
+			} else {
+				idle.offer(connection);
+			}
+		} catch (SQLException ignored) {
+		} finally {
+			permits.release();
+		}
+	}
+
+	/**
+	 * Closes all idle connections. Borrowed connections are closed when they are given back.
+	 */
+	public void close() {
+		closed = true;
+		Connection connection;
+		while ((connection = idle.poll()) != null) {
+			try {
+				connection.close();
+			} catch (SQLException ignored) {
+			}
+		}
+	}
+}
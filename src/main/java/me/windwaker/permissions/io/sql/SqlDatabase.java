@@ -0,0 +1,446 @@
+/*
+ * Copyright (c) 2012-2013 ${developer}, <http://windwaker.me>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package me.windwaker.permissions.io.sql;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import me.windwaker.permissions.io.Settings;
+import me.windwaker.permissions.io.ValueCodec;
+
+import org.spout.api.data.DataValue;
+
+/**
+ * Shared access to the SQL database used by {@link SqlGroupManager} and {@link SqlUserManager}.
+ * <p>
+ * Every table is keyed by the lower-cased name of its subject, so lookups are index hits regardless of case:
+ * <pre>
+ * permissions_groups            (name_key, name)
+ * permissions_group_inheritance (group_key, parent, inherit)
+ * permissions_group_nodes       (group_key, node, state)
+ * permissions_group_metadata    (group_key, meta_key, meta_value, meta_type)
+ * permissions_users             (name_key, name, group_name)
+ * permissions_user_nodes        (user_key, node, state)
+ * permissions_user_metadata     (user_key, meta_key, meta_value, meta_type)
+ * permissions_settings          (setting_key, setting_value)
+ * </pre>
+ * Metadata values are stored as text with a type, so numbers and booleans are read back as such. Lists and maps are
+ * stored in the encoding of {@link ValueCodec#writeValue(DataOutputStream, Object)} as hex digits.
+ * @author Windwaker
+ */
+public class SqlDatabase {
+	private static final String[] SCHEMA = {
+			"CREATE TABLE IF NOT EXISTS permissions_groups (name_key VARCHAR(64) NOT NULL PRIMARY KEY, name VARCHAR(64) NOT NULL)",
+			"CREATE TABLE IF NOT EXISTS permissions_group_inheritance (group_key VARCHAR(64) NOT NULL, parent VARCHAR(64) NOT NULL, inherit SMALLINT NOT NULL, PRIMARY KEY (group_key, parent))",
+			"CREATE TABLE IF NOT EXISTS permissions_group_nodes (group_key VARCHAR(64) NOT NULL, node VARCHAR(255) NOT NULL, state SMALLINT NOT NULL, PRIMARY KEY (group_key, node))",
+			"CREATE TABLE IF NOT EXISTS permissions_group_metadata (group_key VARCHAR(64) NOT NULL, meta_key VARCHAR(255) NOT NULL, meta_value VARCHAR(1024), meta_type SMALLINT, PRIMARY KEY (group_key, meta_key))",
+			"CREATE TABLE IF NOT EXISTS permissions_users (name_key VARCHAR(64) NOT NULL PRIMARY KEY, name VARCHAR(64) NOT NULL, group_name VARCHAR(64) NOT NULL)",
+			"CREATE TABLE IF NOT EXISTS permissions_user_nodes (user_key VARCHAR(64) NOT NULL, node VARCHAR(255) NOT NULL, state SMALLINT NOT NULL, PRIMARY KEY (user_key, node))",
+			"CREATE TABLE IF NOT EXISTS permissions_user_metadata (user_key VARCHAR(64) NOT NULL, meta_key VARCHAR(255) NOT NULL, meta_value VARCHAR(1024), meta_type SMALLINT, PRIMARY KEY (user_key, meta_key))",
+			"CREATE TABLE IF NOT EXISTS permissions_settings (setting_key VARCHAR(64) NOT NULL PRIMARY KEY, setting_value VARCHAR(255))"
+	};
+	// tables created before metadata values were typed lack the type column
+	private static final String[] METADATA_TABLES = {"permissions_group_metadata", "permissions_user_metadata"};
+	// types of metadata values, rows without a type hold strings
+	private static final int STRING = 0;
+	private static final int BOOLEAN = 1;
+	private static final int INTEGER = 2;
+	private static final int LONG = 3;
+	private static final int DOUBLE = 4;
+	private static final int ENCODED = 5;
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+	private final ConnectionPool pool;
+	private int references;
+	private boolean closed;
+
+	/**
+	 * Constructs a new database from the SQL settings. 'sql.url' is used as the JDBC URL if set, e.g. for an
+	 * embedded H2 or SQLite database, otherwise the URL is built from protocol, host and database name.
+	 */
+	public SqlDatabase() {
+		this(url(), Settings.SQL_USERNAME.getString(), Settings.SQL_PASSWORD.getString(), Settings.SQL_POOL_SIZE.getInt());
+	}
+
+	/**
+	 * Constructs a new database.
+	 * @param url JDBC URL
+	 * @param username to connect as
+	 * @param password of user
+	 * @param poolSize maximum number of pooled connections
+	 */
+	public SqlDatabase(String url, String username, String password, int poolSize) {
+		pool = new ConnectionPool(url, username, password, poolSize);
+	}
+
+	private static String url() {
+		String url = Settings.SQL_URL.getString();
+		if (url == null || url.isEmpty()) {
+			url = "jdbc:" + Settings.SQL_PROTOCOL.getString() + "://" + Settings.SQL_HOST.getString() + "/" + Settings.SQL_DATABASE_NAME.getString();
+		}
+		return url;
+	}
+
+	/**
+	 * Registers a manager using the database.
+	 */
+	public synchronized void retain() {
+		references++;
+	}
+
+	/**
+	 * Unregisters a manager using the database, closing the connection pool once no manager is left.
+	 */
+	public synchronized void release() {
+		if (--references == 0) {
+			closed = true;
+			pool.close();
+		}
+	}
+
+	/**
+	 * Whether the last manager using the database has released it.
+	 * @return true if closed
+	 */
+	public synchronized boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Borrows a connection, which must be given back with {@link #release(Connection)}.
+	 * @return connection
+	 * @throws SQLException if no connection is available
+	 */
+	public Connection getConnection() throws SQLException {
+		return pool.acquire();
+	}
+
+	/**
+	 * Gives back a borrowed connection.
+	 * @param connection to give back
+	 */
+	public void release(Connection connection) {
+		pool.release(connection);
+	}
+
+	/**
+	 * Creates any missing tables.
+	 * @throws SQLException if the schema could not be created
+	 */
+	public void createSchema() throws SQLException {
+		Connection connection = getConnection();
+		try {
+			Statement statement = connection.createStatement();
+			try {
+				for (String sql : SCHEMA) {
+					statement.executeUpdate(sql);
+				}
+				for (String table : METADATA_TABLES) {
+					try {
+						statement.executeQuery("SELECT meta_type FROM " + table + " WHERE 1 = 0").close();
+					} catch (SQLException missing) {
+						statement.executeUpdate("ALTER TABLE " + table + " ADD COLUMN meta_type SMALLINT");
+					}
+				}
+			} finally {
+				statement.close();
+			}
+		} finally {
+			release(connection);
+		}
+	}
+
+	/**
+	 * Reads subject names keyed by their lower-cased name.
+	 * @param connection to use
+	 * @param table to read
+	 * @return names by key
+	 * @throws SQLException on failure
+	 */
+	public static Map<String, String> readNames(Connection connection, String table) throws SQLException {
+		Map<String, String> names = new LinkedHashMap<String, String>();
+		PreparedStatement statement = connection.prepareStatement("SELECT name_key, name FROM " + table);
+		try {
+			ResultSet result = statement.executeQuery();
+			while (result.next()) {
+				names.put(result.getString(1), result.getString(2));
+			}
+		} finally {
+			statement.close();
+		}
+		return names;
+	}
+
+	/**
+	 * Reads boolean states (nodes or inheritance) grouped by subject key.
+	 * @param connection to use
+	 * @param sql selecting subject key, name and state, with one parameter for the key if key is not null
+	 * @param key of the subject to read or null to read all subjects
+	 * @return states by subject key
+	 * @throws SQLException on failure
+	 */
+	public static Map<String, Map<String, Boolean>> readStates(Connection connection, String sql, String key) throws SQLException {
+		Map<String, Map<String, Boolean>> states = new LinkedHashMap<String, Map<String, Boolean>>();
+		PreparedStatement statement = connection.prepareStatement(sql);
+		try {
+			if (key != null) {
+				statement.setString(1, key);
+			}
+			ResultSet result = statement.executeQuery();
+			while (result.next()) {
+				Map<String, Boolean> subject = states.get(result.getString(1));
+				if (subject == null) {
+					subject = new LinkedHashMap<String, Boolean>();
+					states.put(result.getString(1), subject);
+				}
+				subject.put(result.getString(2), result.getInt(3) != 0);
+			}
+		} finally {
+			statement.close();
+		}
+		return states;
+	}
+
+	/**
+	 * Reads metadata grouped by subject key.
+	 * @param connection to use
+	 * @param sql selecting subject key, metadata key, value and type, with one parameter for the key if key is not
+	 *            null
+	 * @param key of the subject to read or null to read all subjects
+	 * @return metadata by subject key
+	 * @throws SQLException on failure
+	 */
+	public static Map<String, Map<String, DataValue>> readMetadata(Connection connection, String sql, String key) throws SQLException {
+		Map<String, Map<String, DataValue>> metadata = new LinkedHashMap<String, Map<String, DataValue>>();
+		PreparedStatement statement = connection.prepareStatement(sql);
+		try {
+			if (key != null) {
+				statement.setString(1, key);
+			}
+			ResultSet result = statement.executeQuery();
+			while (result.next()) {
+				Map<String, DataValue> subject = metadata.get(result.getString(1));
+				if (subject == null) {
+					subject = new LinkedHashMap<String, DataValue>();
+					metadata.put(result.getString(1), subject);
+				}
+				subject.put(result.getString(2), new DataValue(parseValue(result.getString(3), result.getInt(4))));
+			}
+		} finally {
+			statement.close();
+		}
+		return metadata;
+	}
+
+	/**
+	 * Adds a delete of all rows of a subject to a batch.
+	 * @param statement deleting by subject key
+	 * @param key of subject
+	 * @throws SQLException on failure
+	 */
+	public static void addDelete(PreparedStatement statement, String key) throws SQLException {
+		statement.setString(1, key);
+		statement.addBatch();
+	}
+
+	/**
+	 * Adds inserts of boolean states (nodes or inheritance) of a subject to a batch.
+	 * @param statement inserting subject key, name and state
+	 * @param key of subject
+	 * @param states to insert, may be null
+	 * @throws SQLException on failure
+	 */
+	@SuppressWarnings("unchecked")
+	public static void addStates(PreparedStatement statement, String key, Object states) throws SQLException {
+		if (states == null) {
+			return;
+		}
+		for (Map.Entry<String, Boolean> entry : ((Map<String, Boolean>) states).entrySet()) {
+			statement.setString(1, key);
+			statement.setString(2, entry.getKey());
+			statement.setInt(3, entry.getValue() ? 1 : 0);
+			statement.addBatch();
+		}
+	}
+
+	/**
+	 * Adds inserts of metadata of a subject to a batch.
+	 * @param statement inserting subject key, metadata key, value and type
+	 * @param key of subject
+	 * @param metadata to insert, may be null
+	 * @throws SQLException on failure
+	 */
+	@SuppressWarnings("unchecked")
+	public static void addMetadata(PreparedStatement statement, String key, Object metadata) throws SQLException {
+		if (metadata == null) {
+			return;
+		}
+		for (Map.Entry<String, Object> entry : ((Map<String, Object>) metadata).entrySet()) {
+			Object value = entry.getValue();
+			int type = typeOf(value);
+			statement.setString(1, key);
+			statement.setString(2, entry.getKey());
+			statement.setString(3, value != null ? formatValue(value, type) : null);
+			statement.setInt(4, type);
+			statement.addBatch();
+		}
+	}
+
+	private static int typeOf(Object value) {
+		if (value instanceof Boolean) {
+			return BOOLEAN;
+		} else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+			return INTEGER;
+		} else if (value instanceof Long) {
+			return LONG;
+		} else if (value instanceof Double || value instanceof Float) {
+			return DOUBLE;
+		} else if (value instanceof List || value instanceof Map) {
+			return ENCODED;
+		}
+		return STRING;
+	}
+
+	private static String formatValue(Object value, int type) throws SQLException {
+		if (type == DOUBLE) {
+			return Double.toString(((Number) value).doubleValue());
+		}
+		if (type != ENCODED) {
+			return value.toString();
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try {
+			DataOutputStream out = new DataOutputStream(bytes);
+			ValueCodec.writeValue(out, value);
+			out.flush();
+		} catch (IOException e) {
+			throw new SQLException("Failed to encode metadata value: " + e.getMessage(), e);
+		}
+		StringBuilder hex = new StringBuilder(bytes.size() * 2);
+		for (byte b : bytes.toByteArray()) {
+			hex.append(HEX[(b >> 4) & 0xF]).append(HEX[b & 0xF]);
+		}
+		return hex.toString();
+	}
+
+	private static Object parseValue(String value, int type) {
+		if (value == null) {
+			return null;
+		}
+		try {
+			switch (type) {
+				case BOOLEAN:
+					return Boolean.valueOf(value);
+				case INTEGER:
+					return Integer.valueOf(value);
+				case LONG:
+					return Long.valueOf(value);
+				case DOUBLE:
+					return Double.valueOf(value);
+				case ENCODED:
+					byte[] bytes = new byte[value.length() / 2];
+					for (int i = 0; i < bytes.length; i++) {
+						bytes[i] = (byte) Integer.parseInt(value.substring(i * 2, i * 2 + 2), 16);
+					}
+					return ValueCodec.readValue(new DataInputStream(new ByteArrayInputStream(bytes)));
+				default:
+					return value;
+			}
+		} catch (NumberFormatException e) {
+			// a value edited in the database that does not match its type is kept as text
+			return value;
+		} catch (IOException e) {
+			return value;
+		}
+	}
+
+	/**
+	 * Prepares a statement and adds it to the statements to close with {@link #closeAll(List)}.
+	 * @param connection to prepare on
+	 * @param statements to add the statement to
+	 * @param sql of statement
+	 * @return prepared statement
+	 * @throws SQLException on failure
+	 */
+	public static PreparedStatement prepare(Connection connection, List<PreparedStatement> statements, String sql) throws SQLException {
+		PreparedStatement statement = connection.prepareStatement(sql);
+		statements.add(statement);
+		return statement;
+	}
+
+	/**
+	 * Executes the batches of statements in order.
+	 * @param statements to execute
+	 * @throws SQLException on failure
+	 */
+	public static void executeAll(PreparedStatement... statements) throws SQLException {
+		for (PreparedStatement statement : statements) {
+			statement.executeBatch();
+		}
+	}
+
+	/**
+	 * Closes statements, ignoring failures.
+	 * @param statements to close
+	 */
+	public static void closeAll(List<PreparedStatement> statements) {
+		for (PreparedStatement statement : statements) {
+			try {
+				statement.close();
+			} catch (SQLException ignored) {
+			}
+		}
+	}
+
+	/**
+	 * Rolls back the current transaction of a connection, ignoring failures.
+	 * @param connection to roll back
+	 */
+	public static void rollback(Connection connection) {
+		try {
+			connection.rollback();
+		} catch (SQLException ignored) {
+		}
+	}
+
+	/**
+	 * Restores auto-commit on a connection, ignoring failures.
+	 * @param connection to restore
+	 */
+	public static void restoreAutoCommit(Connection connection) {
+		try {
+			connection.setAutoCommit(true);
+		} catch (SQLException ignored) {
+		}
+	}
+}
@@ -22,69 +22,290 @@
  */
 package me.windwaker.permissions.io.sql;
 
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
 
-import me.windwaker.permissions.io.GroupManager;
+import me.windwaker.permissions.WindPerms;
+import me.windwaker.permissions.io.AbstractGroupManager;
+import me.windwaker.permissions.io.NameIndex;
+import me.windwaker.permissions.io.ParallelLoader;
 import me.windwaker.permissions.permissible.Group;
+import me.windwaker.permissions.trace.Trace;
+import me.windwaker.permissions.trace.TraceCategory;
 
-/*
- *            ------------------------------
- * Table:     |     permissions_groups      |
- *            ------------------------------
- * Fields:    |  name  |  def  |  per_world |
- *            ------------------------------
- * Data Type: |  text  |char(1)|   char(1)  |
- *            ------------------------------
+import org.spout.api.data.DataValue;
+
+/**
+ * SQL implementation of GroupManager. See {@link SqlDatabase} for the schema.
+ * @author Windwaker
  */
-public class SqlGroupManager implements GroupManager {
-	@Override
-	public void load() {
+public class SqlGroupManager extends AbstractGroupManager {
+	private static final String SELECT_NODES = "SELECT group_key, node, state FROM permissions_group_nodes";
+	private static final String SELECT_METADATA = "SELECT group_key, meta_key, meta_value, meta_type FROM permissions_group_metadata";
+	private static final String SELECT_INHERITANCE = "SELECT group_key, parent, inherit FROM permissions_group_inheritance";
+	private static final String DEFAULT_GROUP = "default-group";
+	private final SqlDatabase database;
+	private final Set<String> pendingDeletes = Collections.synchronizedSet(new LinkedHashSet<String>());
+	private final AtomicReference<String> pendingDefault = new AtomicReference<String>();
+
+	public SqlGroupManager(WindPerms plugin, SqlDatabase database) {
+		super(plugin.getLogger());
+		this.database = database;
+		database.retain();
 	}
 
 	@Override
-	public void save() {
+	protected void readAll() {
+		Map<String, String> names;
+		Map<String, Map<String, Boolean>> nodes;
+		Map<String, Map<String, DataValue>> metadata;
+		Map<String, Map<String, Boolean>> inherited;
+		String defaultName;
+		try {
+			database.createSchema();
+			Connection connection = database.getConnection();
+			try {
+				// one query per table instead of one per group
+				names = SqlDatabase.readNames(connection, "permissions_groups");
+				nodes = SqlDatabase.readStates(connection, SELECT_NODES, null);
+				metadata = SqlDatabase.readMetadata(connection, SELECT_METADATA, null);
+				inherited = SqlDatabase.readStates(connection, SELECT_INHERITANCE, null);
+				defaultName = readDefault(connection);
+			} finally {
+				database.release(connection);
+			}
+		} catch (SQLException e) {
+			logger.severe("Failed to load group data: " + e.getMessage());
+			return;
+		}
+
+		if (names.isEmpty()) {
+			if (Trace.PERSIST) {
+				Trace.log(TraceCategory.PERSIST, Level.FINE, "No group data found, loading defaults.");
+			}
+			addDefaults();
+			return;
+		}
+
+		logger.info("Loading group data...");
+		final Map<String, Map<String, Boolean>> groupNodes = nodes;
+		final Map<String, Map<String, DataValue>> groupMetadata = metadata;
+		List<Group> loaded = ParallelLoader.load(names.values(), new ParallelLoader.Task<Group>() {
+			@Override
+			public Group load(String name) {
+				String key = NameIndex.canonical(name);
+				return createGroup(name, groupNodes.get(key), groupMetadata.get(key));
+			}
+		});
+		for (Group group : loaded) {
+			groups.put(group);
+		}
+
+		// Load inheritance - must be loaded after all other groups are loaded.
+		Map<Group, Map<Group, Boolean>> edges = new LinkedHashMap<Group, Map<Group, Boolean>>();
+		for (Map.Entry<String, Map<String, Boolean>> entry : inherited.entrySet()) {
+			Group group = getGroup(entry.getKey());
+			if (group != null) {
+				edges.put(group, readInheritance(group, entry.getValue()));
+			}
+		}
+		linkInheritance(edges);
+
+		defaultGroup = getGroup(defaultName);
+		// remember what is in the database so unchanged groups are not written again
+		for (Group group : groups.values()) {
+			remember(group);
+		}
+		logger.info("Group data loaded. " + groups.size() + " unique groups loaded!");
 	}
 
-	@Override
-	public void addGroup(String name) {
+	private void addDefaults() {
+		Group guest = new Group(this, "guest");
+		groups.put(guest);
+		saveGroup(guest);
+		setDefaultGroup(guest);
 	}
 
-	@Override
-	public void removeGroup(String name) {
+	private String readDefault(Connection connection) throws SQLException {
+		PreparedStatement statement = connection.prepareStatement("SELECT setting_value FROM permissions_settings WHERE setting_key = ?");
+		try {
+			statement.setString(1, DEFAULT_GROUP);
+			ResultSet result = statement.executeQuery();
+			return result.next() ? result.getString(1) : null;
+		} finally {
+			statement.close();
+		}
 	}
 
-	@Override
-	public void saveGroup(Group group) {
+	private Group createGroup(String name, Map<String, Boolean> nodes, Map<String, DataValue> metadata) {
+		if (Trace.PERSIST) {
+			Trace.log(TraceCategory.PERSIST, Level.FINER, "Loading group {0}", name);
+		}
+		Group group = new Group(this, name);
+		group.initialize(nodes, metadata);
+		return group;
 	}
 
-	@Override
-	public void loadGroup(String group) {
+	private Map<Group, Boolean> readInheritance(Group group, Map<String, Boolean> inherited) {
+		if (Trace.INHERITANCE) {
+			Trace.log(TraceCategory.INHERITANCE, Level.FINER, "Loading inheritance of group {0}", group.getName());
+		}
+		Map<Group, Boolean> parents = new LinkedHashMap<Group, Boolean>();
+		for (Map.Entry<String, Boolean> entry : inherited.entrySet()) {
+			Group parent = getGroup(entry.getKey());
+			if (parent != null) {
+				parents.put(parent, entry.getValue());
+			}
+		}
+		return parents;
 	}
 
 	@Override
-	public Group getDefaultGroup() {
-		return null;
+	public void loadGroup(String name) {
+		String key = NameIndex.canonical(name);
+		try {
+			Connection connection = database.getConnection();
+			try {
+				Map<String, Map<String, Boolean>> nodes = SqlDatabase.readStates(connection, SELECT_NODES + " WHERE group_key = ?", key);
+				Map<String, Map<String, DataValue>> metadata = SqlDatabase.readMetadata(connection, SELECT_METADATA + " WHERE group_key = ?", key);
+				Group group = createGroup(name, nodes.get(key), metadata.get(key));
+				groups.put(group);
+				remember(group);
+			} finally {
+				database.release(connection);
+			}
+		} catch (SQLException e) {
+			logger.severe("Failed to load group " + name + ": " + e.getMessage());
+		}
 	}
 
 	@Override
-	public void setDefaultGroup(Group group) {
+	protected void store(Map<String, Map<String, Object>> serialized) throws IOException {
+		List<String> keys = new ArrayList<String>(serialized.size());
+		for (String name : serialized.keySet()) {
+			keys.add(NameIndex.canonical(name));
+		}
+		// stored groups are replaced as a whole, a pending delete of a removed group with the same name is obsolete
+		pendingDeletes.removeAll(keys);
+		try {
+			Connection connection = database.getConnection();
+			List<PreparedStatement> statements = new ArrayList<PreparedStatement>();
+			try {
+				connection.setAutoCommit(false);
+				PreparedStatement deleteGroups = SqlDatabase.prepare(connection, statements, "DELETE FROM permissions_groups WHERE name_key = ?");
+				PreparedStatement deleteNodes = SqlDatabase.prepare(connection, statements, "DELETE FROM permissions_group_nodes WHERE group_key = ?");
+				PreparedStatement deleteMetadata = SqlDatabase.prepare(connection, statements, "DELETE FROM permissions_group_metadata WHERE group_key = ?");
+				PreparedStatement deleteInheritance = SqlDatabase.prepare(connection, statements, "DELETE FROM permissions_group_inheritance WHERE group_key = ?");
+				PreparedStatement insertGroups = SqlDatabase.prepare(connection, statements, "INSERT INTO permissions_groups (name_key, name) VALUES (?, ?)");
+				PreparedStatement insertNodes = SqlDatabase.prepare(connection, statements, "INSERT INTO permissions_group_nodes (group_key, node, state) VALUES (?, ?, ?)");
+				PreparedStatement insertMetadata = SqlDatabase.prepare(connection, statements, "INSERT INTO permissions_group_metadata (group_key, meta_key, meta_value, meta_type) VALUES (?, ?, ?, ?)");
+				PreparedStatement insertInheritance = SqlDatabase.prepare(connection, statements, "INSERT INTO permissions_group_inheritance (group_key, parent, inherit) VALUES (?, ?, ?)");
+				int i = 0;
+				for (Map.Entry<String, Map<String, Object>> entry : serialized.entrySet()) {
+					String key = keys.get(i++);
+					SqlDatabase.addDelete(deleteGroups, key);
+					SqlDatabase.addDelete(deleteNodes, key);
+					SqlDatabase.addDelete(deleteMetadata, key);
+					SqlDatabase.addDelete(deleteInheritance, key);
+					insertGroups.setString(1, key);
+					insertGroups.setString(2, entry.getKey());
+					insertGroups.addBatch();
+					SqlDatabase.addStates(insertNodes, key, entry.getValue().get("permissions"));
+					SqlDatabase.addMetadata(insertMetadata, key, entry.getValue().get("metadata"));
+					SqlDatabase.addStates(insertInheritance, key, entry.getValue().get("inherited"));
+				}
+				SqlDatabase.executeAll(deleteGroups, deleteNodes, deleteMetadata, deleteInheritance, insertGroups, insertNodes, insertMetadata, insertInheritance);
+				connection.commit();
+			} catch (SQLException e) {
+				SqlDatabase.rollback(connection);
+				throw e;
+			} finally {
+				SqlDatabase.closeAll(statements);
+				SqlDatabase.restoreAutoCommit(connection);
+				database.release(connection);
+			}
+		} catch (SQLException e) {
+			throw new IOException("Failed to save group data: " + e.getMessage(), e);
+		}
 	}
 
 	@Override
-	public Group getGroup(String name) {
-		return null;
+	protected void delete(String name) {
+		pendingDeletes.add(NameIndex.canonical(name));
 	}
 
 	@Override
-	public Set<Group> getGroups() {
-		return null;
+	protected void storeDefault(String name) {
+		pendingDefault.set(name);
 	}
 
 	@Override
-	public void reloadInheritance() {
+	protected void commit() throws IOException {
+		// the pending changes are only cleared once they are committed, so a failed commit retries them
+		List<String> deletes;
+		synchronized (pendingDeletes) {
+			deletes = new ArrayList<String>(pendingDeletes);
+		}
+		String defaultName = pendingDefault.get();
+		if (deletes.isEmpty() && defaultName == null) {
+			return;
+		}
+		try {
+			Connection connection = database.getConnection();
+			List<PreparedStatement> statements = new ArrayList<PreparedStatement>();
+			try {
+				connection.setAutoCommit(false);
+				PreparedStatement deleteGroups = SqlDatabase.prepare(connection, statements, "DELETE FROM permissions_groups WHERE name_key = ?");
+				PreparedStatement deleteNodes = SqlDatabase.prepare(connection, statements, "DELETE FROM permissions_group_nodes WHERE group_key = ?");
+				PreparedStatement deleteMetadata = SqlDatabase.prepare(connection, statements, "DELETE FROM permissions_group_metadata WHERE group_key = ?");
+				PreparedStatement deleteInheritance = SqlDatabase.prepare(connection, statements, "DELETE FROM permissions_group_inheritance WHERE group_key = ?");
+				PreparedStatement deleteDefault = SqlDatabase.prepare(connection, statements, "DELETE FROM permissions_settings WHERE setting_key = ?");
+				PreparedStatement insertDefault = SqlDatabase.prepare(connection, statements, "INSERT INTO permissions_settings (setting_key, setting_value) VALUES (?, ?)");
+				for (String key : deletes) {
+					SqlDatabase.addDelete(deleteGroups, key);
+					SqlDatabase.addDelete(deleteNodes, key);
+					SqlDatabase.addDelete(deleteMetadata, key);
+					SqlDatabase.addDelete(deleteInheritance, key);
+				}
+				if (defaultName != null) {
+					SqlDatabase.addDelete(deleteDefault, DEFAULT_GROUP);
+					insertDefault.setString(1, DEFAULT_GROUP);
+					insertDefault.setString(2, defaultName);
+					insertDefault.addBatch();
+				}
+				SqlDatabase.executeAll(deleteGroups, deleteNodes, deleteMetadata, deleteInheritance, deleteDefault, insertDefault);
+				connection.commit();
+				pendingDeletes.removeAll(deletes);
+				// a default group set while committing stays pending
+				pendingDefault.compareAndSet(defaultName, null);
+			} catch (SQLException e) {
+				SqlDatabase.rollback(connection);
+				throw e;
+			} finally {
+				SqlDatabase.closeAll(statements);
+				SqlDatabase.restoreAutoCommit(connection);
+				database.release(connection);
+			}
+		} catch (SQLException e) {
+			throw new IOException("Failed to save group data: " + e.getMessage(), e);
+		}
 	}
 
 	@Override
-	public void clear() {
+	public void close() {
+		super.close();
+		database.release();
 	}
 }
@@ -22,57 +22,248 @@
  */
 package me.windwaker.permissions.io.sql;
 
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
-import me.windwaker.permissions.io.UserManager;
+import me.windwaker.permissions.WindPerms;
+import me.windwaker.permissions.io.AbstractUserManager;
+import me.windwaker.permissions.io.GroupManager;
+import me.windwaker.permissions.io.NameIndex;
+import me.windwaker.permissions.permissible.Group;
 import me.windwaker.permissions.permissible.User;
+import me.windwaker.permissions.trace.Trace;
+import me.windwaker.permissions.trace.TraceCategory;
 
-/*
- *            ------------------------------
- * Table:     |     permissions_users       |
- *            ------------------------------
- * Fields:    |    name     |     group     |
- *            ------------------------------
- * Data Type: |    text     |     text      |
- *            ------------------------------
+import org.spout.api.data.DataValue;
+
+/**
+ * SQL implementation of UserManager. See {@link SqlDatabase} for the schema.
+ * @author Windwaker
  */
-public class SqlUserManager implements UserManager {
-	@Override
-	public void load() {
+public class SqlUserManager extends AbstractUserManager {
+	private static final String SELECT_USERS = "SELECT name_key, group_name FROM permissions_users";
+	private static final String SELECT_NODES = "SELECT user_key, node, state FROM permissions_user_nodes";
+	private static final String SELECT_METADATA = "SELECT user_key, meta_key, meta_value, meta_type FROM permissions_user_metadata";
+	private final SqlDatabase database;
+	private final Set<String> pendingDeletes = Collections.synchronizedSet(new LinkedHashSet<String>());
+	// all rows read at startup, consumed while the users are created
+	private Map<String, String> prefetchedGroups;
+	private Map<String, Map<String, Boolean>> prefetchedNodes;
+	private Map<String, Map<String, DataValue>> prefetchedMetadata;
+
+	public SqlUserManager(WindPerms plugin, SqlDatabase database) {
+		this(plugin.getLogger(), plugin.getGroupManager(), database);
 	}
 
-	@Override
-	public void save() {
+	public SqlUserManager(Logger logger, GroupManager groupManager, SqlDatabase database) {
+		super(logger, groupManager);
+		this.database = database;
+		database.retain();
 	}
 
 	@Override
-	public void addUser(String username) {
+	protected void readAll() {
+		Map<String, String> names;
+		Map<String, String> groups;
+		try {
+			database.createSchema();
+			Connection connection = database.getConnection();
+			try {
+				names = SqlDatabase.readNames(connection, "permissions_users");
+				// the groups are indexed even if the users are read on first lookup
+				groups = readGroups(connection, null);
+				if (!lazy) {
+					// one query per table instead of three per user
+					prefetchedGroups = groups;
+					prefetchedNodes = SqlDatabase.readStates(connection, SELECT_NODES, null);
+					prefetchedMetadata = SqlDatabase.readMetadata(connection, SELECT_METADATA, null);
+				}
+			} finally {
+				database.release(connection);
+			}
+		} catch (SQLException e) {
+			logger.severe("Failed to load user data: " + e.getMessage());
+			return;
+		}
+
+		try {
+			Map<String, String> byName = new LinkedHashMap<String, String>();
+			for (Map.Entry<String, String> entry : names.entrySet()) {
+				byName.put(entry.getValue(), groups.get(entry.getKey()));
+			}
+			loadAll(byName);
+		} finally {
+			prefetchedGroups = null;
+			prefetchedNodes = null;
+			prefetchedMetadata = null;
+		}
 	}
 
-	@Override
-	public void removeUser(String username) {
+	private Map<String, String> readGroups(Connection connection, String key) throws SQLException {
+		Map<String, String> groups = new LinkedHashMap<String, String>();
+		PreparedStatement statement = connection.prepareStatement(key != null ? SELECT_USERS + " WHERE name_key = ?" : SELECT_USERS);
+		try {
+			if (key != null) {
+				statement.setString(1, key);
+			}
+			ResultSet result = statement.executeQuery();
+			while (result.next()) {
+				groups.put(result.getString(1), result.getString(2));
+			}
+		} finally {
+			statement.close();
+		}
+		return groups;
 	}
 
 	@Override
-	public void saveUser(User user) {
+	protected User readUser(String name) {
+		String key = NameIndex.canonical(name);
+		String groupName;
+		Map<String, Boolean> nodes;
+		Map<String, DataValue> metadata;
+		if (prefetchedGroups != null) {
+			groupName = prefetchedGroups.get(key);
+			nodes = prefetchedNodes.get(key);
+			metadata = prefetchedMetadata.get(key);
+		} else {
+			try {
+				Connection connection = database.getConnection();
+				try {
+					groupName = readGroups(connection, key).get(key);
+					nodes = SqlDatabase.readStates(connection, SELECT_NODES + " WHERE user_key = ?", key).get(key);
+					metadata = SqlDatabase.readMetadata(connection, SELECT_METADATA + " WHERE user_key = ?", key).get(key);
+				} finally {
+					database.release(connection);
+				}
+			} catch (SQLException e) {
+				logger.severe("Failed to load user " + name + ": " + e.getMessage());
+				groupName = null;
+				nodes = null;
+				metadata = null;
+			}
+		}
+
+		User user = new User(this, name);
+		// Turn off auto-saving for the user while loading.
+		user.setAutoSave(false);
+		user.initialize(nodes, metadata);
+		Group group = groupName != null ? groupManager.getGroup(groupName) : null;
+		user.setGroup(group != null ? group : groupManager.getDefaultGroup());
+		user.setAutoSave(true);
+		if (Trace.PERSIST) {
+			Trace.log(TraceCategory.PERSIST, Level.FINER, "Loaded user {0} in group {1}",
+					user.getName(), user.getGroup().getName());
+		}
+		return user;
 	}
 
 	@Override
-	public void loadUser(String user) {
-		//To change body of implemented methods use File | Settings | File Templates.
+	protected void store(Map<String, Map<String, Object>> serialized) throws IOException {
+		List<String> keys = new ArrayList<String>(serialized.size());
+		for (String name : serialized.keySet()) {
+			keys.add(NameIndex.canonical(name));
+		}
+		// stored users are replaced as a whole, a pending delete of a removed user with the same name is obsolete
+		pendingDeletes.removeAll(keys);
+		try {
+			Connection connection = database.getConnection();
+			List<PreparedStatement> statements = new ArrayList<PreparedStatement>();
+			try {
+				connection.setAutoCommit(false);
+				PreparedStatement deleteUsers = SqlDatabase.prepare(connection, statements, "DELETE FROM permissions_users WHERE name_key = ?");
+				PreparedStatement deleteNodes = SqlDatabase.prepare(connection, statements, "DELETE FROM permissions_user_nodes WHERE user_key = ?");
+				PreparedStatement deleteMetadata = SqlDatabase.prepare(connection, statements, "DELETE FROM permissions_user_metadata WHERE user_key = ?");
+				PreparedStatement insertUsers = SqlDatabase.prepare(connection, statements, "INSERT INTO permissions_users (name_key, name, group_name) VALUES (?, ?, ?)");
+				PreparedStatement insertNodes = SqlDatabase.prepare(connection, statements, "INSERT INTO permissions_user_nodes (user_key, node, state) VALUES (?, ?, ?)");
+				PreparedStatement insertMetadata = SqlDatabase.prepare(connection, statements, "INSERT INTO permissions_user_metadata (user_key, meta_key, meta_value, meta_type) VALUES (?, ?, ?, ?)");
+				int i = 0;
+				for (Map.Entry<String, Map<String, Object>> entry : serialized.entrySet()) {
+					String key = keys.get(i++);
+					SqlDatabase.addDelete(deleteUsers, key);
+					SqlDatabase.addDelete(deleteNodes, key);
+					SqlDatabase.addDelete(deleteMetadata, key);
+					insertUsers.setString(1, key);
+					insertUsers.setString(2, entry.getKey());
+					insertUsers.setString(3, (String) entry.getValue().get("group"));
+					insertUsers.addBatch();
+					SqlDatabase.addStates(insertNodes, key, entry.getValue().get("permissions"));
+					SqlDatabase.addMetadata(insertMetadata, key, entry.getValue().get("metadata"));
+				}
+				SqlDatabase.executeAll(deleteUsers, deleteNodes, deleteMetadata, insertUsers, insertNodes, insertMetadata);
+				connection.commit();
+			} catch (SQLException e) {
+				SqlDatabase.rollback(connection);
+				throw e;
+			} finally {
+				SqlDatabase.closeAll(statements);
+				SqlDatabase.restoreAutoCommit(connection);
+				database.release(connection);
+			}
+		} catch (SQLException e) {
+			throw new IOException("Failed to save user data: " + e.getMessage(), e);
+		}
 	}
 
 	@Override
-	public User getUser(String name) {
-		return null;
+	protected void delete(String name) {
+		pendingDeletes.add(NameIndex.canonical(name));
 	}
 
 	@Override
-	public Set<User> getUsers() {
-		return null;
+	protected void commit() throws IOException {
+		// the pending deletes are only cleared once they are committed, so a failed commit retries them
+		List<String> deletes;
+		synchronized (pendingDeletes) {
+			deletes = new ArrayList<String>(pendingDeletes);
+		}
+		if (deletes.isEmpty()) {
+			return;
+		}
+		try {
+			Connection connection = database.getConnection();
+			List<PreparedStatement> statements = new ArrayList<PreparedStatement>();
+			try {
+				connection.setAutoCommit(false);
+				PreparedStatement deleteUsers = SqlDatabase.prepare(connection, statements, "DELETE FROM permissions_users WHERE name_key = ?");
+				PreparedStatement deleteNodes = SqlDatabase.prepare(connection, statements, "DELETE FROM permissions_user_nodes WHERE user_key = ?");
+				PreparedStatement deleteMetadata = SqlDatabase.prepare(connection, statements, "DELETE FROM permissions_user_metadata WHERE user_key = ?");
+				for (String key : deletes) {
+					SqlDatabase.addDelete(deleteUsers, key);
+					SqlDatabase.addDelete(deleteNodes, key);
+					SqlDatabase.addDelete(deleteMetadata, key);
+				}
+				SqlDatabase.executeAll(deleteUsers, deleteNodes, deleteMetadata);
+				connection.commit();
+				pendingDeletes.removeAll(deletes);
+			} catch (SQLException e) {
+				SqlDatabase.rollback(connection);
+				throw e;
+			} finally {
+				SqlDatabase.closeAll(statements);
+				SqlDatabase.restoreAutoCommit(connection);
+				database.release(connection);
+			}
+		} catch (SQLException e) {
+			throw new IOException("Failed to delete user data: " + e.getMessage(), e);
+		}
 	}
 
 	@Override
-	public void clear() {
+	public void close() {
+		super.close();
+		database.release();
 	}
 }
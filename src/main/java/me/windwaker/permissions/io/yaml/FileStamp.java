@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2012-2013 ${developer}, <http://windwaker.me>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package me.windwaker.permissions.io.yaml;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+
+/**
+ * Length, modification time and checksum of a file, to detect whether it was changed since it was stamped.
+ * <p>
+ * Modification times may only have a resolution of a second or two, so a file rewritten with the same length right
+ * after it was stamped keeps its length and modification time. While the file was modified within that resolution
+ * of the time it was stamped, matching length and time are confirmed by comparing the CRC32 of its contents. Not
+ * thread-safe.
+ * @author Windwaker
+ */
+final class FileStamp {
+	// coarsest resolution of modification times, e.g. on FAT file systems
+	private static final long RESOLUTION = 2000;
+	private final File file;
+	private long length;
+	private long modified;
+	private long checksum = -1;
+	private boolean racy = true;
+
+	/**
+	 * Constructs a new stamp, which counts as changed until {@link #update()} is called if the file exists.
+	 * @param file to stamp
+	 */
+	FileStamp(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Stamps the current state of the file.
+	 */
+	void update() {
+		long now = System.currentTimeMillis();
+		length = file.length();
+		modified = file.lastModified();
+		try {
+			checksum = checksum(file);
+		} catch (IOException e) {
+			// no match, so the file is checked again
+			checksum = -1;
+		}
+		racy = now - modified < RESOLUTION;
+	}
+
+	/**
+	 * Whether the file was changed since it was last stamped.
+	 * @return true if changed
+	 */
+	boolean changed() {
+		if (file.length() != length || file.lastModified() != modified) {
+			return true;
+		}
+		if (!racy) {
+			return false;
+		}
+		long now = System.currentTimeMillis();
+		try {
+			if (checksum(file) != checksum) {
+				return true;
+			}
+		} catch (IOException e) {
+			return true;
+		}
+		// a later change gets a later modification time once the resolution passed
+		racy = now - modified < RESOLUTION;
+		return false;
+	}
+
+	/**
+	 * Computes the CRC32 of the contents of a file.
+	 * @param file to read
+	 * @return checksum or 0 if the file does not exist
+	 * @throws IOException if the file could not be read
+	 */
+	static long checksum(File file) throws IOException {
+		CRC32 crc = new CRC32();
+		if (!file.exists()) {
+			return crc.getValue();
+		}
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				crc.update(buffer, 0, read);
+			}
+		} finally {
+			in.close();
+		}
+		return crc.getValue();
+	}
+}
@@ -24,14 +24,25 @@ package me.windwaker.permissions.io.yaml;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import me.windwaker.permissions.WindPerms;
-import me.windwaker.permissions.io.GroupManager;
+import me.windwaker.permissions.io.AbstractGroupManager;
+import me.windwaker.permissions.io.NameIndex;
+import me.windwaker.permissions.io.ParallelLoader;
+import me.windwaker.permissions.io.Settings;
+import me.windwaker.permissions.io.UserManager;
 import me.windwaker.permissions.permissible.Group;
-import me.windwaker.permissions.permissible.User;
+import me.windwaker.permissions.permissible.Transaction;
+import me.windwaker.permissions.trace.Trace;
+import me.windwaker.permissions.trace.TraceCategory;
 import org.apache.commons.io.FileUtils;
 
 import org.spout.api.Spout;
@@ -39,68 +50,319 @@ import org.spout.api.data.DataValue;
 import org.spout.api.exception.ConfigurationException;
 import org.spout.api.util.config.yaml.YamlConfiguration;
 
-import static org.spout.api.Spout.*;
-
 /**
  * Flat-file implementation of GroupManager done in YAML.
  * @author Windwaker
  */
-public class YamlGroupManager implements GroupManager {
+public class YamlGroupManager extends AbstractGroupManager {
 	private final File file;
 	private final YamlConfiguration data;
-	private final Set<Group> groups = new HashSet<Group>();
-	private final WindPerms plugin;
-	private Group defaultGroup;
+	private final YamlJournal journal;
+	private final File snapshot;
+	// false while the groups were loaded from the snapshot and the YAML file was not needed yet
+	private boolean loaded;
+	// state of the YAML file when it was last read or written by this manager
+	private final FileStamp source;
 
 	public YamlGroupManager(WindPerms plugin) {
-		this.plugin = plugin;
-		file = new File(plugin.getDataFolder(), "groups.yml");
+		this(plugin.getLogger(), new File(plugin.getDataFolder(), "groups.yml"));
+	}
+
+	public YamlGroupManager(Logger logger, File file) {
+		super(logger);
+		this.file = file;
 		data = new YamlConfiguration(file);
+		journal = new YamlJournal(YamlJournal.fileFor(file), data, Settings.JOURNAL_COMPACT_SIZE.getLong(),
+				Settings.JOURNAL_COMPACT_INTERVAL.getLong() * 1000);
+		snapshot = YamlSnapshot.fileFor(file);
+		source = new FileStamp(file);
 	}
 
 	@Override
-	public void load() {
+	protected void readAll() {
+		if (Settings.SNAPSHOT_ENABLED.getBoolean() && readSnapshot()) {
+			stamp();
+			return;
+		}
+		synchronized (data) {
+			try {
+				data.load();
+				data.setPathSeparator("/");
+				if (!data.getNode("groups").isAttached()) {
+					// load some defaults if the file is empty
+					if (Trace.PERSIST) {
+						Trace.log(TraceCategory.PERSIST, Level.FINE, "No group data found, loading defaults.");
+					}
+					addDefaults();
+				}
+				// apply the changes made since the groups were last compacted into the file
+				journal.replay();
+				loaded = true;
+				stamp();
+
+				Set<String> names = data.getNode("groups").getKeys(false);
+				if (!names.isEmpty()) {
+					logger.info("Loading group data...");
+				}
+
+				// Load groups - the lock of data is held, so the configuration can be read in parallel
+				List<Group> loaded = ParallelLoader.load(names, new ParallelLoader.Task<Group>() {
+					@Override
+					public Group load(String name) {
+						return readGroup(name);
+					}
+				});
+				for (Group group : loaded) {
+					groups.put(group);
+				}
+
+				// Load inheritance - must be loaded after all other groups are loaded.
+				Map<Group, Map<Group, Boolean>> inherited = new LinkedHashMap<Group, Map<Group, Boolean>>();
+				for (Group group : loaded) {
+					inherited.put(group, readInheritance(group));
+				}
+				linkInheritance(inherited);
+
+				defaultGroup = getGroup(data.getNode("default").getString());
+				// remember what is on disk so unchanged groups are not written again
+				for (Group group : groups.values()) {
+					remember(group);
+				}
+				if (!names.isEmpty()) {
+					logger.info("Group data loaded. " + groups.size() + " unique groups loaded!");
+				}
+			} catch (ConfigurationException e) {
+				logger.severe("Failed to load group data: " + e.getMessage());
+			} catch (IOException e) {
+				logger.severe("Failed to replay group journal: " + e.getMessage());
+			}
+		}
+	}
+
+	private boolean readSnapshot() {
+		YamlSnapshot.Contents contents;
 		try {
+			contents = YamlSnapshot.read(snapshot, file, YamlJournal.fileFor(file));
+		} catch (IOException e) {
+			logger.warning("Failed to read group snapshot, loading " + file.getName() + ": " + e.getMessage());
+			return false;
+		}
+		if (contents == null) {
+			return false;
+		}
+		logger.info("Loading group data from snapshot...");
+		final Map<String, YamlSnapshot.Entry> entries = new LinkedHashMap<String, YamlSnapshot.Entry>();
+		for (YamlSnapshot.Entry entry : contents.getEntries()) {
+			entries.put(entry.getName(), entry);
+		}
+		List<Group> loaded = ParallelLoader.load(entries.keySet(), new ParallelLoader.Task<Group>() {
+			@Override
+			public Group load(String name) {
+				YamlSnapshot.Entry entry = entries.get(name);
+				Group group = new Group(YamlGroupManager.this, name);
+				group.initialize(entry.getPermissions(), toDataValues(entry.getMetadata()));
+				return group;
+			}
+		});
+		for (Group group : loaded) {
+			groups.put(group);
+		}
+		Map<Group, Map<Group, Boolean>> inherited = new LinkedHashMap<Group, Map<Group, Boolean>>();
+		for (YamlSnapshot.Entry entry : contents.getEntries()) {
+			Map<Group, Boolean> parents = new LinkedHashMap<Group, Boolean>();
+			for (Map.Entry<String, Boolean> parent : entry.getInherited().entrySet()) {
+				Group group = getGroup(parent.getKey());
+				if (group != null) {
+					parents.put(group, parent.getValue());
+				}
+			}
+			inherited.put(getGroup(entry.getName()), parents);
+		}
+		linkInheritance(inherited);
+		defaultGroup = getGroup(contents.getDefaultGroup());
+		for (Group group : groups.values()) {
+			remember(group);
+		}
+		logger.info("Group data loaded. " + groups.size() + " unique groups loaded!");
+		return true;
+	}
 
-			debug("Loading user data...");
-			data.load();
-			data.setPathSeparator("/");
+	private void stamp() {
+		source.update();
+	}
+
+	/**
+	 * Whether the YAML file was changed by someone else since it was last read or written.
+	 */
+	private boolean edited() {
+		return source.changed();
+	}
+
+	/**
+	 * Gets the YAML file the groups are stored in.
+	 * @return groups file
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Whether the YAML file changed since this manager last read or wrote it, i.e. it was edited by hand or by
+	 * another tool.
+	 * @return true if edited
+	 */
+	public boolean isModifiedExternally() {
+		synchronized (data) {
+			return edited();
+		}
+	}
+
+	/**
+	 * Reads the edited YAML file again and applies the groups that differ from the groups in memory. Changes of
+	 * this manager that are not compacted into the file yet are replayed on top of it, so they win over the edit.
+	 * Only the nodes, metadata and inherited groups that differ are applied, in one {@link Transaction}, and the
+	 * inheritance of the changed groups is recomputed once.
+	 * @param userManager of the users in the groups
+	 */
+	public void applyExternalChanges(UserManager userManager) {
+		// changes still queued go to the journal first
+		save();
+		synchronized (data) {
+			if (!reread()) {
+				return;
+			}
 			if (!data.getNode("groups").isAttached()) {
-				// load some defaults if the file is empty
-				debug("\tNo data found, loading defaults.");
-				addDefaults();
+				logger.severe("No groups found in " + file.getName() + ", ignoring the changes.");
+				return;
 			}
-
 			Set<String> names = data.getNode("groups").getKeys(false);
-			if (!names.isEmpty()) {
-				plugin.getLogger().info("Loading group data...");
+			Set<String> present = new HashSet<String>();
+			List<Group> added = new ArrayList<Group>();
+			for (String name : names) {
+				present.add(NameIndex.canonical(name));
+				if (getGroup(name) == null) {
+					Group group = new Group(this, name);
+					groups.put(group);
+					added.add(group);
+				}
 			}
 
-			// Load groups
+			// inheritance is read after all added groups are indexed
+			Transaction transaction = new Transaction(this, userManager);
+			List<Group> changed = new ArrayList<Group>(added);
 			for (String name : names) {
-				loadGroup(name);
+				Group group = getGroup(name);
+				int size = transaction.size();
+				transaction.replacePermissions(group, readPermissions(name));
+				transaction.replaceMetadata(group, readMetadata(name));
+				transaction.replaceInheritedGroups(group, readInheritance(group));
+				if (transaction.size() != size && !added.contains(group)) {
+					changed.add(group);
+				}
 			}
-
-			// Load inheritance - must be loaded after all other groups are loaded.
-			for (Group group : groups) {
-				loadInheritance(group);
+			try {
+				transaction.apply();
+			} catch (IllegalStateException e) {
+				logger.severe("Failed to apply the changes of " + file.getName() + ": " + e.getMessage());
+				for (Group group : added) {
+					groups.remove(group.getName());
+				}
+				return;
+			}
+			// the changed groups are in the file already
+			for (Group group : changed) {
+				remember(group);
 			}
 
-			defaultGroup = getGroup(data.getNode("default").getString());
-			if (!names.isEmpty()) {
-				plugin.getLogger().info("Group data loaded. " + groups.size() + " unique groups loaded!");
+			int removed = 0;
+			for (Group group : new ArrayList<Group>(groups.values())) {
+				if (!present.contains(group.getCanonicalName())) {
+					removeGroup(group.getName());
+					removed++;
+				}
 			}
+			Group defaultGroup = getGroup(data.getNode("default").getString());
+			if (defaultGroup != null) {
+				this.defaultGroup = defaultGroup;
+			}
+			logger.info("Applied the changes of " + file.getName() + ": " + (changed.size() - added.size())
+					+ " groups changed, " + added.size() + " added and " + removed + " removed.");
+		}
+	}
+
+	/**
+	 * Loads the YAML file again and replays the journal on top of it. Called with the lock of data held.
+	 * @return false if the file could not be read, in which case the data in memory is kept
+	 */
+	private boolean reread() {
+		try {
+			// parsed on its own first, so a broken file does not replace the data in memory
+			new YamlConfiguration(file).load();
+			data.load();
+			data.setPathSeparator("/");
+			journal.replay();
+			loaded = true;
+			stamp();
+			return true;
 		} catch (ConfigurationException e) {
-			plugin.getLogger().severe("Failed to load group data: " + e.getMessage());
+			logger.severe("Failed to load group data: " + e.getMessage());
+		} catch (IOException e) {
+			logger.severe("Failed to replay group journal: " + e.getMessage());
 		}
+		return false;
 	}
 
-	@Override
-	public void save() {
-		for (Group group : groups) {
-			saveGroup(group);
+	private void writeSnapshot() throws IOException {
+		if (edited()) {
+			// the file was edited by hand, it has to be loaded on the next start
+			snapshot.delete();
+			return;
+		}
+		List<YamlSnapshot.Entry> entries = new ArrayList<YamlSnapshot.Entry>();
+		Set<Group> written = new HashSet<Group>();
+		for (Group group : groups.values()) {
+			addEntry(group, entries, written);
+		}
+		YamlSnapshot.write(snapshot, file, defaultGroup != null ? defaultGroup.getName() : null, entries);
+	}
+
+	/**
+	 * Adds the entry of a group after the entries of the groups it inherits.
+	 */
+	private void addEntry(Group group, List<YamlSnapshot.Entry> entries, Set<Group> written) {
+		if (!written.add(group)) {
+			return;
+		}
+		Map<String, Boolean> inherited = new LinkedHashMap<String, Boolean>();
+		for (Map.Entry<Group, Boolean> entry : group.getInheritedGroups().entrySet()) {
+			addEntry(entry.getKey(), entries, written);
+			inherited.put(entry.getKey().getName(), entry.getValue());
+		}
+		Map<String, Object> metadata = new LinkedHashMap<String, Object>();
+		for (Map.Entry<String, DataValue> value : group.getMetadataMap().entrySet()) {
+			metadata.put(value.getKey(), value.getValue().getValue());
+		}
+		entries.add(new YamlSnapshot.Entry(group.getName(), null, group.getPermissions(), metadata, inherited));
+	}
+
+	private static Map<String, DataValue> toDataValues(Map<String, Object> values) {
+		Map<String, DataValue> metadata = new LinkedHashMap<String, DataValue>();
+		for (Map.Entry<String, Object> value : values.entrySet()) {
+			metadata.put(value.getKey(), new DataValue(value.getValue()));
+		}
+		return metadata;
+	}
+
+	/**
+	 * Loads the YAML file if the groups were loaded from the snapshot. Called with the lock of data held.
+	 */
+	private void ensureLoaded() throws ConfigurationException, IOException {
+		if (!loaded) {
+			data.load();
+			data.setPathSeparator("/");
+			journal.replay();
+			loaded = true;
 		}
-		data.getNode("default").setValue(defaultGroup.getName());
 	}
 
 	private void addDefaults() {
@@ -108,186 +370,173 @@ public class YamlGroupManager implements GroupManager {
 			FileUtils.copyInputStreamToFile(Spout.getFileSystem().getResourceStream("file://WindPerms/groups.yml"), file);
 			data.load();
 		} catch (ConfigurationException e) {
-			plugin.getLogger().severe("Failed to add defaults: " + e.getMessage());
+			logger.severe("Failed to add defaults: " + e.getMessage());
 		} catch (IOException e) {
-			plugin.getLogger().severe("Failed to copy defaults to configuration " + e.getMessage());
+			logger.severe("Failed to copy defaults to configuration " + e.getMessage());
 		}
 	}
 
-	private void loadPermissions(Group group) {
-		String path = "groups/" + group.getName();
+	private Map<String, Boolean> readPermissions(String group) {
+		String path = "groups/" + group;
 		Set<String> nodes = data.getNode(path + "/permissions").getKeys(false);
-		debug("Loading permission nodes for group: " + group.getName());
+		Map<String, Boolean> permissions = new LinkedHashMap<String, Boolean>();
 		for (String node : nodes) {
 			boolean value = data.getNode(path + "/permissions/" + node).getBoolean();
-			debug("\tNode: " + node);
-			debug("\tValue: " + value);
-			group.setPermission(node, value);
+			if (Trace.PERSIST) {
+				Trace.log(TraceCategory.PERSIST, Level.FINEST, "Loaded node {0} of group {1}: {2}",
+						node, group, value);
+			}
+			permissions.put(node, value);
 		}
+		return permissions;
 	}
 
-	private void loadData(Group group) {
-		String path = "groups/" + group.getName();
+	private Map<String, DataValue> readMetadata(String group) {
+		String path = "groups/" + group;
 		Set<String> nodes = data.getNode(path + "/metadata").getKeys(false);
-		debug("Loading metadata for group: " + group.getName());
+		Map<String, DataValue> metadata = new LinkedHashMap<String, DataValue>();
 		for (String node : nodes) {
 			Object value = data.getNode(path + "/metadata/" + node).getValue();
-			debug("\tKey: " + node);
-			debug("\tValue: " + value);
-			group.setMetadata(node, value);
+			if (Trace.PERSIST) {
+				Trace.log(TraceCategory.PERSIST, Level.FINEST, "Loaded metadata {0} of group {1}: {2}",
+						node, group, value);
+			}
+			metadata.put(node, new DataValue(value));
 		}
+		return metadata;
 	}
 
-	private void loadInheritance(Group group) {
+	private Map<Group, Boolean> readInheritance(Group group) {
 		String path = "groups/" + group.getName();
 		Set<String> inheritedNames = data.getNode(path + "/inherited").getKeys(false);
-		debug("Loading inheritance of group: " + group.getName());
+		Map<Group, Boolean> inherited = new LinkedHashMap<Group, Boolean>();
 		for (String inheritedName : inheritedNames) {
-			Group inherited = getGroup(inheritedName);
-			if (inherited != null) {
+			Group parent = getGroup(inheritedName);
+			if (parent != null) {
 				boolean value = data.getNode(path + "/inherited/" + inheritedName).getBoolean();
-				debug("\tGroup: " + inheritedName);
-				debug("\tInherited: " + value);
-				group.setInheritedGroup(inherited, value);
+				if (Trace.INHERITANCE) {
+					Trace.log(TraceCategory.INHERITANCE, Level.FINER, "Group {0} inherits {1}: {2}",
+							group.getName(), inheritedName, value);
+				}
+				inherited.put(parent, value);
 			}
 		}
-		// after all groups are inherited, make sure all their data is up to date
-		reloadInheritance();
-	}
-
-	@Override
-	public void saveGroup(Group group) {
-		try {
-			debug("Saving group: " + group.getName());
-			saveInheritance(group);
-			savePermissions(group);
-			saveData(group);
-			data.save();
-		} catch (ConfigurationException e) {
-			plugin.getLogger().severe("Failed to save group " + group.getName() + ": " + e.getMessage());
-		}
+		return inherited;
 	}
 
 	@Override
 	public void loadGroup(String group) {
-		debug("Loading group: " + group);
-		// Create new group
-		Group g = new Group(plugin, group);
-		// Turn off auto-save for loading.
-		g.setAutoSave(false);
-		// Load permissions, data, and worlds
-		loadPermissions(g);
-		loadData(g);
-		// Turn auto-save back on and add the group.
-		g.setAutoSave(true);
-		groups.add(g);
-	}
-
-	private void saveInheritance(Group group) {
-		debug("Saving inheritance of group: " + group.getName());
-		String path = "groups/" + group.getName();
-		Map<Group, Boolean> groupMap = group.getInheritedGroups();
-		for (Map.Entry<Group, Boolean> entry : groupMap.entrySet()) {
-			String groupName = entry.getKey().getName();
-			boolean inherited = entry.getValue();
-			debug("\tGroup: " + groupName);
-			debug("\tInherited: " + inherited);
-			data.getNode(path + "/inherited/" + groupName).setValue(inherited);
-		}
-	}
-
-	private void savePermissions(Group group) {
-		debug("Loading permission nodes of group: " + group.getName());
-		String path = "groups/" + group.getName();
-		Set<Map.Entry<String, Boolean>> perms = group.getPermissions().entrySet();
-		for (Map.Entry<String, Boolean> perm : perms) {
-			String node = perm.getKey();
-			boolean value = perm.getValue();
-			debug("\tNode: " + node);
-			debug("\tValue: " + value);
-			data.getNode(path + "/permissions/" + node).setValue(value);
+		synchronized (data) {
+			try {
+				ensureLoaded();
+			} catch (ConfigurationException e) {
+				logger.severe("Failed to load group data: " + e.getMessage());
+				return;
+			} catch (IOException e) {
+				logger.severe("Failed to replay group journal: " + e.getMessage());
+				return;
+			}
+			groups.put(readGroup(group));
 		}
 	}
 
-	private void saveData(Group group) {
-		debug("Saving metadata for group: " + group.getName());
-		String path = "groups/" + group.getName();
-		Set<Map.Entry<String, DataValue>> values = group.getMetadataMap().entrySet();
-		for (Map.Entry<String, DataValue> value : values) {
-			String key = value.getKey();
-			DataValue v = value.getValue();
-			debug("\tKey: " + key);
-			debug("\tValue: " + v);
-			data.getNode(path + "/metadata/" + key).setValue(v);
+	private Group readGroup(String group) {
+		if (Trace.PERSIST) {
+			Trace.log(TraceCategory.PERSIST, Level.FINER, "Loading group {0}", group);
 		}
+		// Create new group
+		Group g = new Group(this, group);
+		// Load permissions, data, and worlds
+		g.initialize(readPermissions(group), readMetadata(group));
+		return g;
 	}
 
 	@Override
-	public Group getDefaultGroup() {
-		return defaultGroup;
+	protected void store(Map<String, Map<String, Object>> serialized) throws IOException {
+		synchronized (data) {
+			for (Map.Entry<String, Map<String, Object>> entry : serialized.entrySet()) {
+				set("groups/" + entry.getKey(), entry.getValue());
+			}
+		}
 	}
 
 	@Override
-	public void setDefaultGroup(Group defaultGroup) {
-		this.defaultGroup = defaultGroup;
+	protected void delete(String name) {
+		synchronized (data) {
+			try {
+				set("groups/" + name, null);
+			} catch (IOException e) {
+				logger.severe("Failed to write group journal: " + e.getMessage());
+			}
+		}
 	}
 
 	@Override
-	public void addGroup(String name) {
-		try {
-			String path = "groups/" + name;
-			data.getNode(path + "/default").setValue(false);
-			data.save();
-			loadGroup(name);
-		} catch (ConfigurationException e) {
-			plugin.getLogger().severe("Failed to add group " + name + ": " + e.getMessage());
+	protected void storeDefault(String name) {
+		synchronized (data) {
+			try {
+				set("default", name);
+			} catch (IOException e) {
+				logger.severe("Failed to write group journal: " + e.getMessage());
+			}
 		}
 	}
 
-	@Override
-	public void removeGroup(String name) {
+	private void set(String path, Object value) throws IOException {
 		try {
-			Group group = getGroup(name);
-			if (group == null) {
-				return;
-			}
-			groups.remove(group);
-			data.getNode("groups/" + name).setValue(null);
-			data.save();
+			ensureLoaded();
 		} catch (ConfigurationException e) {
-			plugin.getLogger().severe("Failed to remove group " + name + ": " + e.getMessage());
+			throw new IOException("Failed to load group data: " + e.getMessage(), e);
 		}
+		journal.set(path, value);
 	}
 
 	@Override
-	public Group getGroup(String name) {
-		for (Group group : groups) {
-			if (group.getName().equalsIgnoreCase(name)) {
-				return group;
+	protected void commit() throws IOException {
+		synchronized (data) {
+			journal.sync();
+			// an edit that was not applied yet is not overwritten, the journal is replayed on top of it instead
+			if (journal.needsCompaction() && !edited()) {
+				// the changes are synced to the journal already, a failed compaction is retried with the next commit
+				try {
+					journal.compact();
+					stamp();
+				} catch (IOException e) {
+					logger.severe("Failed to compact group journal: " + e.getMessage());
+				} catch (ConfigurationException e) {
+					logger.severe("Failed to save group data: " + e.getMessage());
+				}
 			}
 		}
-		return null;
 	}
 
 	@Override
-	public Set<Group> getGroups() {
-		return groups;
-	}
-
-	@Override
-	public void reloadInheritance() {
-		for (Group group : groups) {
-			group.reloadInheritance();
-		}
-		for (Group group : groups) {
-			for (User user : group.getUsers()) {
-				user.inherit(group);
+	public void close() {
+		super.close();
+		synchronized (data) {
+			try {
+				// a file that failed to load is never overwritten, its journal is kept for the next load. A suspended
+				// manager leaves the file to the manager that took it over.
+				if (loaded && journal.getSize() > 0 && !edited() && !isSuspended()) {
+					journal.compact();
+					stamp();
+				}
+				journal.close();
+			} catch (IOException e) {
+				logger.severe("Failed to write group journal: " + e.getMessage());
+				return;
+			} catch (ConfigurationException e) {
+				logger.severe("Failed to save group data: " + e.getMessage());
+				return;
+			}
+			// the snapshot is only written once the YAML file is up to date
+			if (Settings.SNAPSHOT_ENABLED.getBoolean() && !isSuspended()) {
+				try {
+					writeSnapshot();
+				} catch (IOException e) {
+					logger.severe("Failed to write group snapshot: " + e.getMessage());
+				}
 			}
 		}
 	}
-
-	@Override
-	public void clear() {
-		groups.clear();
-	}
 }
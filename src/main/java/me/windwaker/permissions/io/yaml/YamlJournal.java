@@ -0,0 +1,243 @@
+/*
+ * Copyright (c) 2012-2013 ${developer}, <http://windwaker.me>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package me.windwaker.permissions.io.yaml;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.zip.CRC32;
+
+import me.windwaker.permissions.io.ValueCodec;
+
+import org.spout.api.exception.ConfigurationException;
+import org.spout.api.util.config.yaml.YamlConfiguration;
+
+/**
+ * Append-only log of the changes to a {@link YamlConfiguration}, so a change does not rewrite the whole file.
+ * <p>
+ * Every change sets the value of one path of the configuration, e.g. the serialized form of one user, and is
+ * appended to the journal as a record of the path and the value. Records are buffered until {@link #sync()}, which
+ * forces them to disk, so a crash loses at most the records since the last sync. {@link #compact()} saves the
+ * configuration as the new snapshot and empties the journal. On load the records are replayed over the snapshot;
+ * as each record sets a whole value, replaying a record that is already in the snapshot changes nothing.
+ * <p>
+ * Records are framed with their length and checksum, and replaying stops at the first incomplete or corrupt record,
+ * which is what a crash in the middle of a write leaves behind.
+ * <p>
+ * The journal is not thread-safe; callers synchronize on the configuration.
+ * @author Windwaker
+ */
+public class YamlJournal {
+	private final File file;
+	private final YamlConfiguration data;
+	private final long compactSize;
+	private final long compactInterval;
+	private FileOutputStream stream;
+	private DataOutputStream out;
+	private long size;
+	private long lastCompaction = System.currentTimeMillis();
+
+	/**
+	 * Constructs a new journal.
+	 * @param file of the journal
+	 * @param data configuration the journal belongs to
+	 * @param compactSize size in bytes of the journal at which it should be compacted
+	 * @param compactInterval milliseconds after which a non-empty journal should be compacted
+	 */
+	public YamlJournal(File file, YamlConfiguration data, long compactSize, long compactInterval) {
+		this.file = file;
+		this.data = data;
+		this.compactSize = compactSize;
+		this.compactInterval = compactInterval;
+	}
+
+	/**
+	 * Gets the journal of a snapshot, e.g. 'users.journal' for 'users.yml'.
+	 * @param snapshot file of the configuration
+	 * @return file of the journal
+	 */
+	public static File fileFor(File snapshot) {
+		String name = snapshot.getName();
+		int extension = name.lastIndexOf('.');
+		return new File(snapshot.getParentFile(), (extension > 0 ? name.substring(0, extension) : name) + ".journal");
+	}
+
+	/**
+	 * Applies the records of the journal to the configuration and opens the journal for appending. The snapshot
+	 * must have been loaded into the configuration before.
+	 * @return number of records replayed
+	 * @throws IOException if the journal could not be read or opened
+	 */
+	public int replay() throws IOException {
+		close();
+		int records = 0;
+		long valid = 0;
+		if (file.exists()) {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				CRC32 crc = new CRC32();
+				while (true) {
+					int length;
+					long checksum;
+					byte[] record;
+					try {
+						length = in.readInt();
+						checksum = in.readInt() & 0xFFFFFFFFL;
+						if (length < 0 || valid + 8 + length > file.length()) {
+							break;
+						}
+						record = new byte[length];
+						in.readFully(record);
+					} catch (EOFException e) {
+						break;
+					}
+					crc.reset();
+					crc.update(record);
+					if (crc.getValue() != checksum) {
+						break;
+					}
+					DataInputStream recordIn = new DataInputStream(new ByteArrayInputStream(record));
+					String path = recordIn.readUTF();
+					data.getNode(path).setValue(ValueCodec.readValue(recordIn));
+					valid += 8 + length;
+					records++;
+				}
+			} finally {
+				in.close();
+			}
+			if (valid < file.length()) {
+				// drop the torn record so new records are not appended after it
+				RandomAccessFile raf = new RandomAccessFile(file, "rw");
+				try {
+					raf.setLength(valid);
+				} finally {
+					raf.close();
+				}
+			}
+		}
+		size = valid;
+		open();
+		return records;
+	}
+
+	/**
+	 * Sets the value of a path of the configuration and appends the change to the journal.
+	 * @param path of value
+	 * @param value to set or null to remove the path
+	 * @throws IOException if the record could not be written
+	 */
+	public void set(String path, Object value) throws IOException {
+		data.getNode(path).setValue(value);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream record = new DataOutputStream(bytes);
+		record.writeUTF(path);
+		ValueCodec.writeValue(record, value);
+		record.flush();
+		CRC32 crc = new CRC32();
+		crc.update(bytes.toByteArray());
+		if (out == null) {
+			open();
+		}
+		out.writeInt(bytes.size());
+		out.writeInt((int) crc.getValue());
+		bytes.writeTo(out);
+		size += 8 + bytes.size();
+	}
+
+	/**
+	 * Forces all appended records to disk.
+	 * @throws IOException if the records could not be written
+	 */
+	public void sync() throws IOException {
+		if (out != null) {
+			out.flush();
+			stream.getFD().sync();
+		}
+	}
+
+	/**
+	 * Whether the journal has grown large or old enough to be compacted.
+	 * @return true if the journal should be compacted
+	 */
+	public boolean needsCompaction() {
+		return size >= compactSize || (size > 0 && System.currentTimeMillis() - lastCompaction >= compactInterval);
+	}
+
+	/**
+	 * Saves the configuration as the new snapshot and empties the journal. Does nothing if the journal is empty.
+	 * @throws ConfigurationException if the snapshot could not be saved
+	 * @throws IOException if the journal could not be emptied
+	 */
+	public void compact() throws ConfigurationException, IOException {
+		if (size == 0) {
+			return;
+		}
+		sync();
+		data.save();
+		// the snapshot contains every record now, a crash before truncating only replays them once more
+		if (stream != null) {
+			stream.getChannel().truncate(0);
+			stream.getFD().sync();
+		}
+		size = 0;
+		lastCompaction = System.currentTimeMillis();
+	}
+
+	/**
+	 * Gets the size of the journal.
+	 * @return size in bytes
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * Forces all appended records to disk and closes the journal.
+	 * @throws IOException if the records could not be written
+	 */
+	public void close() throws IOException {
+		if (out != null) {
+			try {
+				sync();
+			} finally {
+				out.close();
+				out = null;
+				stream = null;
+			}
+		}
+	}
+
+	private void open() throws IOException {
+		stream = new FileOutputStream(file, true);
+		out = new DataOutputStream(new BufferedOutputStream(stream));
+	}
+}
@@ -0,0 +1,334 @@
+/*
+ * Copyright (c) 2012-2013 ${developer}, <http://windwaker.me>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package me.windwaker.permissions.io.yaml;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import me.windwaker.permissions.io.ValueCodec;
+
+/**
+ * Compact binary copy of the groups or users of a YAML file, read instead of the file at startup.
+ * <p>
+ * The snapshot is written when a manager is closed and records the length and CRC32 of the YAML file it was
+ * written from. It is only used if the YAML file still has that length and checksum and its journal is empty;
+ * otherwise the YAML file is loaded as usual, so the YAML file always stays the source of truth. Modification times
+ * are not compared, as an edit within their resolution would go unnoticed.
+ * <p>
+ * All names, nodes and keys are stored once in a string table and referenced by index, and the snapshot is
+ * memory-mapped for reading.
+ * @author Windwaker
+ */
+public final class YamlSnapshot {
+	private static final int MAGIC = 0x57505332; // WPS2
+	private static final int NONE = -1;
+
+	private YamlSnapshot() {
+	}
+
+	/**
+	 * Gets the snapshot of a YAML file, e.g. 'users.snapshot' for 'users.yml'.
+	 * @param source YAML file
+	 * @return file of the snapshot
+	 */
+	public static File fileFor(File source) {
+		String name = source.getName();
+		int extension = name.lastIndexOf('.');
+		return new File(source.getParentFile(), (extension > 0 ? name.substring(0, extension) : name) + ".snapshot");
+	}
+
+	/**
+	 * Writes a snapshot of a YAML file.
+	 * @param file of the snapshot
+	 * @param source YAML file the entries were loaded from and saved to
+	 * @param defaultGroup name of the default group or null
+	 * @param entries to write; groups must come after the groups they inherit
+	 * @throws IOException if the snapshot could not be written
+	 */
+	public static void write(File file, File source, String defaultGroup, List<Entry> entries) throws IOException {
+		Map<String, Integer> strings = new LinkedHashMap<String, Integer>();
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(body);
+		out.writeInt(index(strings, defaultGroup));
+		out.writeInt(entries.size());
+		for (Entry entry : entries) {
+			out.writeInt(index(strings, entry.name));
+			out.writeInt(index(strings, entry.group));
+			writeStates(out, strings, entry.permissions);
+			writeStates(out, strings, entry.inherited);
+			out.writeInt(entry.metadata.size());
+			for (Map.Entry<String, Object> value : entry.metadata.entrySet()) {
+				out.writeInt(index(strings, value.getKey()));
+				ValueCodec.writeValue(out, value.getValue());
+			}
+		}
+		out.flush();
+
+		File temp = new File(file.getPath() + ".tmp");
+		DataOutputStream fileOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+		try {
+			fileOut.writeInt(MAGIC);
+			fileOut.writeLong(source.length());
+			fileOut.writeLong(FileStamp.checksum(source));
+			fileOut.writeInt(strings.size());
+			for (String string : strings.keySet()) {
+				ValueCodec.writeString(fileOut, string);
+			}
+			body.writeTo(fileOut);
+		} finally {
+			fileOut.close();
+		}
+		if (!temp.renameTo(file) && (!file.delete() || !temp.renameTo(file))) {
+			throw new IOException("could not replace " + file);
+		}
+	}
+
+	/**
+	 * Reads a snapshot of a YAML file.
+	 * @param file of the snapshot
+	 * @param source YAML file the snapshot must have been written from
+	 * @param journal of the YAML file, which must be empty
+	 * @return contents of the snapshot or null if there is no snapshot or it is stale
+	 * @throws IOException if the snapshot could not be read
+	 */
+	public static Contents read(File file, File source, File journal) throws IOException {
+		if (!file.exists() || !source.exists() || journal.length() > 0) {
+			return null;
+		}
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		ByteBuffer buffer;
+		try {
+			FileChannel channel = raf.getChannel();
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			// the mapping stays valid after the file is closed
+			raf.close();
+		}
+		DataInputStream in = new DataInputStream(new BufferInputStream(buffer));
+		// the length is compared first, so most edits are detected without reading the file
+		if (buffer.remaining() < 20 || in.readInt() != MAGIC || in.readLong() != source.length()
+				|| in.readLong() != FileStamp.checksum(source)) {
+			return null;
+		}
+		String[] strings = new String[in.readInt()];
+		for (int i = 0; i < strings.length; i++) {
+			strings[i] = ValueCodec.readString(in);
+		}
+		String defaultGroup = string(strings, in.readInt());
+		int count = in.readInt();
+		List<Entry> entries = new ArrayList<Entry>(count);
+		for (int i = 0; i < count; i++) {
+			String name = string(strings, in.readInt());
+			String group = string(strings, in.readInt());
+			Map<String, Boolean> permissions = readStates(in, strings);
+			Map<String, Boolean> inherited = readStates(in, strings);
+			int size = in.readInt();
+			Map<String, Object> metadata = new LinkedHashMap<String, Object>();
+			for (int j = 0; j < size; j++) {
+				String key = string(strings, in.readInt());
+				metadata.put(key, ValueCodec.readValue(in));
+			}
+			entries.add(new Entry(name, group, permissions, metadata, inherited));
+		}
+		return new Contents(defaultGroup, entries);
+	}
+
+	private static int index(Map<String, Integer> strings, String string) {
+		if (string == null) {
+			return NONE;
+		}
+		Integer index = strings.get(string);
+		if (index == null) {
+			index = strings.size();
+			strings.put(string, index);
+		}
+		return index;
+	}
+
+	private static String string(String[] strings, int index) throws IOException {
+		if (index == NONE) {
+			return null;
+		}
+		if (index < 0 || index >= strings.length) {
+			throw new IOException("Invalid string index " + index);
+		}
+		return strings[index];
+	}
+
+	private static void writeStates(DataOutputStream out, Map<String, Integer> strings, Map<String, Boolean> states) throws IOException {
+		out.writeInt(states.size());
+		for (Map.Entry<String, Boolean> state : states.entrySet()) {
+			out.writeInt(index(strings, state.getKey()));
+			out.writeBoolean(state.getValue());
+		}
+	}
+
+	private static Map<String, Boolean> readStates(DataInputStream in, String[] strings) throws IOException {
+		int size = in.readInt();
+		if (size == 0) {
+			return Collections.emptyMap();
+		}
+		Map<String, Boolean> states = new LinkedHashMap<String, Boolean>();
+		for (int i = 0; i < size; i++) {
+			String key = string(strings, in.readInt());
+			states.put(key, in.readBoolean());
+		}
+		return states;
+	}
+
+	/**
+	 * A group or user in a snapshot.
+	 */
+	public static final class Entry {
+		private final String name;
+		private final String group;
+		private final Map<String, Boolean> permissions;
+		private final Map<String, Object> metadata;
+		private final Map<String, Boolean> inherited;
+
+		/**
+		 * Constructs a new entry.
+		 * @param name of group or user
+		 * @param group of user or null for a group
+		 * @param permissions node states
+		 * @param metadata raw metadata values
+		 * @param inherited states of the inherited groups of a group
+		 */
+		public Entry(String name, String group, Map<String, Boolean> permissions, Map<String, Object> metadata, Map<String, Boolean> inherited) {
+			this.name = name;
+			this.group = group;
+			this.permissions = permissions;
+			this.metadata = metadata;
+			this.inherited = inherited;
+		}
+
+		/**
+		 * Gets the name of the group or user.
+		 * @return name
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * Gets the group of a user.
+		 * @return name of group or null for a group
+		 */
+		public String getGroup() {
+			return group;
+		}
+
+		/**
+		 * Gets the node states.
+		 * @return permissions
+		 */
+		public Map<String, Boolean> getPermissions() {
+			return permissions;
+		}
+
+		/**
+		 * Gets the raw metadata values.
+		 * @return metadata
+		 */
+		public Map<String, Object> getMetadata() {
+			return metadata;
+		}
+
+		/**
+		 * Gets the states of the inherited groups of a group.
+		 * @return inherited groups
+		 */
+		public Map<String, Boolean> getInherited() {
+			return inherited;
+		}
+	}
+
+	/**
+	 * Contents of a snapshot.
+	 */
+	public static final class Contents {
+		private final String defaultGroup;
+		private final List<Entry> entries;
+
+		private Contents(String defaultGroup, List<Entry> entries) {
+			this.defaultGroup = defaultGroup;
+			this.entries = entries;
+		}
+
+		/**
+		 * Gets the name of the default group.
+		 * @return name or null
+		 */
+		public String getDefaultGroup() {
+			return defaultGroup;
+		}
+
+		/**
+		 * Gets the entries in the order they were written.
+		 * @return entries
+		 */
+		public List<Entry> getEntries() {
+			return entries;
+		}
+	}
+
+	/**
+	 * Reads a memory-mapped snapshot without copying it.
+	 */
+	private static final class BufferInputStream extends InputStream {
+		private final ByteBuffer buffer;
+
+		private BufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+		}
+
+		@Override
+		public int read(byte[] bytes, int offset, int length) {
+			if (!buffer.hasRemaining()) {
+				return -1;
+			}
+			length = Math.min(length, buffer.remaining());
+			buffer.get(bytes, offset, length);
+			return length;
+		}
+	}
+}
@@ -24,15 +24,27 @@ package me.windwaker.permissions.io.yaml;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import me.windwaker.permissions.WindPerms;
+import me.windwaker.permissions.io.AbstractUserManager;
 import me.windwaker.permissions.io.GroupManager;
-import me.windwaker.permissions.io.UserManager;
+import me.windwaker.permissions.io.NameIndex;
+import me.windwaker.permissions.io.Settings;
 import me.windwaker.permissions.permissible.Group;
+import me.windwaker.permissions.permissible.Transaction;
 import me.windwaker.permissions.permissible.User;
+import me.windwaker.permissions.trace.Trace;
+import me.windwaker.permissions.trace.TraceCategory;
 import org.apache.commons.io.FileUtils;
 
 import org.spout.api.Spout;
@@ -40,61 +52,270 @@ import org.spout.api.data.DataValue;
 import org.spout.api.exception.ConfigurationException;
 import org.spout.api.util.config.yaml.YamlConfiguration;
 
-import static org.spout.api.Spout.*;
-
 /**
  * Flat-file implementation of UserManager done in YAML.
  * @author Windwaker
  */
-public class YamlUserManager implements UserManager {
+public class YamlUserManager extends AbstractUserManager {
 	private final File file;
 	private final YamlConfiguration data;
-	private final Set<User> users = new HashSet<User>();
-	private final WindPerms plugin;
-	private final GroupManager groupManager;
+	private final YamlJournal journal;
+	private final File snapshot;
+	// false while the users were loaded from the snapshot and the YAML file was not needed yet
+	private boolean loaded;
+	// state of the YAML file when it was last read or written by this manager
+	private final FileStamp source;
+	// users of the snapshot by canonical name, only set while loading
+	private Map<String, YamlSnapshot.Entry> prefetched;
+	// whether loadAll is reading users in parallel while the loading thread holds the lock of data
+	private volatile boolean loading;
 
 	public YamlUserManager(WindPerms plugin) {
-		this.plugin = plugin;
-		groupManager = plugin.getGroupManager();
-		file = new File(plugin.getDataFolder(), "users.yml");
+		this(plugin.getLogger(), plugin.getGroupManager(), new File(plugin.getDataFolder(), "users.yml"));
+	}
+
+	public YamlUserManager(Logger logger, GroupManager groupManager, File file) {
+		super(logger, groupManager);
+		this.file = file;
 		data = new YamlConfiguration(file);
+		journal = new YamlJournal(YamlJournal.fileFor(file), data, Settings.JOURNAL_COMPACT_SIZE.getLong(),
+				Settings.JOURNAL_COMPACT_INTERVAL.getLong() * 1000);
+		snapshot = YamlSnapshot.fileFor(file);
+		source = new FileStamp(file);
 	}
 
 	@Override
-	public void load() {
+	protected void readAll() {
+		// users loaded on demand are read from the YAML file anyway
+		if (!lazy && Settings.SNAPSHOT_ENABLED.getBoolean() && readSnapshot()) {
+			stamp();
+			return;
+		}
+		synchronized (data) {
+			try {
+				data.load();
+				data.setPathSeparator("/");
+				if (!data.getNode("users").isAttached()) {
+					if (Trace.PERSIST) {
+						Trace.log(TraceCategory.PERSIST, Level.FINE, "No user data found, adding defaults.");
+					}
+					addDefaults();
+				}
+				// apply the changes made since the users were last compacted into the file
+				journal.replay();
+				loaded = true;
+				stamp();
+
+				loading = true;
+				try {
+					Set<String> names = data.getNode("users").getKeys(false);
+					if (lazy) {
+						// only the groups are indexed, the users are read on first lookup
+						Map<String, String> groups = new LinkedHashMap<String, String>();
+						for (String name : names) {
+							groups.put(name, data.getNode("users/" + name + "/group").getString(null));
+						}
+						loadAll(groups);
+					} else {
+						loadAll(names);
+					}
+				} finally {
+					loading = false;
+				}
+			} catch (ConfigurationException e) {
+				logger.severe("Failed to load user data: " + e.getMessage());
+			} catch (IOException e) {
+				logger.severe("Failed to replay user journal: " + e.getMessage());
+			}
+		}
+	}
+
+	private boolean readSnapshot() {
+		YamlSnapshot.Contents contents;
 		try {
+			contents = YamlSnapshot.read(snapshot, file, YamlJournal.fileFor(file));
+		} catch (IOException e) {
+			logger.warning("Failed to read user snapshot, loading " + file.getName() + ": " + e.getMessage());
+			return false;
+		}
+		if (contents == null) {
+			return false;
+		}
+		Map<String, String> groups = new LinkedHashMap<String, String>();
+		prefetched = new HashMap<String, YamlSnapshot.Entry>();
+		for (YamlSnapshot.Entry entry : contents.getEntries()) {
+			groups.put(entry.getName(), entry.getGroup());
+			prefetched.put(NameIndex.canonical(entry.getName()), entry);
+		}
+		try {
+			loadAll(groups);
+		} finally {
+			prefetched = null;
+		}
+		return true;
+	}
 
-			debug("Loading user data...");
-			data.load();
-			data.setPathSeparator("/");
+	private User readSnapshotUser(YamlSnapshot.Entry entry) {
+		User user = new User(this, entry.getName());
+		user.setAutoSave(false);
+		Map<String, DataValue> metadata = new LinkedHashMap<String, DataValue>();
+		for (Map.Entry<String, Object> value : entry.getMetadata().entrySet()) {
+			metadata.put(value.getKey(), new DataValue(value.getValue()));
+		}
+		user.initialize(entry.getPermissions(), metadata);
+		Group group = groupManager.getGroup(entry.getGroup());
+		user.setGroup(group != null ? group : groupManager.getDefaultGroup());
+		user.setAutoSave(true);
+		return user;
+	}
+
+	private void stamp() {
+		source.update();
+	}
+
+	/**
+	 * Whether the YAML file was changed by someone else since it was last read or written.
+	 */
+	private boolean edited() {
+		return source.changed();
+	}
+
+	/**
+	 * Gets the YAML file the users are stored in.
+	 * @return users file
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Whether the YAML file changed since this manager last read or wrote it, i.e. it was edited by hand or by
+	 * another tool.
+	 * @return true if edited
+	 */
+	public boolean isModifiedExternally() {
+		synchronized (data) {
+			return edited();
+		}
+	}
+
+	/**
+	 * Reads the edited YAML file again and applies the users that differ from the users in memory. Changes of
+	 * this manager that are not compacted into the file yet are replayed on top of it, so they win over the edit.
+	 * Only the nodes, metadata and groups that differ are applied, in one {@link Transaction}; users that are not
+	 * in memory are read from the new data on their next lookup.
+	 */
+	public void applyExternalChanges() {
+		// changes still queued go to the journal first
+		save();
+		synchronized (data) {
+			if (!reread()) {
+				return;
+			}
 			if (!data.getNode("users").isAttached()) {
-				debug("\tNo data found, adding defaults.");
-				addDefaults();
+				logger.severe("No users found in " + file.getName() + ", ignoring the changes.");
+				return;
 			}
-
 			Set<String> names = data.getNode("users").getKeys(false);
-			if (!names.isEmpty()) {
-				plugin.getLogger().info("Loading user data...");
-			}
-
-			// Load users
+			Set<String> present = new HashSet<String>();
+			Transaction transaction = new Transaction(groupManager, this);
+			List<User> changed = new ArrayList<User>();
+			int added = 0;
 			for (String name : names) {
-				debug("\tLoading user: " + name);
-				loadUser(name);
+				present.add(NameIndex.canonical(name));
+				User user = users.get(name);
+				if (user == null) {
+					if (!lazy) {
+						loadUser(name);
+						added++;
+					} else if (index(name, data.getNode("users/" + name + "/group").getString(null))) {
+						added++;
+					}
+					continue;
+				}
+				int size = transaction.size();
+				transaction.replacePermissions(user, readPermissions(name));
+				transaction.replaceMetadata(user, readMetadata(name));
+				Group group = groupManager.getGroup(data.getNode("users/" + name + "/group").getString(groupManager.getDefaultGroup().getName()));
+				if (group != null && group != user.getGroup()) {
+					transaction.setGroup(user, group);
+				}
+				if (transaction.size() != size) {
+					changed.add(user);
+				}
+			}
+			try {
+				transaction.apply();
+			} catch (IllegalStateException e) {
+				logger.severe("Failed to apply the changes of " + file.getName() + ": " + e.getMessage());
+				return;
+			}
+			// the changed users are in the file already
+			for (User user : changed) {
+				remember(user);
 			}
 
-			if (!names.isEmpty()) {
-				plugin.getLogger().info("User data loaded. " + users.size() + " unique users loaded!");
+			int removed = 0;
+			for (String name : new ArrayList<String>(getStoredNames())) {
+				if (!present.contains(NameIndex.canonical(name))) {
+					removeUser(name);
+					removed++;
+				}
 			}
+			logger.info("Applied the changes of " + file.getName() + ": " + changed.size() + " users changed, "
+					+ added + " added and " + removed + " removed.");
+		}
+	}
+
+	/**
+	 * Loads the YAML file again and replays the journal on top of it. Called with the lock of data held.
+	 * @return false if the file could not be read, in which case the data in memory is kept
+	 */
+	private boolean reread() {
+		try {
+			// parsed on its own first, so a broken file does not replace the data in memory
+			new YamlConfiguration(file).load();
+			data.load();
+			data.setPathSeparator("/");
+			journal.replay();
+			loaded = true;
+			stamp();
+			return true;
 		} catch (ConfigurationException e) {
-			plugin.getLogger().severe("Failed to load user data: " + e.getMessage());
+			logger.severe("Failed to load user data: " + e.getMessage());
+		} catch (IOException e) {
+			logger.severe("Failed to replay user journal: " + e.getMessage());
 		}
+		return false;
 	}
 
-	@Override
-	public void save() {
-		for (User user : users) {
-			saveUser(user);
+	private void writeSnapshot() throws IOException {
+		if (lazy || edited()) {
+			// not all users are in memory or the file was edited by hand, it has to be loaded on the next start
+			snapshot.delete();
+			return;
+		}
+		List<YamlSnapshot.Entry> entries = new ArrayList<YamlSnapshot.Entry>();
+		for (User user : users.values()) {
+			Map<String, Object> metadata = new LinkedHashMap<String, Object>();
+			for (Map.Entry<String, DataValue> value : user.getMetadataMap().entrySet()) {
+				metadata.put(value.getKey(), value.getValue().getValue());
+			}
+			entries.add(new YamlSnapshot.Entry(user.getName(), user.getGroup().getName(), user.getPermissions(), metadata,
+					Collections.<String, Boolean>emptyMap()));
+		}
+		YamlSnapshot.write(snapshot, file, null, entries);
+	}
+
+	/**
+	 * Loads the YAML file if the users were loaded from the snapshot. Called with the lock of data held.
+	 */
+	private void ensureLoaded() throws ConfigurationException, IOException {
+		if (!loaded) {
+			data.load();
+			data.setPathSeparator("/");
+			journal.replay();
+			loaded = true;
 		}
 	}
 
@@ -103,140 +324,159 @@ public class YamlUserManager implements UserManager {
 			FileUtils.copyInputStreamToFile(Spout.getFileSystem().getResourceStream("file://WindPerms/users.yml"), file);
 			data.load();
 		} catch (ConfigurationException e) {
-			plugin.getLogger().severe("Failed to add defaults: " + e.getMessage());
+			logger.severe("Failed to add defaults: " + e.getMessage());
 		} catch (IOException e) {
-			plugin.getLogger().severe("Failed to copy defaults to configuration file: " + e.getMessage());
+			logger.severe("Failed to copy defaults to configuration file: " + e.getMessage());
 		}
 	}
 
-	private void loadPermissions(User user) {
-		debug("Loading permission nodes for user: " + user.getName());
-		String path = "users/" + user.getName();
+	private Map<String, Boolean> readPermissions(String user) {
+		String path = "users/" + user;
 		Set<String> nodes = data.getNode(path + "/permissions").getKeys(false);
+		Map<String, Boolean> permissions = new LinkedHashMap<String, Boolean>();
 		for (String node : nodes) {
 			boolean value = data.getNode(path + "/permissions/" + node).getBoolean();
-			debug("\tNode: " + node);
-			debug("\tValue: " + value);
-			user.setPermission(node, value);
+			if (Trace.PERSIST) {
+				Trace.log(TraceCategory.PERSIST, Level.FINEST, "Loaded node {0} of user {1}: {2}",
+						node, user, value);
+			}
+			permissions.put(node, value);
 		}
+		return permissions;
 	}
 
-	private void loadData(User user) {
-		debug("Loading metadata for user: " + user.getName());
-		String path = "users/" + user.getName();
+	private Map<String, DataValue> readMetadata(String user) {
+		String path = "users/" + user;
 		Set<String> nodes = data.getNode(path + "/metadata").getKeys(false);
+		Map<String, DataValue> metadata = new LinkedHashMap<String, DataValue>();
 		for (String node : nodes) {
 			Object value = data.getNode(path + "/metadata/" + node).getValue();
-			debug("\tKey: " + node);
-			debug("\tValue: " + value);
-			user.setMetadata(node, value);
+			if (Trace.PERSIST) {
+				Trace.log(TraceCategory.PERSIST, Level.FINEST, "Loaded metadata {0} of user {1}: {2}",
+						node, user, value);
+			}
+			metadata.put(node, new DataValue(value));
 		}
+		return metadata;
 	}
 
 	@Override
-	public void saveUser(User user) {
-		try {
-			String path = "users/" + user.getName();
-			savePermissions(user);
-			saveData(user);
-			String groupName = user.getGroup() != null ? user.getGroup().getName() : "";
-			data.getNode(path + "/group").setValue(groupName);
-			data.save();
-		} catch (ConfigurationException e) {
-			plugin.getLogger().severe("Failed to save user: " + user.getName() + ": " + e.getMessage());
+	protected User readUser(String user) {
+		Map<String, YamlSnapshot.Entry> prefetched = this.prefetched;
+		if (prefetched != null) {
+			return readSnapshotUser(prefetched.get(NameIndex.canonical(user)));
+		}
+		if (loading) {
+			// the loading thread holds the lock of data, so nothing changes the configuration while it is read
+			return parseUser(user);
+		}
+		synchronized (data) {
+			try {
+				ensureLoaded();
+			} catch (ConfigurationException e) {
+				logger.severe("Failed to load user data: " + e.getMessage());
+			} catch (IOException e) {
+				logger.severe("Failed to replay user journal: " + e.getMessage());
+			}
+			return parseUser(user);
 		}
 	}
 
-	@Override
-	public void loadUser(String user) {
+	private User parseUser(String user) {
 		// Create new user
 		String path = "users/" + user;
-		User u = new User(plugin, user);
+		User u = new User(this, user);
 		// Turn off auto-saving for the user while loading - data will not save to disk.
 		u.setAutoSave(false);
 		// Load permissions and data
-		loadPermissions(u);
-		loadData(u);
+		u.initialize(readPermissions(user), readMetadata(user));
 		// Load group
 		Group group = groupManager.getGroup(data.getNode(path + "/group").getString(groupManager.getDefaultGroup().getName()));
 		u.setGroup(group);
-		group.addUser(u);
-		// Turn auto-save back on and add user.
+		// Turn auto-save back on.
 		u.setAutoSave(true);
-		debug("\tLoaded " + u.getName());
-		users.add(u);
-	}
-
-	private void savePermissions(User user) {
-		debug("Saving permission nodes for user: " + user.getName());
-		String path = "users/" + user.getName();
-		Set<Map.Entry<String, Boolean>> perms = user.getPermissions().entrySet();
-		for (Map.Entry<String, Boolean> perm : perms) {
-			String node = perm.getKey();
-			boolean value = perm.getValue();
-			debug("\tNode: " + node);
-			debug("\tValue: " + value);
-			data.getNode(path + "/permissions/" + node).setValue(value);
+		if (Trace.PERSIST) {
+			Trace.log(TraceCategory.PERSIST, Level.FINER, "Loaded user {0} in group {1}",
+					u.getName(), group.getName());
 		}
+		return u;
 	}
 
-	private void saveData(User user) {
-		debug("Saving metadata for user: " + user.getName());
-		String path = "users/" + user.getName();
-		Set<Map.Entry<String, DataValue>> values = user.getMetadataMap().entrySet();
-		for (Map.Entry<String, DataValue> value : values) {
-			String key = value.getKey();
-			DataValue v = value.getValue();
-			debug("\tKey: " + key);
-			debug("\tValue: " + v);
-			data.getNode(path + "/metadata/" + key).setValue(v);
+	@Override
+	protected void store(Map<String, Map<String, Object>> serialized) throws IOException {
+		synchronized (data) {
+			for (Map.Entry<String, Map<String, Object>> entry : serialized.entrySet()) {
+				set("users/" + entry.getKey(), entry.getValue());
+			}
 		}
 	}
 
 	@Override
-	public void addUser(String username) {
-		try {
-			String path = "users/" + username;
-			data.getNode(path + "/group").setValue(groupManager.getDefaultGroup().getName());
-			data.save();
-			loadUser(username);
-		} catch (ConfigurationException e) {
-			plugin.getLogger().severe("Failed to add user " + username + ": " + e.getMessage());
+	protected void delete(String name) {
+		synchronized (data) {
+			try {
+				set("users/" + name, null);
+			} catch (IOException e) {
+				logger.severe("Failed to write user journal: " + e.getMessage());
+			}
 		}
 	}
 
-	@Override
-	public void removeUser(String username) {
+	private void set(String path, Object value) throws IOException {
 		try {
-			User user = getUser(username);
-			if (user == null) {
-				return;
-			}
-			users.remove(user);
-			data.getNode("users/" + username).setValue(null);
-			data.save();
+			ensureLoaded();
 		} catch (ConfigurationException e) {
-			plugin.getLogger().severe("Failed to remove user " + username + ": " + e.getMessage());
+			throw new IOException("Failed to load user data: " + e.getMessage(), e);
 		}
+		journal.set(path, value);
 	}
 
 	@Override
-	public User getUser(String name) {
-		for (User user : users) {
-			if (user.getName().equalsIgnoreCase(name)) {
-				return user;
+	protected void commit() throws IOException {
+		synchronized (data) {
+			journal.sync();
+			// an edit that was not applied yet is not overwritten, the journal is replayed on top of it instead
+			if (journal.needsCompaction() && !edited()) {
+				// the changes are synced to the journal already, a failed compaction is retried with the next commit
+				try {
+					journal.compact();
+					stamp();
+				} catch (IOException e) {
+					logger.severe("Failed to compact user journal: " + e.getMessage());
+				} catch (ConfigurationException e) {
+					logger.severe("Failed to save user data: " + e.getMessage());
+				}
 			}
 		}
-		return null;
-	}
-
-	@Override
-	public Set<User> getUsers() {
-		return users;
 	}
 
 	@Override
-	public void clear() {
-		users.clear();
+	public void close() {
+		super.close();
+		synchronized (data) {
+			try {
+				// a file that failed to load is never overwritten, its journal is kept for the next load. A suspended
+				// manager leaves the file to the manager that took it over.
+				if (loaded && journal.getSize() > 0 && !edited() && !isSuspended()) {
+					journal.compact();
+					stamp();
+				}
+				journal.close();
+			} catch (IOException e) {
+				logger.severe("Failed to write user journal: " + e.getMessage());
+				return;
+			} catch (ConfigurationException e) {
+				logger.severe("Failed to save user data: " + e.getMessage());
+				return;
+			}
+			// the snapshot is only written once the YAML file is up to date
+			if (Settings.SNAPSHOT_ENABLED.getBoolean() && !isSuspended()) {
+				try {
+					writeSnapshot();
+				} catch (IOException e) {
+					logger.severe("Failed to write user snapshot: " + e.getMessage());
+				}
+			}
+		}
 	}
 }
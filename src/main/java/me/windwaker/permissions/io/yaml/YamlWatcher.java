@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2012-2013 ${developer}, <http://windwaker.me>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package me.windwaker.permissions.io.yaml;
+
+import java.io.File;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import me.windwaker.permissions.trace.Trace;
+import me.windwaker.permissions.trace.TraceCategory;
+
+/**
+ * Watches 'groups.yml' and 'users.yml' for edits made by hand or by other tools and applies them to the groups and
+ * users in memory without a reload.
+ * <p>
+ * The files are polled for their length and modification time on a background thread, confirmed by their checksum
+ * while the modification time is too recent to tell edits apart. An edited file is applied once it stayed unchanged
+ * for the debounce delay, so a tool writing it in several steps causes a single update.
+ * Writes of the managers themselves are recognized by the managers and ignored.
+ * @author Windwaker
+ */
+public class YamlWatcher {
+	private final Logger logger;
+	private final YamlGroupManager groupManager;
+	private final YamlUserManager userManager;
+	private final long debounce;
+	private final WatchedFile groups;
+	private final WatchedFile users;
+	private final ScheduledExecutorService executor;
+	private volatile boolean paused;
+
+	/**
+	 * Constructs and starts a new watcher.
+	 * @param logger to log to
+	 * @param groupManager whose file is watched
+	 * @param userManager whose file is watched
+	 * @param interval between checks in milliseconds
+	 * @param debounce milliseconds an edited file has to stay unchanged before it is applied
+	 */
+	public YamlWatcher(Logger logger, YamlGroupManager groupManager, YamlUserManager userManager, long interval,
+			long debounce) {
+		this.logger = logger;
+		this.groupManager = groupManager;
+		this.userManager = userManager;
+		this.debounce = debounce;
+		groups = new WatchedFile(groupManager.getFile());
+		users = new WatchedFile(userManager.getFile());
+		executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "WindPerms-watcher");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		executor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					check();
+				} catch (RuntimeException e) {
+					// a failed check must not stop the following ones
+					logger.log(Level.SEVERE, "Failed to apply changes of the data files", e);
+				}
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Checks both files and applies the edited ones, the groups first since users refer to them.
+	 */
+	public synchronized void check() {
+		if (paused) {
+			// the edits are still detected after resuming, since the managers did not read them
+			return;
+		}
+		long now = System.currentTimeMillis();
+		if (groups.settled(now) && groupManager.isModifiedExternally()) {
+			if (Trace.PERSIST) {
+				Trace.log(TraceCategory.PERSIST, Level.FINE, "{0} was edited, applying changes", groups.file.getName());
+			}
+			groupManager.applyExternalChanges(userManager);
+		}
+		if (users.settled(now) && userManager.isModifiedExternally()) {
+			if (Trace.PERSIST) {
+				Trace.log(TraceCategory.PERSIST, Level.FINE, "{0} was edited, applying changes", users.file.getName());
+			}
+			userManager.applyExternalChanges();
+		}
+	}
+
+	/**
+	 * Stops applying edits until {@link #resume()}, e.g. while the managers do not write. Waits for edits that
+	 * are being applied.
+	 */
+	public synchronized void pause() {
+		paused = true;
+	}
+
+	/**
+	 * Applies edits again after {@link #pause()}.
+	 */
+	public void resume() {
+		paused = false;
+	}
+
+	/**
+	 * Stops the background thread, waiting for changes that are being applied.
+	 */
+	public void close() {
+		executor.shutdown();
+		try {
+			executor.awaitTermination(10, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * State of a file when it was last checked.
+	 */
+	private final class WatchedFile {
+		private final File file;
+		private final FileStamp stamp;
+		private long changed;
+		private boolean pending;
+
+		private WatchedFile(File file) {
+			this.file = file;
+			stamp = new FileStamp(file);
+			stamp.update();
+		}
+
+		/**
+		 * Whether the file changed and then stayed unchanged for the debounce delay since the last call that
+		 * returned true.
+		 */
+		private boolean settled(long now) {
+			if (stamp.changed()) {
+				stamp.update();
+				changed = now;
+				pending = true;
+				return false;
+			}
+			if (pending && now - changed >= debounce) {
+				pending = false;
+				return true;
+			}
+			return false;
+		}
+	}
+}
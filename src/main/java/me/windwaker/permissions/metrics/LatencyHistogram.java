@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2012-2013 ${developer}, <http://windwaker.me>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package me.windwaker.permissions.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies in nanoseconds with a bounded relative error, in the manner of HdrHistogram.
+ * <p>
+ * Every power of two is split into 32 linear buckets, so a recorded value is off by at most 1/32 (about 3%) of
+ * itself, and the whole range up to hours fits into a fixed array. Recording a value is a bucket
+ * computation and an atomic increment; nothing is allocated.
+ * @author Windwaker
+ */
+public final class LatencyHistogram {
+	private static final int SUB_BUCKET_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	// values of 2^44 ns (about 4.9 hours) and more share the last bucket
+	private static final int MAX_EXPONENT = 43;
+	private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final StripedCounter total = new StripedCounter();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Records a latency.
+	 * @param nanos latency in nanoseconds
+	 */
+	public void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		counts.getAndIncrement(index(nanos));
+		total.add(nanos);
+		long current;
+		while (nanos > (current = max.get()) && !max.compareAndSet(current, nanos)) {
+		}
+	}
+
+	/**
+	 * Clears all recorded latencies.
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts.set(i, 0);
+		}
+		total.reset();
+		max.set(0);
+	}
+
+	/**
+	 * Copies the recorded latencies. Latencies recorded concurrently may or may not be included.
+	 * @return snapshot
+	 */
+	public Snapshot snapshot() {
+		long[] copy = new long[BUCKETS];
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			copy[i] = counts.get(i);
+			count += copy[i];
+		}
+		return new Snapshot(copy, count, total.get(), max.get());
+	}
+
+	private static int index(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int exponent = Math.min(63 - Long.numberOfLeadingZeros(value), MAX_EXPONENT);
+		int shift = exponent - SUB_BUCKET_BITS;
+		int sub = (int) Math.min(value >>> shift, 2 * SUB_BUCKETS - 1) - SUB_BUCKETS;
+		return (shift + 1) * SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * Gets the greatest value that is recorded in the bucket at the specified index.
+	 */
+	private static long highestValue(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int shift = index / SUB_BUCKETS - 1;
+		long top = index % SUB_BUCKETS + SUB_BUCKETS;
+		return ((top + 1) << shift) - 1;
+	}
+
+	/**
+	 * Immutable copy of the latencies recorded by a {@link LatencyHistogram}.
+	 */
+	public static final class Snapshot {
+		private final long[] counts;
+		private final long count;
+		private final long total;
+		private final long max;
+
+		private Snapshot(long[] counts, long count, long total, long max) {
+			this.counts = counts;
+			this.count = count;
+			this.total = total;
+			this.max = max;
+		}
+
+		/**
+		 * Gets the number of recorded latencies.
+		 * @return count
+		 */
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * Gets the sum of all recorded latencies.
+		 * @return total in nanoseconds
+		 */
+		public long getTotal() {
+			return total;
+		}
+
+		/**
+		 * Gets the mean latency.
+		 * @return mean in nanoseconds or 0 if nothing was recorded
+		 */
+		public double getMean() {
+			return count == 0 ? 0 : (double) total / count;
+		}
+
+		/**
+		 * Gets the greatest recorded latency.
+		 * @return max in nanoseconds
+		 */
+		public long getMax() {
+			return max;
+		}
+
+		/**
+		 * Gets the latency at a percentile, i.e. the least latency that the specified percentage of the recorded
+		 * latencies does not exceed.
+		 * @param percentile between 0 and 100
+		 * @return latency in nanoseconds or 0 if nothing was recorded
+		 */
+		public long getPercentile(double percentile) {
+			if (count == 0) {
+				return 0;
+			}
+			long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen >= rank) {
+					// the last bucket is unbounded
+					return i == counts.length - 1 ? max : Math.min(highestValue(i), max);
+				}
+			}
+			return max;
+		}
+	}
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2012-2013 ${developer}, <http://windwaker.me>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package me.windwaker.permissions.metrics;
+
+/**
+ * Timed operations of WindPerms. Each operation records its latencies into its own {@link LatencyHistogram}:
+ * <pre>
+ * long start = System.nanoTime();
+ * try {
+ *     ...
+ * } finally {
+ *     Metric.NODE_EVENT.record(start);
+ * }
+ * </pre>
+ * @author Windwaker
+ */
+public enum Metric {
+	/**
+	 * Handling of a PermissionNodeEvent.
+	 */
+	NODE_EVENT("getNodes"),
+	/**
+	 * Batch permission query through {@link me.windwaker.permissions.WindPerms#hasPermissions}.
+	 */
+	BATCH_QUERY("hasPermissions"),
+	/**
+	 * Handling of a PermissionGroupsEvent.
+	 */
+	GROUPS_EVENT("getGroups"),
+	/**
+	 * Handling of a RetrieveDataEvent.
+	 */
+	DATA_EVENT("retrieveData"),
+	/**
+	 * Handling of a PlayerLoginEvent.
+	 */
+	PLAYER_LOGIN("playerLogin"),
+	/**
+	 * Recomputation of the inheritance of all groups, or of the groups changed by a load or transaction.
+	 */
+	RELOAD_INHERITANCE("reloadInheritance"),
+	/**
+	 * Commit of a {@link me.windwaker.permissions.permissible.Transaction}.
+	 */
+	TRANSACTION("transaction.commit"),
+	/**
+	 * Loading of all groups.
+	 */
+	GROUPS_LOAD("groups.load"),
+	/**
+	 * Synchronous write of all changed groups.
+	 */
+	GROUPS_SAVE("groups.save"),
+	/**
+	 * Queueing of a changed group.
+	 */
+	GROUP_SAVE("groups.saveGroup"),
+	/**
+	 * Loading of all users.
+	 */
+	USERS_LOAD("users.load"),
+	/**
+	 * Synchronous write of all changed users.
+	 */
+	USERS_SAVE("users.save"),
+	/**
+	 * Queueing of a changed user.
+	 */
+	USER_SAVE("users.saveUser");
+
+	private static volatile long since = System.nanoTime();
+	private final String key;
+	private final LatencyHistogram histogram = new LatencyHistogram();
+
+	private Metric(String key) {
+		this.key = key;
+	}
+
+	/**
+	 * Records an operation that started at the specified time and ends now.
+	 * @param start {@link System#nanoTime()} at the start of the operation
+	 */
+	public void record(long start) {
+		histogram.record(System.nanoTime() - start);
+	}
+
+	/**
+	 * Gets the name of the operation in reports.
+	 * @return key
+	 */
+	public String getKey() {
+		return key;
+	}
+
+	/**
+	 * Copies the latencies recorded since the last reset.
+	 * @return snapshot
+	 */
+	public LatencyHistogram.Snapshot snapshot() {
+		return histogram.snapshot();
+	}
+
+	/**
+	 * Gets the time since the last reset.
+	 * @return time in nanoseconds
+	 */
+	public static long getElapsed() {
+		return System.nanoTime() - since;
+	}
+
+	/**
+	 * Clears the latencies of all operations.
+	 */
+	public static void resetAll() {
+		for (Metric metric : values()) {
+			metric.histogram.reset();
+		}
+		since = System.nanoTime();
+	}
+}
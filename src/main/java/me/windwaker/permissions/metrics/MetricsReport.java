@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2012-2013 ${developer}, <http://windwaker.me>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package me.windwaker.permissions.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import me.windwaker.permissions.io.GroupManager;
+import me.windwaker.permissions.io.UserManager;
+import me.windwaker.permissions.permissible.DecisionCache;
+import me.windwaker.permissions.permissible.NodeDictionary;
+
+/**
+ * Human-readable summary of the {@link Metric}s, the decision cache and the memory footprint, shared by the
+ * stats command and the metrics file.
+ * @author Windwaker
+ */
+public final class MetricsReport {
+	private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+	private static final String[] PERCENTILE_NAMES = {"p50", "p90", "p99", "p99.9"};
+
+	private MetricsReport() {
+	}
+
+	/**
+	 * Builds the report.
+	 * @param groupManager to report the groups of
+	 * @param userManager to report the users of
+	 * @return lines of the report
+	 */
+	public static List<String> build(GroupManager groupManager, UserManager userManager) {
+		List<String> lines = new ArrayList<String>();
+		long elapsed = Metric.getElapsed();
+		double seconds = Math.max(1, elapsed) / 1e9;
+		lines.add("Metrics of the last " + formatDuration(elapsed) + ":");
+		for (Metric metric : Metric.values()) {
+			LatencyHistogram.Snapshot snapshot = metric.snapshot();
+			if (snapshot.getCount() == 0) {
+				continue;
+			}
+			StringBuilder line = new StringBuilder();
+			line.append(metric.getKey()).append(": ").append(snapshot.getCount()).append(" calls, ");
+			line.append(String.format("%.1f", snapshot.getCount() / seconds)).append("/s, mean ");
+			line.append(formatNanos(Math.round(snapshot.getMean())));
+			for (int i = 0; i < PERCENTILES.length; i++) {
+				line.append(", ").append(PERCENTILE_NAMES[i]).append(' ');
+				line.append(formatNanos(snapshot.getPercentile(PERCENTILES[i])));
+			}
+			line.append(", max ").append(formatNanos(snapshot.getMax()));
+			lines.add(line.toString());
+		}
+
+		long hits = DecisionCache.getHits();
+		long misses = DecisionCache.getMisses();
+		long lookups = hits + misses;
+		lines.add("Decision cache: " + hits + " hits, " + misses + " misses"
+				+ (lookups > 0 ? String.format(" (%.1f%% hit rate)", 100.0 * hits / lookups) : "") + ".");
+
+		Runtime runtime = Runtime.getRuntime();
+		long used = runtime.totalMemory() - runtime.freeMemory();
+		lines.add("Memory: " + formatBytes(used) + " of " + formatBytes(runtime.maxMemory()) + " heap used, "
+				+ groupManager.getGroups().size() + " groups, " + userManager.getUsers().size() + " users, "
+				+ NodeDictionary.size() + " distinct nodes.");
+		return lines;
+	}
+
+	private static String formatNanos(long nanos) {
+		if (nanos < 1000) {
+			return nanos + "ns";
+		} else if (nanos < 1000000) {
+			return String.format("%.1fus", nanos / 1e3);
+		} else if (nanos < 1000000000) {
+			return String.format("%.1fms", nanos / 1e6);
+		}
+		return String.format("%.2fs", nanos / 1e9);
+	}
+
+	private static String formatDuration(long nanos) {
+		long seconds = TimeUnit.NANOSECONDS.toSeconds(nanos);
+		if (seconds < 60) {
+			return seconds + "s";
+		} else if (seconds < 3600) {
+			return seconds / 60 + "m " + seconds % 60 + "s";
+		}
+		return seconds / 3600 + "h " + seconds / 60 % 60 + "m";
+	}
+
+	private static String formatBytes(long bytes) {
+		return String.format("%.1f MB", bytes / (1024.0 * 1024.0));
+	}
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2012-2013 ${developer}, <http://windwaker.me>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package me.windwaker.permissions.metrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import me.windwaker.permissions.WindPerms;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Periodically writes the {@link MetricsReport} to a local file on a background thread.
+ * @author Windwaker
+ */
+public class MetricsWriter {
+	private final WindPerms plugin;
+	private final File file;
+	private final ScheduledExecutorService executor;
+
+	/**
+	 * Constructs and starts a new writer.
+	 * @param plugin whose managers are reported
+	 * @param file to write the report to
+	 * @param interval between writes in seconds
+	 */
+	public MetricsWriter(WindPerms plugin, File file, long interval) {
+		this.plugin = plugin;
+		this.file = file;
+		executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "WindPerms-metrics-writer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		executor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				write();
+			}
+		}, interval, interval, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Writes the report now. The report is written to a temporary file first, so readers never see a partial
+	 * report.
+	 */
+	public void write() {
+		List<String> lines = new ArrayList<String>();
+		lines.add("# " + new Date());
+		lines.addAll(MetricsReport.build(plugin.getGroupManager(), plugin.getUserManager()));
+		File temp = new File(file.getPath() + ".tmp");
+		try {
+			FileUtils.writeLines(temp, lines);
+			if (!temp.renameTo(file) && (!file.delete() || !temp.renameTo(file))) {
+				throw new IOException("could not replace " + file);
+			}
+		} catch (IOException e) {
+			plugin.getLogger().severe("Failed to write metrics: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Stops the background thread and writes a final report.
+	 */
+	public void close() {
+		executor.shutdown();
+		try {
+			executor.awaitTermination(10, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		write();
+	}
+}
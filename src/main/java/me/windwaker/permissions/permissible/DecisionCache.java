@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2012-2013 ${developer}, <http://windwaker.me>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package me.windwaker.permissions.permissible;
+
+import me.windwaker.permissions.metrics.StripedCounter;
+
+import org.spout.api.event.Result;
+
+/**
+ * Bounded cache of the resolved states of the nodes queried on one subject, including nodes that resolved to
+ * {@link Result#DEFAULT}.
+ * <p>
+ * The cache is direct-mapped: every node hashes to one slot and replaces whatever node was cached there. Entries
+ * are tagged with the version of the subject's {@link EffectiveView} they were resolved from, so publishing a new
+ * view invalidates only the cache of that subject and a stale entry is detected by a single compare.
+ * @author Windwaker
+ */
+public final class DecisionCache {
+	private static final StripedCounter HITS = new StripedCounter();
+	private static final StripedCounter MISSES = new StripedCounter();
+	// entries are immutable, so racing writers only overwrite each other's entries
+	private final Entry[] entries;
+	private final int mask;
+
+	/**
+	 * Constructs a new cache.
+	 * @param size number of entries, rounded up to a power of two
+	 */
+	public DecisionCache(int size) {
+		int capacity = Integer.highestOneBit(Math.max(1, size - 1)) << 1;
+		entries = new Entry[capacity];
+		mask = capacity - 1;
+	}
+
+	/**
+	 * Gets the number of lookups answered from a cache.
+	 * @return hits
+	 */
+	public static long getHits() {
+		return HITS.get();
+	}
+
+	/**
+	 * Gets the number of lookups that had to be resolved.
+	 * @return misses
+	 */
+	public static long getMisses() {
+		return MISSES.get();
+	}
+
+	/**
+	 * Gets the cached state of a node.
+	 * @param node to look up
+	 * @param version of the view the lookup is answered for
+	 * @return cached state or null if not cached
+	 */
+	public Result get(String node, long version) {
+		Entry entry = entries[spread(node.hashCode()) & mask];
+		if (entry != null && entry.version == version && entry.node.equals(node)) {
+			HITS.increment();
+			return entry.result;
+		}
+		MISSES.increment();
+		return null;
+	}
+
+	/**
+	 * Caches the state of a node.
+	 * @param node that was resolved
+	 * @param result state of the node
+	 * @param version of the view the node was resolved from
+	 */
+	public void put(String node, Result result, long version) {
+		entries[spread(node.hashCode()) & mask] = new Entry(node, result, version);
+	}
+
+	private static int spread(int hash) {
+		return hash ^ (hash >>> 16);
+	}
+
+	private static final class Entry {
+		private final String node;
+		private final Result result;
+		private final long version;
+
+		private Entry(String node, Result result, long version) {
+			this.node = node;
+			this.result = result;
+			this.version = version;
+		}
+	}
+}
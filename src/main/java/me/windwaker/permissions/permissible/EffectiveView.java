@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2012-2013 ${developer}, <http://windwaker.me>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package me.windwaker.permissions.permissible;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.spout.api.data.DataValue;
+import org.spout.api.event.Result;
+
+/**
+ * Immutable snapshot of the effective (inherited merged with direct) nodes and metadata of a {@link Permissible}.
+ * A new view is built and published whenever the subject changes, so readers never observe a partial update.
+ * <p>
+ * The inherited and direct nodes and metadata are kept as separate layers rather than copied into one set: a node
+ * is resolved against the direct exact nodes, then the inherited exact nodes and finally the patterns of both, and
+ * a metadata key is looked up in the direct then the inherited metadata. Users thereby share the inherited layers,
+ * and the compiled patterns, with the view of their group.
+ * @author Windwaker
+ */
+public final class EffectiveView {
+	/**
+	 * The view of a subject with no nodes and no metadata.
+	 */
+	public static final EffectiveView EMPTY = new EffectiveView(0, NodeSet.EMPTY, NodeSet.EMPTY,
+			Collections.<String, DataValue>emptyMap(), Collections.<String, DataValue>emptyMap(), MetadataStore.EMPTY,
+			MetadataStore.EMPTY, false);
+	private final long version;
+	private final NodeSet inheritedNodes;
+	private final NodeSet directNodes;
+	private final Map<String, DataValue> inheritedMetadata;
+	private final Map<String, DataValue> directMetadata;
+	private final MetadataStore inheritedStore;
+	private final MetadataStore directStore;
+	private final PermissionTree tree;
+	private volatile NodeSet nodes;
+	private volatile Map<String, DataValue> metadata;
+	private volatile MetadataStore store;
+
+	/**
+	 * Builds a new view. Direct entries override inherited entries.
+	 * @param version of the view
+	 * @param inheritedNodes of the subject
+	 * @param directNodes of the subject
+	 * @param inheritedMetadata of the subject, must not be modified afterwards
+	 * @param directMetadata of the subject, must not be modified afterwards
+	 * @param inheritedStore typed form of the inherited metadata
+	 * @param directStore typed form of the direct metadata
+	 * @param wildcard whether the root wildcard '*' is honored
+	 */
+	public EffectiveView(long version, NodeSet inheritedNodes, NodeSet directNodes, Map<String, DataValue> inheritedMetadata,
+						 Map<String, DataValue> directMetadata, MetadataStore inheritedStore, MetadataStore directStore,
+						 boolean wildcard) {
+		this.version = version;
+		this.inheritedNodes = inheritedNodes;
+		this.directNodes = directNodes;
+		this.inheritedMetadata = inheritedMetadata;
+		this.directMetadata = directMetadata;
+		this.inheritedStore = inheritedStore;
+		this.directStore = directStore;
+		if (directNodes.getPatterns().isEmpty()) {
+			// share the compiled patterns of the inherited set
+			tree = inheritedNodes.getTree(wildcard);
+		} else {
+			tree = getNodeSet().getTree(wildcard);
+		}
+	}
+
+	/**
+	 * Gets the version of this view. Each view published for a subject has a higher version than the last.
+	 * @return version
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Gets the effective nodes as one set, merged on first use.
+	 * @return effective nodes
+	 */
+	public NodeSet getNodeSet() {
+		NodeSet nodes = this.nodes;
+		if (nodes == null) {
+			nodes = inheritedNodes.overriddenBy(directNodes);
+			this.nodes = nodes;
+		}
+		return nodes;
+	}
+
+	/**
+	 * Lists the effective nodes.
+	 * @return new map of nodes
+	 */
+	public Map<String, Boolean> getNodes() {
+		return getNodeSet().toMap();
+	}
+
+	/**
+	 * Gets the effective metadata, merged on first use.
+	 * @return unmodifiable metadata
+	 */
+	public Map<String, DataValue> getMetadata() {
+		Map<String, DataValue> metadata = this.metadata;
+		if (metadata == null) {
+			if (directMetadata.isEmpty()) {
+				metadata = inheritedMetadata;
+			} else if (inheritedMetadata.isEmpty()) {
+				metadata = directMetadata;
+			} else {
+				metadata = new HashMap<String, DataValue>(inheritedMetadata);
+				metadata.putAll(directMetadata);
+				metadata = Collections.unmodifiableMap(metadata);
+			}
+			this.metadata = metadata;
+		}
+		return metadata;
+	}
+
+	/**
+	 * Gets the typed form of the effective metadata, merged on first use. Subjects without metadata of their own
+	 * share the store of the group(s) they inherit from.
+	 * @return typed metadata
+	 */
+	public MetadataStore getStore() {
+		MetadataStore store = this.store;
+		if (store == null) {
+			store = inheritedStore.overriddenBy(directStore);
+			this.store = store;
+		}
+		return store;
+	}
+
+	/**
+	 * Gets an effective metadata entry.
+	 * @param key of entry
+	 * @return value or null
+	 */
+	public DataValue getMetadata(String key) {
+		DataValue value = directMetadata.get(key);
+		return value != null ? value : inheritedMetadata.get(key);
+	}
+
+	/**
+	 * Resolves the state of a node. An exact node is more specific than any pattern.
+	 * @param node to resolve
+	 * @return resolved state
+	 * @see PermissionTree#resolve(String)
+	 */
+	public Result resolve(String node) {
+		Result result = directNodes.resolveExact(node);
+		if (result == null) {
+			result = inheritedNodes.resolveExact(node);
+		}
+		return result != null ? result : tree.resolve(node);
+	}
+
+	/**
+	 * Resolves the state of a precompiled node.
+	 * @param handle of node to resolve
+	 * @return resolved state
+	 * @see #resolve(String)
+	 */
+	public Result resolve(NodeHandle handle) {
+		int id = handle.getId();
+		Result result = directNodes.resolveExact(id);
+		if (result == null) {
+			result = inheritedNodes.resolveExact(id);
+		}
+		return result != null ? result : tree.resolve(handle);
+	}
+}
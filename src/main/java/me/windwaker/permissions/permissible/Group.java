@@ -22,10 +22,14 @@
  */
 package me.windwaker.permissions.permissible;
 
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.locks.ReentrantLock;
 
 import me.windwaker.permissions.WindPerms;
 import me.windwaker.permissions.io.GroupManager;
@@ -38,17 +42,28 @@ import org.spout.api.data.DataValue;
  */
 public class Group extends Permissible {
 	private final GroupManager groupManager;
-	private final Map<Group, Boolean> indirectInheritedGroups = new HashMap<Group, Boolean>();
-	private final Map<Group, Boolean> inheritedGroups = new HashMap<Group, Boolean>();
-	private final Set<User> users = new HashSet<User>();
+	// inheritance maps are copied on write and replaced as a whole, so readers can use them without locking
+	private volatile Map<Group, Boolean> indirectInheritedGroups = Collections.emptyMap();
+	private volatile Map<Group, Boolean> inheritedGroups = Collections.emptyMap();
+	private final Set<Group> children = new CopyOnWriteArraySet<Group>();
+	private final Set<User> users = Collections.newSetFromMap(new ConcurrentHashMap<User, Boolean>());
 
 	/**
 	 * Constructs a new Group with the specified name.
 	 * @param name
 	 */
 	public Group(WindPerms plugin, String name) {
+		this(plugin.getGroupManager(), name);
+	}
+
+	/**
+	 * Constructs a new Group with the specified name, managed by the specified manager.
+	 * @param groupManager managing the group
+	 * @param name
+	 */
+	public Group(GroupManager groupManager, String name) {
 		super(name);
-		groupManager = plugin.getGroupManager();
+		this.groupManager = groupManager;
 	}
 
 	/**
@@ -78,8 +93,8 @@ public class Group extends Permissible {
 	}
 
 	/**
-	 * Gets groups that were not inherited indirectly
-	 * @return map of groups
+	 * Gets groups that are inherited through other inherited groups
+	 * @return unmodifiable map of groups
 	 */
 	public Map<Group, Boolean> getIndirectInheritedGroups() {
 		return indirectInheritedGroups;
@@ -87,83 +102,128 @@ public class Group extends Permissible {
 
 	/**
 	 * Gets any inherited groups.
-	 * @return inherited groups.
+	 * @return unmodifiable inherited groups.
 	 */
 	public Map<Group, Boolean> getInheritedGroups() {
 		return inheritedGroups;
 	}
 
+	/**
+	 * Gets the groups that directly inherit this group.
+	 * @return inheriting groups
+	 */
+	public Set<Group> getChildren() {
+		return children;
+	}
+
 	/**
 	 * Adds an inherited group.
 	 * @param group to inherit
 	 */
 	public void setInheritedGroup(Group group, boolean inherit) {
-		setInheritedGroup(group, inherit, true);
-	}
-
-	private void setInheritedGroup(Group group, boolean inherit, boolean direct) {
-		if (direct) {
-			// direct groups save to disk
-			inheritedGroups.put(group, inherit);
-		} else {
-			// inherited do not save to disk
-			indirectInheritedGroups.put(group, inherit);
-		}
-
-		if (inherit) {
-			inheritGroups(group);
+		ReentrantLock lock = getWriteLock();
+		lock.lock();
+		try {
+			// no circle inheritance here
+			if (inherit && (group == this || group.isAssignableFrom(this))) {
+				throw new IllegalStateException("Group " + group.getName() + " already inherits " + name + ". Two groups may not inherit each other.");
+			}
+			Map<Group, Boolean> inherited = new LinkedHashMap<Group, Boolean>(inheritedGroups);
+			inherited.put(group, inherit);
+			inheritedGroups = Collections.unmodifiableMap(inherited);
+			if (inherit) {
+				group.children.add(this);
+			} else {
+				group.children.remove(this);
+			}
+			groupManager.reloadInheritance(this);
+		} finally {
+			lock.unlock();
 		}
-
-		// load data from inherited groups
-		inheritData();
 		if (autoSave) save();
 	}
 
-	public void reloadInheritance() {
-		for (Map.Entry<Group, Boolean> entry : indirectInheritedGroups.entrySet()) {
-			if (entry.getValue()) {
-				inheritGroups(entry.getKey());
-			}
+	/**
+	 * Replaces the inherited groups without recomputing anything, used to build the graph in bulk while loading.
+	 * The caller holds the write lock and rebuilds the graph with {@link InheritanceGraph#rebuild} once all groups
+	 * are linked.
+	 * @param inherited groups to inherit
+	 */
+	public void linkInheritedGroups(Map<Group, Boolean> inherited) {
+		for (Group parent : inheritedGroups.keySet()) {
+			parent.children.remove(this);
 		}
-		for (Map.Entry<Group, Boolean> entry : inheritedGroups.entrySet()) {
+		inheritedGroups = Collections.unmodifiableMap(new LinkedHashMap<Group, Boolean>(inherited));
+		for (Map.Entry<Group, Boolean> entry : inherited.entrySet()) {
 			if (entry.getValue()) {
-				inheritGroups(entry.getKey());
+				entry.getKey().children.add(this);
 			}
 		}
 	}
 
-	private void inheritGroups(Group group) {
-		// no circle inheritance here
-		if (group.isAssignableFrom(this))
-			throw new IllegalStateException("Group " + group.getName() + " already inherits " + name + ". Two groups may not inherit each other.");
-		// inherit the groups inherited groups
-		for (Map.Entry<Group, Boolean> entry : group.getIndirectInheritedGroups().entrySet())
-			setInheritedGroup(entry.getKey(), entry.getValue(), false);
-		for (Map.Entry<Group, Boolean> entry : group.getInheritedGroups().entrySet())
-			setInheritedGroup(entry.getKey(), entry.getValue(), false);
-	}
-
-	private void inheritData() {
-		inheritAll(indirectInheritedGroups);
-		inheritAll(inheritedGroups);
+	/**
+	 * Removes an inherited group entirely.
+	 * @param group to remove
+	 */
+	public void removeInheritedGroup(Group group) {
+		ReentrantLock lock = getWriteLock();
+		lock.lock();
+		try {
+			if (!inheritedGroups.containsKey(group)) {
+				return;
+			}
+			Map<Group, Boolean> inherited = new LinkedHashMap<Group, Boolean>(inheritedGroups);
+			inherited.remove(group);
+			inheritedGroups = Collections.unmodifiableMap(inherited);
+			group.children.remove(this);
+			groupManager.reloadInheritance(this);
+		} finally {
+			lock.unlock();
+		}
+		if (autoSave) save();
 	}
 
-	private void inheritAll(Map<Group, Boolean> groupMap) {
-		for (Map.Entry<Group, Boolean> entry : groupMap.entrySet()) {
+	/**
+	 * Recomputes the inherited groups, nodes and metadata of this group from its direct parents. The parents must
+	 * be up to date; {@link InheritanceGraph} guarantees this by visiting parents first. Called with the write lock
+	 * held.
+	 */
+	void inheritData() {
+		Map<Group, Boolean> indirect = new HashMap<Group, Boolean>();
+		NodeSet nodes = NodeSet.EMPTY;
+		Map<String, DataValue> metadata = null;
+		MetadataStore store = MetadataStore.EMPTY;
+		for (Map.Entry<Group, Boolean> entry : inheritedGroups.entrySet()) {
 			if (entry.getValue()) {
-				Group group = entry.getKey();
-				// inherit nodes
-				for (Map.Entry<String, Boolean> node : group.getInheritedPermissions().entrySet())
-					inheritedNodes.put(node.getKey(), node.getValue());
-				for (Map.Entry<String, Boolean> node : group.getPermissions().entrySet())
-					inheritedNodes.put(node.getKey(), node.getValue());
-				// inherit data
-				for (Map.Entry<String, DataValue> data : group.getInheritedMetadataMap().entrySet())
-					inheritedMetadata.put(data.getKey(), data.getValue());
-				for (Map.Entry<String, DataValue> data : group.getMetadataMap().entrySet())
-					inheritedMetadata.put(data.getKey(), data.getValue());
+				Group parent = entry.getKey();
+				// the parent's ancestors are indirect ancestors of this group
+				for (Group ancestor : parent.getIndirectInheritedGroups().keySet()) {
+					indirect.put(ancestor, true);
+				}
+				for (Map.Entry<Group, Boolean> ancestor : parent.getInheritedGroups().entrySet()) {
+					if (ancestor.getValue()) {
+						indirect.put(ancestor.getKey(), true);
+					}
+				}
+				// inherit the parent's effective nodes and data
+				EffectiveView view = parent.getView();
+				nodes = nodes.overriddenBy(view.getNodeSet());
+				store = store.overriddenBy(view.getStore());
+				if (metadata == null) {
+					// a single parent's metadata is shared rather than copied
+					metadata = view.getMetadata();
+				} else {
+					metadata = new HashMap<String, DataValue>(metadata);
+					metadata.putAll(view.getMetadata());
+					metadata = Collections.unmodifiableMap(metadata);
+				}
 			}
 		}
+		inheritedNodes = nodes;
+		inheritedMetadata = metadata != null ? metadata : Collections.<String, DataValue>emptyMap();
+		inheritedStore = store;
+		indirectInheritedGroups = Collections.unmodifiableMap(indirect);
+		publish();
 	}
 
 	/**
@@ -172,24 +232,59 @@ public class Group extends Permissible {
 	 * @return true if inherits
 	 */
 	public boolean isAssignableFrom(Group group) {
-		if (inheritedGroups.containsKey(group)) {
-			return inheritedGroups.get(group);
-		} else if (indirectInheritedGroups.containsKey(group)) {
-			return indirectInheritedGroups.get(group);
+		Boolean direct = inheritedGroups.get(group);
+		if (direct != null && direct) {
+			return true;
 		}
-		return false;
+		return indirectInheritedGroups.containsKey(group);
 	}
 
 	@Override
 	public void setMetadata(String node, DataValue value) {
-		super.setMetadata(node, value);
-		groupManager.reloadInheritance();
+		ReentrantLock lock = getWriteLock();
+		lock.lock();
+		try {
+			super.setMetadata(node, value);
+			groupManager.reloadInheritance(this);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void setMetadata(Map<String, DataValue> entries) {
+		ReentrantLock lock = getWriteLock();
+		lock.lock();
+		try {
+			super.setMetadata(entries);
+			groupManager.reloadInheritance(this);
+		} finally {
+			lock.unlock();
+		}
 	}
 
 	@Override
 	public void setPermission(String node, boolean state) {
-		super.setPermission(node, state);
-		groupManager.reloadInheritance();
+		ReentrantLock lock = getWriteLock();
+		lock.lock();
+		try {
+			super.setPermission(node, state);
+			groupManager.reloadInheritance(this);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void setPermissions(Map<String, Boolean> nodes) {
+		ReentrantLock lock = getWriteLock();
+		lock.lock();
+		try {
+			super.setPermissions(nodes);
+			groupManager.reloadInheritance(this);
+		} finally {
+			lock.unlock();
+		}
 	}
 
 	@Override
@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) 2012-2013 ${developer}, <http://windwaker.me>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package me.windwaker.permissions.permissible;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+
+import me.windwaker.permissions.trace.Trace;
+import me.windwaker.permissions.trace.TraceCategory;
+
+/**
+ * Propagates changes through the group inheritance DAG.
+ * <p>
+ * The edges of the graph are the inherited groups of each {@link Group}. Changed groups are marked dirty and
+ * {@link #update()} recomputes only the dirty groups, the groups inheriting them (directly or indirectly) and the
+ * users of those groups, visiting parents before children so every group is recomputed exactly once.
+ * <p>
+ * The graph is not thread-safe; callers hold {@link Permissible#getWriteLock()}.
+ * @author Windwaker
+ */
+public class InheritanceGraph {
+	private final Set<Group> dirty = new LinkedHashSet<Group>();
+
+	/**
+	 * Marks a group as changed.
+	 * @param group that changed
+	 */
+	public void markDirty(Group group) {
+		dirty.add(group);
+	}
+
+	/**
+	 * Whether any group is waiting to be recomputed.
+	 * @return true if dirty
+	 */
+	public boolean isDirty() {
+		return !dirty.isEmpty();
+	}
+
+	/**
+	 * Recomputes the dirty groups, their descendants and the users of all of them.
+	 * @throws IllegalStateException if the affected groups contain an inheritance cycle
+	 */
+	public void update() {
+		if (dirty.isEmpty()) {
+			return;
+		}
+		List<Group> order = sort(collect(dirty));
+		if (Trace.INHERITANCE) {
+			Trace.log(TraceCategory.INHERITANCE, Level.FINE, "Recomputing {0} groups for {1} changed groups",
+					order.size(), dirty.size());
+		}
+		dirty.clear();
+		for (Group group : order) {
+			group.inheritData();
+		}
+		for (Group group : order) {
+			for (User user : group.getUsers()) {
+				user.inherit(group);
+			}
+		}
+	}
+
+	/**
+	 * Recomputes all groups in a single pass after their edges were linked in bulk with
+	 * {@link Group#linkInheritedGroups(Map)}. The graph is checked for cycles once; if it contains any, the edges
+	 * are linked again in order and every edge closing a cycle is dropped, the way
+	 * {@link Group#setInheritedGroup(Group, boolean)} would have refused it.
+	 * @param groups all groups, in the order their edges were read
+	 * @return the dropped edges, inheriting group to the parents it no longer inherits
+	 */
+	public Map<Group, Set<Group>> rebuild(Collection<Group> groups) {
+		Set<Group> all = new LinkedHashSet<Group>(groups);
+		Map<Group, Set<Group>> dropped = new LinkedHashMap<Group, Set<Group>>();
+		try {
+			sort(all);
+		} catch (IllegalStateException e) {
+			breakCycles(all, dropped);
+		}
+		dirty.addAll(all);
+		update();
+		return dropped;
+	}
+
+	private static void breakCycles(Set<Group> groups, Map<Group, Set<Group>> dropped) {
+		Map<Group, Map<Group, Boolean>> edges = new LinkedHashMap<Group, Map<Group, Boolean>>();
+		for (Group group : groups) {
+			edges.put(group, group.getInheritedGroups());
+			group.linkInheritedGroups(Collections.<Group, Boolean>emptyMap());
+		}
+		for (Map.Entry<Group, Map<Group, Boolean>> entry : edges.entrySet()) {
+			Group group = entry.getKey();
+			Map<Group, Boolean> linked = new LinkedHashMap<Group, Boolean>();
+			for (Map.Entry<Group, Boolean> edge : entry.getValue().entrySet()) {
+				Group parent = edge.getKey();
+				if (edge.getValue() && (parent == group || inherits(parent, group))) {
+					Set<Group> parents = dropped.get(group);
+					if (parents == null) {
+						parents = new LinkedHashSet<Group>();
+						dropped.put(group, parents);
+					}
+					parents.add(parent);
+					continue;
+				}
+				linked.put(parent, edge.getValue());
+				group.linkInheritedGroups(linked);
+			}
+		}
+	}
+
+	/**
+	 * Whether a group inherits another through the edges linked so far.
+	 */
+	private static boolean inherits(Group group, Group ancestor) {
+		Set<Group> visited = new HashSet<Group>();
+		LinkedList<Group> queue = new LinkedList<Group>();
+		queue.add(group);
+		while (!queue.isEmpty()) {
+			for (Map.Entry<Group, Boolean> edge : queue.poll().getInheritedGroups().entrySet()) {
+				if (edge.getValue() && visited.add(edge.getKey())) {
+					if (edge.getKey() == ancestor) {
+						return true;
+					}
+					queue.add(edge.getKey());
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Collects the specified groups and all of their descendants.
+	 */
+	private static Set<Group> collect(Set<Group> roots) {
+		Set<Group> affected = new LinkedHashSet<Group>();
+		LinkedList<Group> queue = new LinkedList<Group>(roots);
+		while (!queue.isEmpty()) {
+			Group group = queue.poll();
+			if (affected.add(group)) {
+				queue.addAll(group.getChildren());
+			}
+		}
+		return affected;
+	}
+
+	/**
+	 * Sorts the affected groups so that every group comes after all of its affected parents.
+	 */
+	private static List<Group> sort(Set<Group> affected) {
+		Map<Group, Integer> parents = new HashMap<Group, Integer>();
+		LinkedList<Group> ready = new LinkedList<Group>();
+		for (Group group : affected) {
+			int count = 0;
+			for (Map.Entry<Group, Boolean> entry : group.getInheritedGroups().entrySet()) {
+				if (entry.getValue() && affected.contains(entry.getKey())) {
+					count++;
+				}
+			}
+			parents.put(group, count);
+			if (count == 0) {
+				ready.add(group);
+			}
+		}
+
+		List<Group> order = new ArrayList<Group>(affected.size());
+		while (!ready.isEmpty()) {
+			Group group = ready.poll();
+			order.add(group);
+			for (Group child : group.getChildren()) {
+				Integer count = parents.get(child);
+				if (count != null) {
+					parents.put(child, count - 1);
+					if (count == 1) {
+						ready.add(child);
+					}
+				}
+			}
+		}
+
+		if (order.size() != affected.size()) {
+			throw new IllegalStateException("Group inheritance contains a cycle.");
+		}
+		return order;
+	}
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright (c) 2012-2013 ${developer}, <http://windwaker.me>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package me.windwaker.permissions.permissible;
+
+import java.lang.ref.WeakReference;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.spout.api.data.DataValue;
+
+/**
+ * Immutable, typed form of the metadata of a subject. Every value is parsed once, when the store is built, into
+ * primitive slots, so typed lookups neither convert nor box on each read. Keys and string values are interned in
+ * one pool, so a format string defined by many groups is kept once. The pool holds its strings weakly, so the
+ * values of users that were unloaded or changed do not accumulate in it.
+ * <p>
+ * A value fills the slots it can be read as: a number the long and double slots, a boolean or 'true'/'false'
+ * the boolean slot, and every value the string slot. Strings holding a number fill the numeric slots too.
+ * @author Windwaker
+ */
+public final class MetadataStore {
+	/**
+	 * The store without entries.
+	 */
+	public static final MetadataStore EMPTY = new MetadataStore(new LinkedHashMap<String, Object>());
+	// guarded by itself; the keys are only referenced by the values, so an entry is dropped with its last store
+	private static final Map<String, WeakReference<String>> strings = new WeakHashMap<String, WeakReference<String>>();
+	private static final byte LONG = 1;
+	private static final byte DOUBLE = 2;
+	private static final byte BOOLEAN = 4;
+	// the raw values by key, kept to merge stores
+	private final Map<String, Object> raw;
+	// open addressing table of the keys, the slots of each entry are at the index of its key
+	private final String[] keys;
+	private final byte[] types;
+	private final long[] longs;
+	private final double[] doubles;
+	private final String[] values;
+
+	private MetadataStore(Map<String, Object> raw) {
+		this.raw = raw;
+		int capacity = Integer.highestOneBit(Math.max(1, raw.size() * 2 - 1)) << 1;
+		keys = new String[capacity];
+		types = new byte[capacity];
+		longs = new long[capacity];
+		doubles = new double[capacity];
+		values = new String[capacity];
+		for (Map.Entry<String, Object> entry : raw.entrySet()) {
+			int i = entry.getKey().hashCode() & (capacity - 1);
+			while (keys[i] != null) {
+				i = (i + 1) & (capacity - 1);
+			}
+			keys[i] = intern(entry.getKey());
+			parse(i, entry.getValue());
+		}
+	}
+
+	/**
+	 * Builds a store from metadata.
+	 * @param metadata to store
+	 * @return store
+	 */
+	public static MetadataStore of(Map<String, DataValue> metadata) {
+		if (metadata.isEmpty()) {
+			return EMPTY;
+		}
+		Map<String, Object> raw = new LinkedHashMap<String, Object>(metadata.size() * 2);
+		for (Map.Entry<String, DataValue> entry : metadata.entrySet()) {
+			Object value = entry.getValue() != null ? entry.getValue().getValue() : null;
+			if (value instanceof String) {
+				value = intern((String) value);
+			}
+			if (value != null) {
+				raw.put(entry.getKey(), value);
+			}
+		}
+		return raw.isEmpty() ? EMPTY : new MetadataStore(raw);
+	}
+
+	/**
+	 * Returns the canonical instance of a string, shared by every store.
+	 * @param string to intern
+	 * @return canonical instance
+	 */
+	public static String intern(String string) {
+		synchronized (strings) {
+			WeakReference<String> reference = strings.get(string);
+			String canonical = reference != null ? reference.get() : null;
+			if (canonical == null) {
+				strings.put(string, new WeakReference<String>(string));
+				canonical = string;
+			}
+			return canonical;
+		}
+	}
+
+	private void parse(int i, Object value) {
+		byte type = 0;
+		if (value instanceof Number) {
+			Number number = (Number) value;
+			longs[i] = number.longValue();
+			doubles[i] = number.doubleValue();
+			type = LONG | DOUBLE;
+		} else if (value instanceof Boolean) {
+			longs[i] = (Boolean) value ? 1 : 0;
+			type = BOOLEAN;
+		} else {
+			String string = value.toString().trim();
+			if (string.equalsIgnoreCase("true") || string.equalsIgnoreCase("false")) {
+				longs[i] = string.equalsIgnoreCase("true") ? 1 : 0;
+				type = BOOLEAN;
+			} else {
+				try {
+					longs[i] = Long.parseLong(string);
+					doubles[i] = longs[i];
+					type = LONG | DOUBLE;
+				} catch (NumberFormatException notLong) {
+					try {
+						doubles[i] = Double.parseDouble(string);
+						longs[i] = (long) doubles[i];
+						type = LONG | DOUBLE;
+					} catch (NumberFormatException notNumber) {
+						// a string only
+					}
+				}
+			}
+		}
+		types[i] = type;
+		values[i] = intern(value.toString());
+	}
+
+	/**
+	 * Gets a store holding the entries of this store overridden by the entries of the specified store.
+	 * @param higher store whose entries win
+	 * @return merged store
+	 */
+	public MetadataStore overriddenBy(MetadataStore higher) {
+		if (higher.raw.isEmpty()) {
+			return this;
+		}
+		if (raw.isEmpty()) {
+			return higher;
+		}
+		Map<String, Object> merged = new LinkedHashMap<String, Object>(raw);
+		merged.putAll(higher.raw);
+		return new MetadataStore(merged);
+	}
+
+	private int indexOf(String key) {
+		int mask = keys.length - 1;
+		for (int i = key.hashCode() & mask; keys[i] != null; i = (i + 1) & mask) {
+			if (keys[i].equals(key)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Whether the store has an entry.
+	 * @param key of entry
+	 * @return true if defined
+	 */
+	public boolean contains(String key) {
+		return indexOf(key) >= 0;
+	}
+
+	/**
+	 * Whether the store has an entry that can be read as a number.
+	 * @param key of entry
+	 * @return true if numeric
+	 */
+	public boolean isNumber(String key) {
+		int i = indexOf(key);
+		return i >= 0 && (types[i] & LONG) != 0;
+	}
+
+	/**
+	 * Whether the store has an entry that can be read as a boolean.
+	 * @param key of entry
+	 * @return true if boolean
+	 */
+	public boolean isBoolean(String key) {
+		int i = indexOf(key);
+		return i >= 0 && (types[i] & BOOLEAN) != 0;
+	}
+
+	/**
+	 * Gets an entry as a string.
+	 * @param key of entry
+	 * @param def returned if not defined
+	 * @return value
+	 */
+	public String getString(String key, String def) {
+		int i = indexOf(key);
+		return i >= 0 ? values[i] : def;
+	}
+
+	/**
+	 * Gets an entry as an int, truncating decimals.
+	 * @param key of entry
+	 * @param def returned if not defined or not a number
+	 * @return value
+	 */
+	public int getInt(String key, int def) {
+		int i = indexOf(key);
+		return i >= 0 && (types[i] & LONG) != 0 ? (int) longs[i] : def;
+	}
+
+	/**
+	 * Gets an entry as a long, truncating decimals.
+	 * @param key of entry
+	 * @param def returned if not defined or not a number
+	 * @return value
+	 */
+	public long getLong(String key, long def) {
+		int i = indexOf(key);
+		return i >= 0 && (types[i] & LONG) != 0 ? longs[i] : def;
+	}
+
+	/**
+	 * Gets an entry as a double.
+	 * @param key of entry
+	 * @param def returned if not defined or not a number
+	 * @return value
+	 */
+	public double getDouble(String key, double def) {
+		int i = indexOf(key);
+		return i >= 0 && (types[i] & DOUBLE) != 0 ? doubles[i] : def;
+	}
+
+	/**
+	 * Gets an entry as a boolean.
+	 * @param key of entry
+	 * @param def returned if not defined or not a boolean
+	 * @return value
+	 */
+	public boolean getBoolean(String key, boolean def) {
+		int i = indexOf(key);
+		return i >= 0 && (types[i] & BOOLEAN) != 0 ? longs[i] != 0 : def;
+	}
+
+	/**
+	 * Gets the number of entries.
+	 * @return size of store
+	 */
+	public int size() {
+		return raw.size();
+	}
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2012-2013 ${developer}, <http://windwaker.me>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package me.windwaker.permissions.permissible;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Global dictionary giving every exact permission node an int id, so node sets can be stored as bitsets and each
+ * node string is kept once no matter how many subjects define it. Ids are never reused.
+ * @author Windwaker
+ */
+public final class NodeDictionary {
+	private static final ConcurrentMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+	private static final Object lock = new Object();
+	private static volatile String[] nodes = new String[1024];
+	private static volatile int size;
+
+	private NodeDictionary() {
+	}
+
+	/**
+	 * Gets the id of a node, assigning a new one if the node is not known yet.
+	 * @param node to intern
+	 * @return id of node
+	 */
+	public static int intern(String node) {
+		Integer id = ids.get(node);
+		if (id != null) {
+			return id;
+		}
+		synchronized (lock) {
+			id = ids.get(node);
+			if (id == null) {
+				id = size;
+				String[] nodes = NodeDictionary.nodes;
+				if (id == nodes.length) {
+					nodes = Arrays.copyOf(nodes, nodes.length * 2);
+				}
+				nodes[id] = node;
+				NodeDictionary.nodes = nodes;
+				// the id is published only after the node can be looked up by it
+				size = id + 1;
+				ids.put(node, id);
+			}
+			return id;
+		}
+	}
+
+	/**
+	 * Gets the id of a node without assigning one.
+	 * @param node to look up
+	 * @return id of node or -1 if the node is not known
+	 */
+	public static int lookup(String node) {
+		Integer id = ids.get(node);
+		return id != null ? id : -1;
+	}
+
+	/**
+	 * Gets the node with the specified id.
+	 * @param id of node
+	 * @return node
+	 */
+	public static String getNode(int id) {
+		return nodes[id];
+	}
+
+	/**
+	 * Gets the number of known nodes.
+	 * @return size of dictionary
+	 */
+	public static int size() {
+		return size;
+	}
+}
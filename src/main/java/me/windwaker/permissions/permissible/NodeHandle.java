@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2012-2013 ${developer}, <http://windwaker.me>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package me.windwaker.permissions.permissible;
+
+/**
+ * Precompiled permission node for callers that check the same nodes repeatedly. The node is interned in the
+ * {@link NodeDictionary} and the hashes of its segments are computed once, so resolving a handle neither looks the
+ * node up by string nor hashes it again.
+ * <p>
+ * Every compiled node is kept in the dictionary for the lifetime of the server; handles are meant for a fixed set of
+ * nodes compiled once, not for arbitrary input.
+ * @author Windwaker
+ */
+public final class NodeHandle {
+	private final String node;
+	private final int id;
+	// end index and String#hashCode of each '.' separated segment
+	final int[] ends;
+	final int[] hashes;
+
+	private NodeHandle(String node) {
+		this.node = node;
+		id = NodeDictionary.intern(node);
+		int segments = 1;
+		for (int i = 0; i < node.length(); i++) {
+			if (node.charAt(i) == '.') {
+				segments++;
+			}
+		}
+		ends = new int[segments];
+		hashes = new int[segments];
+		int segment = 0;
+		int hash = 0;
+		for (int i = 0; i < node.length(); i++) {
+			char c = node.charAt(i);
+			if (c == '.') {
+				ends[segment] = i;
+				hashes[segment++] = hash;
+				hash = 0;
+			} else {
+				hash = 31 * hash + c;
+			}
+		}
+		ends[segment] = node.length();
+		hashes[segment] = hash;
+	}
+
+	/**
+	 * Compiles a node.
+	 * @param node to compile
+	 * @return handle of node
+	 */
+	public static NodeHandle of(String node) {
+		return new NodeHandle(node);
+	}
+
+	/**
+	 * Compiles several nodes.
+	 * @param nodes to compile
+	 * @return handles of the nodes, in the same order
+	 */
+	public static NodeHandle[] of(String... nodes) {
+		NodeHandle[] handles = new NodeHandle[nodes.length];
+		for (int i = 0; i < nodes.length; i++) {
+			handles[i] = new NodeHandle(nodes[i]);
+		}
+		return handles;
+	}
+
+	/**
+	 * Gets the node of the handle.
+	 * @return node
+	 */
+	public String getNode() {
+		return node;
+	}
+
+	/**
+	 * Gets the id of the node in the {@link NodeDictionary}.
+	 * @return id of node
+	 */
+	public int getId() {
+		return id;
+	}
+
+	@Override
+	public String toString() {
+		return node;
+	}
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright (c) 2012-2013 ${developer}, <http://windwaker.me>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package me.windwaker.permissions.permissible;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.spout.api.event.Result;
+
+/**
+ * Immutable set of permission nodes and their states.
+ * <p>
+ * Exact nodes, including every node a '{a,b}' pattern expands to, are stored as {@link NodeDictionary} ids, one set
+ * for granted and one for denied nodes; a node both granted and denied is denied. Small sets, such as the direct
+ * nodes of most users, keep their ids in sorted arrays, as a bitset is as long as the highest id in the dictionary.
+ * Larger sets and the merged sets of groups use bitsets. Nodes with '*' or '!' segments are kept as patterns and
+ * compiled into a {@link PermissionTree} on first use.
+ * @author Windwaker
+ */
+public final class NodeSet {
+	/**
+	 * The set without any nodes.
+	 */
+	public static final NodeSet EMPTY = new NodeSet(new int[0], new int[0], Collections.<String, Boolean>emptyMap());
+	// most exact nodes of a set kept in sorted arrays
+	private static final int SPARSE_LIMIT = 64;
+	// either the bitsets or the sorted arrays are set
+	private final BitSet grants;
+	private final BitSet denials;
+	private final int[] grantIds;
+	private final int[] denialIds;
+	private final Map<String, Boolean> patterns;
+	private volatile PermissionTree tree;
+
+	private NodeSet(BitSet grants, BitSet denials, Map<String, Boolean> patterns) {
+		this.grants = grants;
+		this.denials = denials;
+		this.patterns = patterns;
+		grantIds = null;
+		denialIds = null;
+	}
+
+	private NodeSet(int[] grantIds, int[] denialIds, Map<String, Boolean> patterns) {
+		this.grantIds = grantIds;
+		this.denialIds = denialIds;
+		this.patterns = patterns;
+		grants = null;
+		denials = null;
+	}
+
+	/**
+	 * Builds the set of the specified nodes.
+	 * @param nodes to add
+	 * @return node set
+	 */
+	public static NodeSet of(Map<String, Boolean> nodes) {
+		if (nodes.isEmpty()) {
+			return EMPTY;
+		}
+		BitSet grants = new BitSet();
+		BitSet denials = new BitSet();
+		Map<String, Boolean> patterns = new HashMap<String, Boolean>();
+		for (Map.Entry<String, Boolean> entry : nodes.entrySet()) {
+			String node = entry.getKey();
+			if (isPattern(node)) {
+				patterns.put(node, entry.getValue());
+				continue;
+			}
+			BitSet target = entry.getValue() ? grants : denials;
+			for (String exact : expand(node)) {
+				target.set(NodeDictionary.intern(exact));
+			}
+		}
+		grants.andNot(denials);
+		Map<String, Boolean> unmodifiable = patterns.isEmpty() ? Collections.<String, Boolean>emptyMap() : Collections.unmodifiableMap(patterns);
+		if (grants.cardinality() + denials.cardinality() <= SPARSE_LIMIT) {
+			return new NodeSet(toIds(grants), toIds(denials), unmodifiable);
+		}
+		return new NodeSet(grants, denials, unmodifiable);
+	}
+
+	private static int[] toIds(BitSet bits) {
+		int[] ids = new int[bits.cardinality()];
+		int n = 0;
+		for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1)) {
+			ids[n++] = i;
+		}
+		return ids;
+	}
+
+	private static BitSet toBits(BitSet bits, int[] ids) {
+		if (bits != null) {
+			return (BitSet) bits.clone();
+		}
+		BitSet copy = new BitSet();
+		for (int id : ids) {
+			copy.set(id);
+		}
+		return copy;
+	}
+
+	private static boolean contains(BitSet bits, int[] ids, int id) {
+		return bits != null ? bits.get(id) : Arrays.binarySearch(ids, id) >= 0;
+	}
+
+	/**
+	 * Whether a node has a '*' or '!' segment and can only be matched by a {@link PermissionTree}.
+	 */
+	private static boolean isPattern(String node) {
+		int from = 0;
+		while (true) {
+			int to = node.indexOf('.', from);
+			if (to < 0) {
+				to = node.length();
+			}
+			if (to - from == 1 && node.charAt(from) == '*' || to - from > 1 && node.charAt(from) == '!') {
+				return true;
+			}
+			if (to == node.length()) {
+				return false;
+			}
+			from = to + 1;
+		}
+	}
+
+	/**
+	 * Expands the '{a,b}' segments of a node into all exact nodes.
+	 */
+	private static List<String> expand(String node) {
+		List<String> expanded = new ArrayList<String>();
+		expanded.add("");
+		String[] segments = node.split("\\.", -1);
+		for (int i = 0; i < segments.length; i++) {
+			String segment = segments[i];
+			String[] alternatives = {segment};
+			if (segment.length() > 1 && segment.charAt(0) == '{' && segment.charAt(segment.length() - 1) == '}') {
+				alternatives = segment.substring(1, segment.length() - 1).split(",", -1);
+			}
+			List<String> next = new ArrayList<String>(expanded.size() * alternatives.length);
+			for (String prefix : expanded) {
+				for (String alternative : alternatives) {
+					next.add(i == 0 ? alternative : prefix + "." + alternative);
+				}
+			}
+			expanded = next;
+		}
+		return expanded;
+	}
+
+	/**
+	 * Layers another set on top of this one: nodes of the other set replace the same nodes of this set.
+	 * @param higher set to layer on top
+	 * @return combined set
+	 */
+	public NodeSet overriddenBy(NodeSet higher) {
+		if (higher.isEmpty()) {
+			return this;
+		}
+		if (isEmpty()) {
+			return higher;
+		}
+		BitSet higherGrants = toBits(higher.grants, higher.grantIds);
+		BitSet higherDenials = toBits(higher.denials, higher.denialIds);
+		BitSet grants = toBits(this.grants, grantIds);
+		grants.andNot(higherDenials);
+		grants.or(higherGrants);
+		BitSet denials = toBits(this.denials, denialIds);
+		denials.andNot(higherGrants);
+		denials.or(higherDenials);
+		Map<String, Boolean> patterns = this.patterns;
+		if (!higher.patterns.isEmpty()) {
+			patterns = new HashMap<String, Boolean>(this.patterns);
+			patterns.putAll(higher.patterns);
+			patterns = Collections.unmodifiableMap(patterns);
+		}
+		return new NodeSet(grants, denials, patterns);
+	}
+
+	/**
+	 * Whether the exact nodes are kept in sorted arrays rather than bitsets.
+	 * @return true if sparse
+	 */
+	boolean isSparse() {
+		return grants == null;
+	}
+
+	/**
+	 * Whether the set has no nodes.
+	 * @return true if empty
+	 */
+	public boolean isEmpty() {
+		if (grants != null) {
+			return grants.isEmpty() && denials.isEmpty() && patterns.isEmpty();
+		}
+		return grantIds.length == 0 && denialIds.length == 0 && patterns.isEmpty();
+	}
+
+	/**
+	 * Resolves a node against the exact nodes of the set only.
+	 * @param node to resolve
+	 * @return {@link Result#ALLOW} or {@link Result#DENY} if the exact node is in the set, null otherwise
+	 */
+	public Result resolveExact(String node) {
+		int id = NodeDictionary.lookup(node);
+		if (id < 0) {
+			return null;
+		}
+		return resolveExact(id);
+	}
+
+	/**
+	 * Resolves a node against the exact nodes of the set only.
+	 * @param id of node in the {@link NodeDictionary}
+	 * @return {@link Result#ALLOW} or {@link Result#DENY} if the exact node is in the set, null otherwise
+	 */
+	public Result resolveExact(int id) {
+		if (contains(grants, grantIds, id)) {
+			return Result.ALLOW;
+		}
+		if (contains(denials, denialIds, id)) {
+			return Result.DENY;
+		}
+		return null;
+	}
+
+	/**
+	 * Gets the patterns of the set.
+	 * @return unmodifiable patterns
+	 */
+	public Map<String, Boolean> getPatterns() {
+		return patterns;
+	}
+
+	/**
+	 * Gets the patterns of the set compiled into a tree. The tree is compiled once and shared by every view using
+	 * this set.
+	 * @param wildcard whether the root wildcard '*' is honored
+	 * @return compiled patterns
+	 */
+	public PermissionTree getTree(boolean wildcard) {
+		PermissionTree tree = this.tree;
+		if (tree == null || tree.isWildcard() != wildcard) {
+			// racing threads compile equal trees, only one is kept
+			tree = new PermissionTree(patterns, wildcard);
+			this.tree = tree;
+		}
+		return tree;
+	}
+
+	/**
+	 * Lists all nodes of the set.
+	 * @return new map of nodes
+	 */
+	public Map<String, Boolean> toMap() {
+		Map<String, Boolean> nodes = new HashMap<String, Boolean>(patterns);
+		if (grants == null) {
+			for (int id : grantIds) {
+				nodes.put(NodeDictionary.getNode(id), true);
+			}
+			for (int id : denialIds) {
+				nodes.put(NodeDictionary.getNode(id), false);
+			}
+			return nodes;
+		}
+		for (int i = grants.nextSetBit(0); i >= 0; i = grants.nextSetBit(i + 1)) {
+			nodes.put(NodeDictionary.getNode(i), true);
+		}
+		for (int i = denials.nextSetBit(0); i >= 0; i = denials.nextSetBit(i + 1)) {
+			nodes.put(NodeDictionary.getNode(i), false);
+		}
+		return nodes;
+	}
+}
@@ -22,25 +22,66 @@
  */
 package me.windwaker.permissions.permissible;
 
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import me.windwaker.permissions.io.NameIndex;
+import me.windwaker.permissions.io.Settings;
 
 import org.spout.api.data.DataValue;
+import org.spout.api.event.Result;
 
 /**
  * Represents a permissible entity.
+ * <p>
+ * Concurrency model: permission checks and metadata lookups only read the published {@link EffectiveView}, a
+ * volatile reference to an immutable object, and never lock. All writers, including inheritance propagation,
+ * are serialized by one global write lock (see {@link #getWriteLock()}). The raw maps are concurrent so the
+ * background writers and commands may iterate them while they change.
  * @author Windwaker
  */
 public abstract class Permissible {
+	private static final ReentrantLock WRITE_LOCK = new ReentrantLock();
 	protected final String name;
-	protected final Map<String, Boolean> permissionNodes = new HashMap<String, Boolean>();
-	protected final Map<String, Boolean> inheritedNodes = new HashMap<String, Boolean>();
-	protected final Map<String, DataValue> metadata = new HashMap<String, DataValue>();
-	protected final Map<String, DataValue> inheritedMetadata = new HashMap<String, DataValue>();
-	protected boolean autoSave = true;
+	// lower-cased name, compared by equals() and hashCode()
+	private final String canonicalName;
+	protected final Map<String, Boolean> permissionNodes = new ConcurrentHashMap<String, Boolean>();
+	protected volatile NodeSet inheritedNodes = NodeSet.EMPTY;
+	// compiled from permissionNodes on the next publish after they change
+	private NodeSet directNodes = NodeSet.EMPTY;
+	private boolean directNodesChanged;
+	// immutable copy of metadata, taken on the next publish after it changes
+	private Map<String, DataValue> directMetadata = Collections.emptyMap();
+	private MetadataStore directStore = MetadataStore.EMPTY;
+	private boolean directMetadataChanged;
+	protected final Map<String, DataValue> metadata = new ConcurrentHashMap<String, DataValue>();
+	// immutable, shared with the view of the group(s) it was inherited from
+	protected volatile Map<String, DataValue> inheritedMetadata = Collections.emptyMap();
+	protected volatile MetadataStore inheritedStore = MetadataStore.EMPTY;
+	protected volatile boolean autoSave = true;
+	private volatile EffectiveView view = EffectiveView.EMPTY;
+	// created on first check, most subjects are never checked
+	private DecisionCache cache;
+	// read when the subject is loaded, 0 disables the cache
+	private final int cacheSize;
 
 	public Permissible(String name) {
 		this.name = name;
+		canonicalName = NameIndex.canonical(name);
+		cacheSize = Settings.DECISION_CACHE_SIZE.getInt();
+	}
+
+	/**
+	 * Gets the lock serializing all changes to groups and users. Writers changing more than one subject at once
+	 * hold it for the whole change; readers never need it.
+	 * @return write lock
+	 */
+	public static ReentrantLock getWriteLock() {
+		return WRITE_LOCK;
 	}
 
 	/**
@@ -52,11 +93,11 @@ public abstract class Permissible {
 	}
 
 	/**
-	 * Gets the inherited nodes of the subject.
-	 * @return inherited nodes
+	 * Lists the inherited nodes of the subject.
+	 * @return new map of inherited nodes
 	 */
 	public Map<String, Boolean> getInheritedPermissions() {
-		return inheritedNodes;
+		return inheritedNodes.toMap();
 	}
 
 	/**
@@ -73,27 +114,191 @@ public abstract class Permissible {
 	 * @param state of node
 	 */
 	public void setPermission(String node, boolean state) {
-		permissionNodes.put(node, state);
+		WRITE_LOCK.lock();
+		try {
+			permissionNodes.put(node, state);
+			directNodesChanged = true;
+			publish();
+		} finally {
+			WRITE_LOCK.unlock();
+		}
 		if (autoSave) save();
 	}
 
 	/**
-	 * Whether or not the subject has permissions for said node.
+	 * Sets the state of multiple nodes for the subject, publishing and saving only once.
+	 * @param nodes to set
+	 */
+	public void setPermissions(Map<String, Boolean> nodes) {
+		WRITE_LOCK.lock();
+		try {
+			permissionNodes.putAll(nodes);
+			directNodesChanged = true;
+			publish();
+		} finally {
+			WRITE_LOCK.unlock();
+		}
+		if (autoSave) save();
+	}
+
+	/**
+	 * Sets the nodes and metadata of a subject that was just created and is not reachable by other threads yet.
+	 * The subject is compiled on the calling thread without taking the write lock, so loaders can set up many
+	 * subjects in parallel. Neither saves the subject nor propagates to inheriting subjects.
+	 * @param nodes to set or null
+	 * @param entries of metadata to set or null
+	 */
+	public void initialize(Map<String, Boolean> nodes, Map<String, DataValue> entries) {
+		putDirect(nodes, entries);
+		publish();
+	}
+
+	/**
+	 * Sets direct nodes and metadata without publishing them; the next {@link #publish()} compiles them. Nodes and
+	 * entries mapped to null are removed.
+	 * @param nodes to set or null
+	 * @param entries of metadata to set or null
+	 */
+	void putDirect(Map<String, Boolean> nodes, Map<String, DataValue> entries) {
+		if (nodes != null) {
+			for (Map.Entry<String, Boolean> node : nodes.entrySet()) {
+				if (node.getValue() != null) {
+					permissionNodes.put(node.getKey(), node.getValue());
+				} else {
+					permissionNodes.remove(node.getKey());
+				}
+			}
+			directNodesChanged = true;
+		}
+		if (entries != null) {
+			for (Map.Entry<String, DataValue> entry : entries.entrySet()) {
+				if (entry.getValue() != null) {
+					metadata.put(entry.getKey(), entry.getValue());
+				} else {
+					metadata.remove(entry.getKey());
+				}
+			}
+			directMetadataChanged = true;
+		}
+	}
+
+	/**
+	 * Whether or not the subject has permissions for said node or one of its 'foo.*' parents.
 	 * @param node to check
 	 * @return true if permission
 	 */
 	public boolean hasPermission(String node) {
-		if (permissionNodes.containsKey(node)) {
-			return permissionNodes.get(node);
-		} else if (inheritedNodes.containsKey(node)) {
-			return inheritedNodes.get(node);
+		return resolvePermission(node) == Result.ALLOW;
+	}
+
+	/**
+	 * Resolves the state of said node, taking the most specific of the node, its 'foo.*' parents and the
+	 * wildcard node into account.
+	 * @param node to resolve
+	 * @return {@link Result#ALLOW} or {@link Result#DENY} if defined, {@link Result#DEFAULT} otherwise
+	 */
+	public Result resolvePermission(String node) {
+		// entries are tagged with the version of the view they were resolved from, so replacing the view
+		// invalidates them
+		EffectiveView view = this.view;
+		DecisionCache cache = getCache();
+		if (cache == null) {
+			return view.resolve(node);
+		}
+		Result result = cache.get(node, view.getVersion());
+		if (result == null) {
+			result = view.resolve(node);
+			cache.put(node, result, view.getVersion());
+		}
+		return result;
+	}
+
+	/**
+	 * Checks several nodes at once. All nodes are resolved against the same state of the subject.
+	 * @param nodes to check
+	 * @return bits of the nodes that resolve to {@link Result#ALLOW}, indexed like the nodes
+	 */
+	public BitSet hasPermissions(String... nodes) {
+		EffectiveView view = this.view;
+		long version = view.getVersion();
+		DecisionCache cache = getCache();
+		BitSet allowed = new BitSet(nodes.length);
+		for (int i = 0; i < nodes.length; i++) {
+			Result result = cache != null ? cache.get(nodes[i], version) : null;
+			if (result == null) {
+				result = view.resolve(nodes[i]);
+				if (cache != null) {
+					cache.put(nodes[i], result, version);
+				}
+			}
+			if (result == Result.ALLOW) {
+				allowed.set(i);
+			}
 		}
-		return false;
+		return allowed;
+	}
+
+	/**
+	 * Checks several precompiled nodes at once. All nodes are resolved against the same state of the subject;
+	 * the decision cache is bypassed, as resolving a handle does not hash the node.
+	 * @param nodes to check
+	 * @return bits of the nodes that resolve to {@link Result#ALLOW}, indexed like the nodes
+	 */
+	public BitSet hasPermissions(NodeHandle[] nodes) {
+		EffectiveView view = this.view;
+		BitSet allowed = new BitSet(nodes.length);
+		for (int i = 0; i < nodes.length; i++) {
+			if (view.resolve(nodes[i]) == Result.ALLOW) {
+				allowed.set(i);
+			}
+		}
+		return allowed;
+	}
+
+	private DecisionCache getCache() {
+		DecisionCache cache = this.cache;
+		if (cache == null) {
+			if (cacheSize <= 0) {
+				return null;
+			}
+			// racing threads may each create a cache, only one is kept
+			cache = new DecisionCache(cacheSize);
+			this.cache = cache;
+		}
+		return cache;
+	}
+
+	/**
+	 * Gets the current effective view of the subject. The view is immutable and replaced as a whole when the
+	 * subject changes.
+	 * @return effective view
+	 */
+	public EffectiveView getView() {
+		return view;
+	}
+
+	/**
+	 * Rebuilds the effective view from the direct and inherited nodes and metadata and publishes it. Must be called
+	 * by writers, holding the write lock, after any of them change.
+	 */
+	protected void publish() {
+		if (directNodesChanged) {
+			directNodes = NodeSet.of(permissionNodes);
+			directNodesChanged = false;
+		}
+		if (directMetadataChanged) {
+			directMetadata = metadata.isEmpty() ? Collections.<String, DataValue>emptyMap() : Collections.unmodifiableMap(new HashMap<String, DataValue>(metadata));
+			directStore = MetadataStore.of(directMetadata);
+			directMetadataChanged = false;
+		}
+		EffectiveView current = view;
+		view = new EffectiveView(current.getVersion() + 1, inheritedNodes, directNodes, inheritedMetadata,
+				directMetadata, inheritedStore, directStore, Settings.WILDCARD_ENABLED.getBoolean());
 	}
 
 	/**
 	 * Returns inherited data mapping.
-	 * @return data
+	 * @return unmodifiable data
 	 */
 	public Map<String, DataValue> getInheritedMetadataMap() {
 		return inheritedMetadata;
@@ -113,7 +318,30 @@ public abstract class Permissible {
 	 * @param value to set for node
 	 */
 	public void setMetadata(String node, DataValue value) {
-		metadata.put(node, value);
+		WRITE_LOCK.lock();
+		try {
+			metadata.put(node, value);
+			directMetadataChanged = true;
+			publish();
+		} finally {
+			WRITE_LOCK.unlock();
+		}
+		if (autoSave) save();
+	}
+
+	/**
+	 * Adds multiple data entries, publishing and saving only once.
+	 * @param entries to set
+	 */
+	public void setMetadata(Map<String, DataValue> entries) {
+		WRITE_LOCK.lock();
+		try {
+			metadata.putAll(entries);
+			directMetadataChanged = true;
+			publish();
+		} finally {
+			WRITE_LOCK.unlock();
+		}
 		if (autoSave) save();
 	}
 
@@ -132,12 +360,7 @@ public abstract class Permissible {
 	 * @return data value.
 	 */
 	public DataValue getMetadata(String node) {
-		if (metadata.containsKey(node)) {
-			return metadata.get(node);
-		} else if (inheritedMetadata.containsKey(node)) {
-			return inheritedMetadata.get(node);
-		}
-		return null;
+		return view.getMetadata(node);
 	}
 
 	/**
@@ -149,6 +372,57 @@ public abstract class Permissible {
 		return getMetadata(node) != null;
 	}
 
+	/**
+	 * Gets an entry as a string.
+	 * @param node of entry
+	 * @param def returned if not defined
+	 * @return value
+	 * @see MetadataStore
+	 */
+	public String getMetadataString(String node, String def) {
+		return view.getStore().getString(node, def);
+	}
+
+	/**
+	 * Gets an entry as an int, parsed when the metadata changed rather than on every call.
+	 * @param node of entry
+	 * @param def returned if not defined or not a number
+	 * @return value
+	 */
+	public int getMetadataInt(String node, int def) {
+		return view.getStore().getInt(node, def);
+	}
+
+	/**
+	 * Gets an entry as a long, parsed when the metadata changed rather than on every call.
+	 * @param node of entry
+	 * @param def returned if not defined or not a number
+	 * @return value
+	 */
+	public long getMetadataLong(String node, long def) {
+		return view.getStore().getLong(node, def);
+	}
+
+	/**
+	 * Gets an entry as a double, parsed when the metadata changed rather than on every call.
+	 * @param node of entry
+	 * @param def returned if not defined or not a number
+	 * @return value
+	 */
+	public double getMetadataDouble(String node, double def) {
+		return view.getStore().getDouble(node, def);
+	}
+
+	/**
+	 * Gets an entry as a boolean, parsed when the metadata changed rather than on every call.
+	 * @param node of entry
+	 * @param def returned if not defined or not a boolean
+	 * @return value
+	 */
+	public boolean getMetadataBoolean(String node, boolean def) {
+		return view.getStore().getBoolean(node, def);
+	}
+
 	/**
 	 * Sets whether or not the entity should save to disk automatically.
 	 * @param autoSave whether this should auto-save to disk when modified.
@@ -170,13 +444,21 @@ public abstract class Permissible {
 	 */
 	public abstract void save();
 
+	/**
+	 * Gets the name in the form used as key by the managers, see {@link NameIndex#canonical(String)}.
+	 * @return canonical name
+	 */
+	public String getCanonicalName() {
+		return canonicalName;
+	}
+
 	@Override
 	public boolean equals(Object obj) {
-		return obj instanceof Permissible && ((Permissible) obj).getName().equalsIgnoreCase(name);
+		return obj instanceof Permissible && ((Permissible) obj).canonicalName.equals(canonicalName);
 	}
 
 	@Override
 	public int hashCode() {
-		return name.hashCode();
+		return canonicalName.hashCode();
 	}
 }
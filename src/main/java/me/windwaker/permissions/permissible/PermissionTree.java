@@ -0,0 +1,433 @@
+/*
+ * Copyright (c) 2012-2013 ${developer}, <http://windwaker.me>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package me.windwaker.permissions.permissible;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+
+import me.windwaker.permissions.trace.Trace;
+import me.windwaker.permissions.trace.TraceCategory;
+
+import org.spout.api.event.Result;
+
+/**
+ * Compiled, read-only form of a subject's effective permission nodes.
+ * <p>
+ * Nodes are patterns over the '.' separated segments of a queried node. Each segment of a pattern is one of:
+ * <ul>
+ * <li>a literal, matching itself</li>
+ * <li>'*', matching any one segment or, as the last segment, one or more segments ('foo.*')</li>
+ * <li>'{a,b,c}', matching any of the listed literals</li>
+ * <li>'!a' or '!{a,b}', matching any one segment except the listed literals</li>
+ * </ul>
+ * The patterns are compiled into a deterministic automaton over segments, so a query walks the node once no matter
+ * how many patterns are defined. Overlapping wildcard and negated patterns can make the automaton grow
+ * exponentially, so it is limited to {@link #MAX_STATES} states; beyond that, queries walk the pattern trie and
+ * track every pattern that may still match instead. When several patterns match, the most specific wins: literal segments count
+ * twice as much as negated segments and wildcards count nothing. On equal specificity a denial wins. The root
+ * wildcard '*' is the least specific pattern and only honored if enabled.
+ * @author Windwaker
+ */
+public final class PermissionTree {
+	/**
+	 * Maximum number of states of the deterministic automaton.
+	 */
+	public static final int MAX_STATES = 4096;
+	private static final int UNDEFINED = -1;
+	// the automaton, or null if it exceeded the limit and the trie is walked instead
+	private final State start;
+	private final Pattern root;
+	private final boolean wildcard;
+
+	/**
+	 * Compiles a new tree.
+	 * @param nodes effective nodes of the subject
+	 * @param wildcard whether the root wildcard '*' is honored
+	 */
+	public PermissionTree(Map<String, Boolean> nodes, boolean wildcard) {
+		this(nodes, wildcard, MAX_STATES);
+	}
+
+	/**
+	 * Compiles a new tree with an automaton of at most the specified number of states.
+	 * @param nodes effective nodes of the subject
+	 * @param wildcard whether the root wildcard '*' is honored
+	 * @param maxStates number of states beyond which the trie is walked instead
+	 */
+	PermissionTree(Map<String, Boolean> nodes, boolean wildcard, int maxStates) {
+		this.wildcard = wildcard;
+		Pattern root = new Pattern();
+		for (Map.Entry<String, Boolean> entry : nodes.entrySet()) {
+			String node = entry.getKey();
+			if (node.equals("*") && !wildcard) {
+				continue;
+			}
+			root.add(node.split("\\.", -1), 0, 0, entry.getValue());
+		}
+		start = compile(root, maxStates);
+		if (start == null) {
+			if (Trace.RESOLVE) {
+				Trace.log(TraceCategory.RESOLVE, Level.FINE, "{0} nodes need more than {1} states, matching them without an automaton",
+						nodes.size(), maxStates);
+			}
+			this.root = root;
+		} else {
+			this.root = null;
+		}
+	}
+
+	/**
+	 * Whether the root wildcard '*' is honored.
+	 * @return true if honored
+	 */
+	public boolean isWildcard() {
+		return wildcard;
+	}
+
+	/**
+	 * Whether queries run on the automaton rather than walking the pattern trie.
+	 * @return true if the automaton was built
+	 */
+	boolean isAutomaton() {
+		return start != null;
+	}
+
+	/**
+	 * Resolves the state of a node.
+	 * @param node to resolve
+	 * @return {@link Result#ALLOW} or {@link Result#DENY} if a pattern matches the node, {@link Result#DEFAULT}
+	 *         otherwise
+	 */
+	public Result resolve(String node) {
+		if (start == null) {
+			return walk(node);
+		}
+		int best = UNDEFINED;
+		State state = start;
+		int from = 0;
+		while (true) {
+			int to = node.indexOf('.', from);
+			if (to < 0) {
+				to = node.length();
+			}
+			int hash = 0;
+			for (int i = from; i < to; i++) {
+				hash = 31 * hash + node.charAt(i);
+			}
+			// a segment follows, so the 'foo.*' patterns ending here match
+			best = Math.max(best, state.tail);
+			state = state.next(node, from, to, hash);
+			if (state == null) {
+				return toResult(best);
+			}
+			if (to == node.length()) {
+				return toResult(Math.max(best, state.exact));
+			}
+			from = to + 1;
+		}
+	}
+
+	/**
+	 * Resolves the state of a precompiled node, using the segment hashes of the handle.
+	 * @param handle of node to resolve
+	 * @return {@link Result#ALLOW} or {@link Result#DENY} if a pattern matches the node, {@link Result#DEFAULT}
+	 *         otherwise
+	 * @see #resolve(String)
+	 */
+	public Result resolve(NodeHandle handle) {
+		String node = handle.getNode();
+		if (start == null) {
+			return walk(node);
+		}
+		int[] ends = handle.ends;
+		int[] hashes = handle.hashes;
+		int best = UNDEFINED;
+		State state = start;
+		int from = 0;
+		for (int i = 0; i < ends.length; i++) {
+			best = Math.max(best, state.tail);
+			state = state.next(node, from, ends[i], hashes[i]);
+			if (state == null) {
+				return toResult(best);
+			}
+			from = ends[i] + 1;
+		}
+		return toResult(Math.max(best, state.exact));
+	}
+
+	/**
+	 * Resolves a node by walking the pattern trie, following every pattern that may still match.
+	 */
+	private Result walk(String node) {
+		int best = UNDEFINED;
+		Set<Pattern> patterns = identitySet();
+		patterns.add(root);
+		int from = 0;
+		while (true) {
+			int to = node.indexOf('.', from);
+			if (to < 0) {
+				to = node.length();
+			}
+			for (Pattern pattern : patterns) {
+				best = Math.max(best, pattern.tail);
+			}
+			Set<Pattern> next = step(patterns, node.substring(from, to));
+			if (next.isEmpty()) {
+				return toResult(best);
+			}
+			if (to == node.length()) {
+				for (Pattern pattern : next) {
+					best = Math.max(best, pattern.exact);
+				}
+				return toResult(best);
+			}
+			patterns = next;
+			from = to + 1;
+		}
+	}
+
+	/**
+	 * Encodes a decision so that a greater value is the one that wins.
+	 */
+	private static int decision(int score, boolean state) {
+		return (score << 1) | (state ? 0 : 1);
+	}
+
+	private static Result toResult(int decision) {
+		if (decision == UNDEFINED) {
+			return Result.DEFAULT;
+		}
+		return (decision & 1) == 0 ? Result.ALLOW : Result.DENY;
+	}
+
+	/**
+	 * Builds the deterministic automaton by subset construction over the pattern trie.
+	 * @return start state or null if the automaton needs more than maxStates states
+	 */
+	private static State compile(Pattern root, int maxStates) {
+		Map<Set<Pattern>, State> states = new HashMap<Set<Pattern>, State>();
+		LinkedList<Set<Pattern>> queue = new LinkedList<Set<Pattern>>();
+		Set<Pattern> first = identitySet();
+		first.add(root);
+		State start = new State(first);
+		states.put(first, start);
+		queue.add(first);
+		while (!queue.isEmpty()) {
+			Set<Pattern> patterns = queue.poll();
+			State state = states.get(patterns);
+			// every literal any of the patterns distinguishes, everything else behaves the same
+			Set<String> literals = new HashSet<String>();
+			for (Pattern pattern : patterns) {
+				literals.addAll(pattern.literals.keySet());
+				for (Pattern negated : pattern.negations.keySet()) {
+					literals.addAll(pattern.negations.get(negated));
+				}
+			}
+			Map<String, State> transitions = new LinkedHashMap<String, State>();
+			for (String literal : literals) {
+				transitions.put(literal, target(states, queue, step(patterns, literal)));
+			}
+			state.link(transitions, target(states, queue, step(patterns, null)));
+			if (states.size() > maxStates) {
+				return null;
+			}
+		}
+		return start;
+	}
+
+	/**
+	 * Gets the patterns reached from the specified patterns by a segment.
+	 * @param literal segment or null for a segment none of the patterns names
+	 */
+	private static Set<Pattern> step(Set<Pattern> patterns, String literal) {
+		Set<Pattern> next = identitySet();
+		for (Pattern pattern : patterns) {
+			if (literal != null) {
+				Pattern exact = pattern.literals.get(literal);
+				if (exact != null) {
+					next.add(exact);
+				}
+			}
+			if (pattern.any != null) {
+				next.add(pattern.any);
+			}
+			for (Map.Entry<Pattern, Set<String>> negation : pattern.negations.entrySet()) {
+				if (literal == null || !negation.getValue().contains(literal)) {
+					next.add(negation.getKey());
+				}
+			}
+		}
+		return next;
+	}
+
+	private static State target(Map<Set<Pattern>, State> states, LinkedList<Set<Pattern>> queue, Set<Pattern> patterns) {
+		if (patterns.isEmpty()) {
+			return null;
+		}
+		State state = states.get(patterns);
+		if (state == null) {
+			state = new State(patterns);
+			states.put(patterns, state);
+			queue.add(patterns);
+		}
+		return state;
+	}
+
+	private static Set<Pattern> identitySet() {
+		return Collections.newSetFromMap(new IdentityHashMap<Pattern, Boolean>());
+	}
+
+	/**
+	 * Node of the trie of patterns, one per distinct pattern prefix.
+	 */
+	private static final class Pattern {
+		private final Map<String, Pattern> literals = new HashMap<String, Pattern>();
+		private final Map<Pattern, Set<String>> negations = new HashMap<Pattern, Set<String>>();
+		private Pattern any;
+		private int exact = UNDEFINED;
+		private int tail = UNDEFINED;
+
+		private void add(String[] segments, int index, int score, boolean state) {
+			String segment = segments[index];
+			boolean last = index == segments.length - 1;
+			if (segment.equals("*") && last) {
+				tail = Math.max(tail, decision(score, state));
+				return;
+			}
+			if (segment.equals("*")) {
+				if (any == null) {
+					any = new Pattern();
+				}
+				any.add(segments, index + 1, score, state, last);
+			} else if (segment.length() > 1 && segment.charAt(0) == '!') {
+				Set<String> excluded = new HashSet<String>(Arrays.asList(alternatives(segment.substring(1))));
+				Pattern next = null;
+				for (Map.Entry<Pattern, Set<String>> negation : negations.entrySet()) {
+					if (negation.getValue().equals(excluded)) {
+						next = negation.getKey();
+					}
+				}
+				if (next == null) {
+					next = new Pattern();
+					negations.put(next, excluded);
+				}
+				next.add(segments, index + 1, score + 1, state, last);
+			} else {
+				for (String literal : alternatives(segment)) {
+					Pattern next = literals.get(literal);
+					if (next == null) {
+						next = new Pattern();
+						literals.put(literal, next);
+					}
+					next.add(segments, index + 1, score + 2, state, last);
+				}
+			}
+		}
+
+		private void add(String[] segments, int index, int score, boolean state, boolean end) {
+			if (end) {
+				exact = Math.max(exact, decision(score, state));
+			} else {
+				add(segments, index, score, state);
+			}
+		}
+
+		private static String[] alternatives(String segment) {
+			if (segment.length() > 1 && segment.charAt(0) == '{' && segment.charAt(segment.length() - 1) == '}') {
+				return segment.substring(1, segment.length() - 1).split(",", -1);
+			}
+			return new String[] {segment};
+		}
+	}
+
+	/**
+	 * State of the automaton: the set of patterns the segments read so far may still match.
+	 */
+	private static final class State {
+		private final int exact;
+		private final int tail;
+		// open addressing table of the literal transitions
+		private String[] keys;
+		private State[] targets;
+		private State other;
+
+		private State(Set<Pattern> patterns) {
+			int exact = UNDEFINED;
+			int tail = UNDEFINED;
+			for (Pattern pattern : patterns) {
+				exact = Math.max(exact, pattern.exact);
+				tail = Math.max(tail, pattern.tail);
+			}
+			this.exact = exact;
+			this.tail = tail;
+		}
+
+		private void link(Map<String, State> transitions, State other) {
+			this.other = other;
+			List<Map.Entry<String, State>> distinct = new ArrayList<Map.Entry<String, State>>();
+			for (Map.Entry<String, State> transition : transitions.entrySet()) {
+				// transitions equal to the default need no entry
+				if (transition.getValue() != other) {
+					distinct.add(transition);
+				}
+			}
+			int capacity = Integer.highestOneBit(Math.max(1, distinct.size() * 2 - 1)) << 1;
+			keys = new String[capacity];
+			targets = new State[capacity];
+			for (Map.Entry<String, State> transition : distinct) {
+				int i = transition.getKey().hashCode() & (capacity - 1);
+				while (keys[i] != null) {
+					i = (i + 1) & (capacity - 1);
+				}
+				keys[i] = transition.getKey();
+				targets[i] = transition.getValue();
+			}
+		}
+
+		/**
+		 * Follows the transition for the segment of the node between from and to without creating a string.
+		 * @param hash of the segment, as {@link String#hashCode()}
+		 */
+		private State next(String node, int from, int to, int hash) {
+			int mask = keys.length - 1;
+			int length = to - from;
+			for (int i = hash & mask; keys[i] != null; i = (i + 1) & mask) {
+				String key = keys[i];
+				if (key.length() == length && node.regionMatches(from, key, 0, length)) {
+					return targets[i];
+				}
+			}
+			return other;
+		}
+	}
+}
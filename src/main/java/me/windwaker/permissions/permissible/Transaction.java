@@ -0,0 +1,439 @@
+/*
+ * Copyright (c) 2012-2013 ${developer}, <http://windwaker.me>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package me.windwaker.permissions.permissible;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+
+import me.windwaker.permissions.io.GroupManager;
+import me.windwaker.permissions.io.UserManager;
+import me.windwaker.permissions.metrics.Metric;
+import me.windwaker.permissions.trace.Trace;
+import me.windwaker.permissions.trace.TraceCategory;
+
+import org.spout.api.data.DataValue;
+
+/**
+ * Collects changes to many groups and users and applies them at once.
+ * <p>
+ * Nothing is applied until {@link #commit()}, which validates every change and then, under one acquisition of the
+ * write lock, applies all of them, recomputes the inheritance of the changed groups once and publishes every
+ * changed subject. The changed subjects are then written in a single batch. If any change is invalid, e.g. because
+ * it would make two groups inherit each other, nothing is applied. {@link #apply()} does the same without writing,
+ * for changes that were read from the storage.
+ * <pre>
+ * Transaction transaction = new Transaction(groupManager, userManager);
+ * for (User user : guest.getUsers()) {
+ *     transaction.setGroup(user, member);
+ * }
+ * transaction.commit();
+ * </pre>
+ * A transaction is not thread-safe and can be committed once.
+ * @author Windwaker
+ */
+public class Transaction {
+	private final GroupManager groupManager;
+	private final UserManager userManager;
+	private final Map<Permissible, Map<String, Boolean>> permissions = new LinkedHashMap<Permissible, Map<String, Boolean>>();
+	private final Map<Permissible, Map<String, DataValue>> metadata = new LinkedHashMap<Permissible, Map<String, DataValue>>();
+	private final Map<Group, Map<Group, Boolean>> inheritance = new LinkedHashMap<Group, Map<Group, Boolean>>();
+	private final Map<User, Group> groups = new LinkedHashMap<User, Group>();
+	private int size;
+	private boolean committed;
+
+	/**
+	 * Constructs a new, empty transaction.
+	 * @param groupManager managing the groups changed
+	 * @param userManager managing the users changed
+	 */
+	public Transaction(GroupManager groupManager, UserManager userManager) {
+		this.groupManager = groupManager;
+		this.userManager = userManager;
+	}
+
+	/**
+	 * Sets a permission state of a group or user.
+	 * @param subject to change
+	 * @param node to set
+	 * @param state of node
+	 */
+	public void setPermission(Permissible subject, String node, boolean state) {
+		checkOpen();
+		Map<String, Boolean> nodes = permissions.get(subject);
+		if (nodes == null) {
+			nodes = new LinkedHashMap<String, Boolean>();
+			permissions.put(subject, nodes);
+		}
+		nodes.put(node, state);
+		size++;
+	}
+
+	/**
+	 * Removes a permission node of a group or user.
+	 * @param subject to change
+	 * @param node to remove
+	 */
+	public void unsetPermission(Permissible subject, String node) {
+		checkOpen();
+		Map<String, Boolean> nodes = permissions.get(subject);
+		if (nodes == null) {
+			nodes = new LinkedHashMap<String, Boolean>();
+			permissions.put(subject, nodes);
+		}
+		nodes.put(node, null);
+		size++;
+	}
+
+	/**
+	 * Replaces the permission nodes of a group or user, collecting only the nodes that differ from the current
+	 * ones.
+	 * @param subject to change
+	 * @param nodes of the subject
+	 */
+	public void replacePermissions(Permissible subject, Map<String, Boolean> nodes) {
+		Map<String, Boolean> current = subject.getPermissions();
+		for (Map.Entry<String, Boolean> node : nodes.entrySet()) {
+			if (!node.getValue().equals(current.get(node.getKey()))) {
+				setPermission(subject, node.getKey(), node.getValue());
+			}
+		}
+		for (String node : current.keySet()) {
+			if (!nodes.containsKey(node)) {
+				unsetPermission(subject, node);
+			}
+		}
+	}
+
+	/**
+	 * Sets a metadata entry of a group or user.
+	 * @param subject to change
+	 * @param key of entry
+	 * @param value of entry
+	 */
+	public void setMetadata(Permissible subject, String key, DataValue value) {
+		checkOpen();
+		Map<String, DataValue> entries = metadata.get(subject);
+		if (entries == null) {
+			entries = new LinkedHashMap<String, DataValue>();
+			metadata.put(subject, entries);
+		}
+		entries.put(key, value);
+		size++;
+	}
+
+	/**
+	 * Sets a metadata entry of a group or user.
+	 * @param subject to change
+	 * @param key of entry
+	 * @param value of entry
+	 */
+	public void setMetadata(Permissible subject, String key, Object value) {
+		setMetadata(subject, key, new DataValue(value));
+	}
+
+	/**
+	 * Removes a metadata entry of a group or user.
+	 * @param subject to change
+	 * @param key of entry
+	 */
+	public void unsetMetadata(Permissible subject, String key) {
+		checkOpen();
+		Map<String, DataValue> entries = metadata.get(subject);
+		if (entries == null) {
+			entries = new LinkedHashMap<String, DataValue>();
+			metadata.put(subject, entries);
+		}
+		entries.put(key, null);
+		size++;
+	}
+
+	/**
+	 * Replaces the metadata of a group or user, collecting only the entries that differ from the current ones.
+	 * @param subject to change
+	 * @param entries of the subject
+	 */
+	public void replaceMetadata(Permissible subject, Map<String, DataValue> entries) {
+		Map<String, DataValue> current = subject.getMetadataMap();
+		for (Map.Entry<String, DataValue> entry : entries.entrySet()) {
+			DataValue value = current.get(entry.getKey());
+			if (value == null || !equal(value.getValue(), entry.getValue().getValue())) {
+				setMetadata(subject, entry.getKey(), entry.getValue());
+			}
+		}
+		for (String key : current.keySet()) {
+			if (!entries.containsKey(key)) {
+				unsetMetadata(subject, key);
+			}
+		}
+	}
+
+	/**
+	 * Sets whether a group inherits another group.
+	 * @param group to change
+	 * @param inherited group
+	 * @param inherit whether to inherit
+	 */
+	public void setInheritedGroup(Group group, Group inherited, boolean inherit) {
+		checkOpen();
+		Map<Group, Boolean> parents = inheritance.get(group);
+		if (parents == null) {
+			parents = new LinkedHashMap<Group, Boolean>();
+			inheritance.put(group, parents);
+		}
+		parents.put(inherited, inherit);
+		size++;
+	}
+
+	/**
+	 * Stops a group from inheriting another group entirely.
+	 * @param group to change
+	 * @param inherited group to remove
+	 */
+	public void removeInheritedGroup(Group group, Group inherited) {
+		checkOpen();
+		Map<Group, Boolean> parents = inheritance.get(group);
+		if (parents == null) {
+			parents = new LinkedHashMap<Group, Boolean>();
+			inheritance.put(group, parents);
+		}
+		parents.put(inherited, null);
+		size++;
+	}
+
+	/**
+	 * Replaces the inherited groups of a group, collecting only the groups that differ from the current ones.
+	 * @param group to change
+	 * @param inherited groups of the group
+	 */
+	public void replaceInheritedGroups(Group group, Map<Group, Boolean> inherited) {
+		Map<Group, Boolean> current = group.getInheritedGroups();
+		for (Map.Entry<Group, Boolean> parent : inherited.entrySet()) {
+			if (!parent.getValue().equals(current.get(parent.getKey()))) {
+				setInheritedGroup(group, parent.getKey(), parent.getValue());
+			}
+		}
+		for (Group parent : current.keySet()) {
+			if (!inherited.containsKey(parent)) {
+				removeInheritedGroup(group, parent);
+			}
+		}
+	}
+
+	/**
+	 * Moves a user to a group.
+	 * @param user to move
+	 * @param group of the user
+	 */
+	public void setGroup(User user, Group group) {
+		checkOpen();
+		groups.put(user, group);
+		size++;
+	}
+
+	/**
+	 * Gets the number of changes collected.
+	 * @return number of changes
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Validates and applies all changes.
+	 * @throws IllegalStateException if a change is invalid, in which case nothing was applied, or the transaction
+	 *         was committed before
+	 */
+	public void commit() {
+		Set<Group> changedGroups = new LinkedHashSet<Group>();
+		Set<User> changedUsers = new LinkedHashSet<User>();
+		apply(changedGroups, changedUsers);
+		if (!changedGroups.isEmpty()) {
+			groupManager.saveGroups(changedGroups);
+		}
+		if (!changedUsers.isEmpty()) {
+			userManager.saveUsers(changedUsers);
+		}
+	}
+
+	/**
+	 * Validates and applies all changes without writing them, for changes that were read from the storage.
+	 * @throws IllegalStateException if a change is invalid, in which case nothing was applied, or the transaction
+	 *         was committed before
+	 */
+	public void apply() {
+		apply(new LinkedHashSet<Group>(), new LinkedHashSet<User>());
+	}
+
+	private void apply(Set<Group> changedGroups, Set<User> changedUsers) {
+		checkOpen();
+		committed = true;
+		long start = System.nanoTime();
+		ReentrantLock lock = Permissible.getWriteLock();
+		lock.lock();
+		try {
+			validate();
+			for (Map.Entry<Permissible, Map<String, Boolean>> entry : permissions.entrySet()) {
+				entry.getKey().putDirect(entry.getValue(), null);
+				changed(entry.getKey(), changedGroups, changedUsers);
+			}
+			for (Map.Entry<Permissible, Map<String, DataValue>> entry : metadata.entrySet()) {
+				entry.getKey().putDirect(null, entry.getValue());
+				changed(entry.getKey(), changedGroups, changedUsers);
+			}
+			for (Map.Entry<Group, Map<Group, Boolean>> entry : inheritance.entrySet()) {
+				entry.getKey().linkInheritedGroups(inherited(entry.getKey()));
+				changedGroups.add(entry.getKey());
+			}
+			for (Map.Entry<User, Group> entry : groups.entrySet()) {
+				entry.getKey().assignGroup(entry.getValue());
+				changedUsers.add(entry.getKey());
+			}
+			if (Trace.PERSIST) {
+				Trace.log(TraceCategory.PERSIST, Level.FINE, "Committing {0} changes to {1} groups and {2} users", size,
+						changedGroups.size(), changedUsers.size());
+			}
+
+			// every changed group and its descendants are recomputed and published once
+			groupManager.reloadInheritance(changedGroups);
+			for (User user : changedUsers) {
+				if (user.getGroup() != null) {
+					user.inherit(user.getGroup());
+				} else {
+					user.publish();
+				}
+			}
+		} finally {
+			lock.unlock();
+			Metric.TRANSACTION.record(start);
+		}
+	}
+
+	private void checkOpen() {
+		if (committed) {
+			throw new IllegalStateException("Transaction was already committed.");
+		}
+	}
+
+	private static void changed(Permissible subject, Set<Group> changedGroups, Set<User> changedUsers) {
+		if (subject instanceof Group) {
+			changedGroups.add((Group) subject);
+		} else if (subject instanceof User) {
+			changedUsers.add((User) subject);
+		}
+	}
+
+	/**
+	 * Checks that every group changed or referenced still exists and that no change makes two groups inherit
+	 * each other. Called with the write lock held, before anything is applied.
+	 */
+	private void validate() {
+		for (Permissible subject : permissions.keySet()) {
+			if (subject instanceof Group) {
+				checkExists((Group) subject);
+			}
+		}
+		for (Permissible subject : metadata.keySet()) {
+			if (subject instanceof Group) {
+				checkExists((Group) subject);
+			}
+		}
+		for (Map.Entry<Group, Map<Group, Boolean>> entry : inheritance.entrySet()) {
+			checkExists(entry.getKey());
+			for (Map.Entry<Group, Boolean> parent : entry.getValue().entrySet()) {
+				// a removed group can still be removed from the groups inheriting it
+				if (parent.getValue() != null) {
+					checkExists(parent.getKey());
+				}
+			}
+		}
+		for (Group group : groups.values()) {
+			checkExists(group);
+		}
+		// no circle inheritance here, checked against the graph as it would be after the transaction
+		for (Map.Entry<Group, Map<Group, Boolean>> entry : inheritance.entrySet()) {
+			Group group = entry.getKey();
+			for (Map.Entry<Group, Boolean> parent : entry.getValue().entrySet()) {
+				if (Boolean.TRUE.equals(parent.getValue())
+						&& (parent.getKey() == group || inherits(parent.getKey(), group))) {
+					throw new IllegalStateException("Group " + parent.getKey().getName() + " already inherits "
+							+ group.getName() + ". Two groups may not inherit each other.");
+				}
+			}
+		}
+	}
+
+	private void checkExists(Group group) {
+		if (groupManager.getGroup(group.getName()) != group) {
+			throw new IllegalStateException("Group " + group.getName() + " does not exist.");
+		}
+	}
+
+	/**
+	 * Gets the inherited groups of a group as they are after the transaction.
+	 */
+	private Map<Group, Boolean> inherited(Group group) {
+		Map<Group, Boolean> changes = inheritance.get(group);
+		if (changes == null) {
+			return group.getInheritedGroups();
+		}
+		Map<Group, Boolean> inherited = new LinkedHashMap<Group, Boolean>(group.getInheritedGroups());
+		for (Map.Entry<Group, Boolean> change : changes.entrySet()) {
+			if (change.getValue() != null) {
+				inherited.put(change.getKey(), change.getValue());
+			} else {
+				inherited.remove(change.getKey());
+			}
+		}
+		return inherited;
+	}
+
+	private static boolean equal(Object a, Object b) {
+		return a == null ? b == null : a.equals(b);
+	}
+
+	/**
+	 * Whether a group inherits another as the graph is after the transaction.
+	 */
+	private boolean inherits(Group group, Group ancestor) {
+		Set<Group> visited = new HashSet<Group>();
+		LinkedList<Group> queue = new LinkedList<Group>();
+		queue.add(group);
+		while (!queue.isEmpty()) {
+			for (Map.Entry<Group, Boolean> parent : inherited(queue.poll()).entrySet()) {
+				if (parent.getValue() && visited.add(parent.getKey())) {
+					if (parent.getKey() == ancestor) {
+						return true;
+					}
+					queue.add(parent.getKey());
+				}
+			}
+		}
+		return false;
+	}
+}
@@ -22,28 +22,35 @@
  */
 package me.windwaker.permissions.permissible;
 
-import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
 
 import me.windwaker.permissions.WindPerms;
 import me.windwaker.permissions.io.UserManager;
 
-import org.spout.api.data.DataValue;
-
 /**
  * Represents a user entity.
  * @author Windwaker
  */
 public class User extends Permissible {
 	private final UserManager userManager;
-	private Group group;
+	private volatile Group group;
 
 	/**
 	 * Constructs a new user with the specified name.
 	 * @param name
 	 */
 	public User(WindPerms plugin, String name) {
+		this(plugin.getUserManager(), name);
+	}
+
+	/**
+	 * Constructs a new user with the specified name, managed by the specified manager.
+	 * @param userManager managing the user
+	 * @param name
+	 */
+	public User(UserManager userManager, String name) {
 		super(name);
-		userManager = plugin.getUserManager();
+		this.userManager = userManager;
 	}
 
 	/**
@@ -51,16 +58,16 @@ public class User extends Permissible {
 	 * @param group
 	 */
 	public void setGroup(Group group) {
+		ReentrantLock lock = getWriteLock();
+		lock.lock();
+		try {
+			assignGroup(group);
 
-		// Update group references to user
-		if (this.group != null) {
-			this.group.removeUser(this);
+			// inherit the group's data
+			inherit(group);
+		} finally {
+			lock.unlock();
 		}
-		this.group = group;
-		group.addUser(this);
-
-		// inherit the group's data
-		inherit(group);
 
 		// Save
 		if (autoSave) {
@@ -68,17 +75,36 @@ public class User extends Permissible {
 		}
 	}
 
+	/**
+	 * Moves the user to a group without inheriting its data. Called with the write lock held.
+	 */
+	void assignGroup(Group group) {
+		// Update group references to user
+		if (this.group != null) {
+			this.group.removeUser(this);
+		}
+		this.group = group;
+		group.addUser(this);
+	}
+
+	/**
+	 * Replaces the inherited nodes and data of the user with the effective nodes and data of the group. Nothing
+	 * is copied: the user references the group's immutable effective nodes and metadata and only layers its own
+	 * on top, so memory depends on the number of groups rather than on the number of users.
+	 * @param group to inherit
+	 */
 	public void inherit(Group group) {
-		// inherit nodes
-		for (Map.Entry<String, Boolean> node : group.getInheritedPermissions().entrySet())
-			inheritedNodes.put(node.getKey(), node.getValue());
-		for (Map.Entry<String, Boolean> node : group.getPermissions().entrySet())
-			inheritedNodes.put(node.getKey(), node.getValue());
-		// inherit data
-		for (Map.Entry<String, DataValue> data : group.getInheritedMetadataMap().entrySet())
-			inheritedMetadata.put(data.getKey(), data.getValue());
-		for (Map.Entry<String, DataValue> data : group.getMetadataMap().entrySet())
-			inheritedMetadata.put(data.getKey(), data.getValue());
+		ReentrantLock lock = getWriteLock();
+		lock.lock();
+		try {
+			EffectiveView view = group.getView();
+			inheritedNodes = view.getNodeSet();
+			inheritedMetadata = view.getMetadata();
+			inheritedStore = view.getStore();
+			publish();
+		} finally {
+			lock.unlock();
+		}
 	}
 
 	/**
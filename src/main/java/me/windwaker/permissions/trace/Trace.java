@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2012-2013 ${developer}, <http://windwaker.me>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package me.windwaker.permissions.trace;
+
+import java.text.MessageFormat;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Tracing of the permission hot paths that costs nothing while disabled.
+ * <p>
+ * Call sites guard their tracing with the constant of the category:
+ * <pre>
+ * if (Trace.RESOLVE) {
+ *     Trace.log(TraceCategory.RESOLVE, Level.FINE, "Resolved {0} for {1}: {2}", node, name, result);
+ * }
+ * </pre>
+ * The constants are static final, so the JIT compiler removes guarded code of disabled categories entirely,
+ * including the allocation of the arguments. Within an enabled category, messages are filtered by level and
+ * events are sampled; the pattern is only formatted, or the {@link TraceMessage} only built, if the message is
+ * traced. Call sites should trace one message per event, as each call counts as one sampled event.
+ * @author Windwaker
+ * @see TraceCategory
+ */
+public final class Trace {
+	/**
+	 * Whether {@link TraceCategory#LOOKUP} is traced.
+	 */
+	public static final boolean LOOKUP = TraceCategory.LOOKUP.isEnabled();
+	/**
+	 * Whether {@link TraceCategory#RESOLVE} is traced.
+	 */
+	public static final boolean RESOLVE = TraceCategory.RESOLVE.isEnabled();
+	/**
+	 * Whether {@link TraceCategory#PERSIST} is traced.
+	 */
+	public static final boolean PERSIST = TraceCategory.PERSIST.isEnabled();
+	/**
+	 * Whether {@link TraceCategory#INHERITANCE} is traced.
+	 */
+	public static final boolean INHERITANCE = TraceCategory.INHERITANCE.isEnabled();
+	private static final Logger logger = Logger.getLogger("WindPerms");
+
+	private Trace() {
+	}
+
+	/**
+	 * Traces a message, formatted like {@link MessageFormat}.
+	 * @param category of message
+	 * @param level of detail
+	 * @param pattern of message
+	 * @param arguments of pattern
+	 */
+	public static void log(TraceCategory category, Level level, String pattern, Object... arguments) {
+		if (category.isLoggable(level) && category.sample()) {
+			write(category, MessageFormat.format(pattern, arguments));
+		}
+	}
+
+	/**
+	 * Traces a message that is only built if traced.
+	 * @param category of message
+	 * @param level of detail
+	 * @param message to trace
+	 */
+	public static void log(TraceCategory category, Level level, TraceMessage message) {
+		if (category.isLoggable(level) && category.sample()) {
+			write(category, message.build());
+		}
+	}
+
+	private static void write(TraceCategory category, String message) {
+		logger.info("[trace:" + category.getKey() + "] " + message);
+	}
+}
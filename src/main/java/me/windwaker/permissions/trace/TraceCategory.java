@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2012-2013 ${developer}, <http://windwaker.me>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package me.windwaker.permissions.trace;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Categories of trace output, each with its own level and sampling rate.
+ * <p>
+ * Both are read once from system properties when the class is initialized:
+ * <ul>
+ * <li>'windperms.trace.&lt;category&gt;' is the most detailed level traced: 'fine', 'finer', 'finest' or 'off'
+ * (default). 'windperms.trace' sets the level of all categories.</li>
+ * <li>'windperms.trace.&lt;category&gt;.sample' is the fraction of events traced, e.g. '0.01' traces every
+ * hundredth event (default 1).</li>
+ * </ul>
+ * @author Windwaker
+ */
+public enum TraceCategory {
+	/**
+	 * Lookups of subjects and metadata by the event handlers.
+	 */
+	LOOKUP,
+	/**
+	 * Resolution of permission nodes.
+	 */
+	RESOLVE,
+	/**
+	 * Loading and saving of groups and users.
+	 */
+	PERSIST,
+	/**
+	 * Propagation of changes through the inheritance graph.
+	 */
+	INHERITANCE;
+	private final String key = name().toLowerCase(Locale.ENGLISH);
+	private final Level level;
+	private final long sampleEvery;
+	private final AtomicLong events = new AtomicLong();
+
+	private TraceCategory() {
+		level = parseLevel(System.getProperty("windperms.trace." + key, System.getProperty("windperms.trace", "off")));
+		double rate;
+		try {
+			rate = Double.parseDouble(System.getProperty("windperms.trace." + key + ".sample", "1"));
+		} catch (NumberFormatException e) {
+			rate = 1;
+		}
+		sampleEvery = rate <= 0 ? Long.MAX_VALUE : Math.max(1, Math.round(1 / rate));
+	}
+
+	private static Level parseLevel(String value) {
+		try {
+			return Level.parse(value.toUpperCase(Locale.ENGLISH));
+		} catch (IllegalArgumentException e) {
+			return Level.OFF;
+		}
+	}
+
+	/**
+	 * Whether any level of this category is traced.
+	 * @return true if enabled
+	 */
+	public boolean isEnabled() {
+		return level != Level.OFF;
+	}
+
+	/**
+	 * Whether messages of the specified level are traced.
+	 * @param level of message
+	 * @return true if traced
+	 */
+	public boolean isLoggable(Level level) {
+		return this.level != Level.OFF && level.intValue() >= this.level.intValue();
+	}
+
+	/**
+	 * Counts an event and decides whether it is sampled.
+	 * @return true if the event is traced
+	 */
+	boolean sample() {
+		return sampleEvery == 1 || events.incrementAndGet() % sampleEvery == 0;
+	}
+
+	/**
+	 * Gets the name of the category as used in system properties and output.
+	 * @return key
+	 */
+	public String getKey() {
+		return key;
+	}
+}
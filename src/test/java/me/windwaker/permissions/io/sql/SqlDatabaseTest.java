@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2012-2013 ${developer}, <http://windwaker.me>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package me.windwaker.permissions.io.sql;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.spout.api.data.DataValue;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests the storage of metadata in an embedded H2 database.
+ * @author Windwaker
+ */
+public class SqlDatabaseTest {
+	private static final String SELECT_METADATA = "SELECT group_key, meta_key, meta_value, meta_type FROM permissions_group_metadata";
+	private static int databases;
+	private SqlDatabase database;
+
+	@Before
+	public void open() {
+		database = new SqlDatabase("jdbc:h2:mem:windperms" + databases++ + ";DB_CLOSE_DELAY=-1", "sa", "", 1);
+		database.retain();
+	}
+
+	@After
+	public void close() {
+		database.release();
+	}
+
+	@Test
+	public void metadataKeepsItsType() throws SQLException {
+		database.createSchema();
+		Map<String, Object> metadata = new LinkedHashMap<String, Object>();
+		metadata.put("prefix", "[Admin]");
+		metadata.put("numeric-string", "5");
+		metadata.put("build-limit", 5);
+		metadata.put("balance", 12345678901L);
+		metadata.put("rate", 1.5);
+		metadata.put("can-fly", true);
+		List<Object> homes = Arrays.<Object>asList("spawn", 3);
+		metadata.put("homes", homes);
+		Map<String, Object> colors = new LinkedHashMap<String, Object>();
+		colors.put("chat", "gold");
+		colors.put("priority", 2);
+		metadata.put("colors", colors);
+
+		Connection connection = database.getConnection();
+		try {
+			PreparedStatement insert = connection.prepareStatement("INSERT INTO permissions_group_metadata (group_key, meta_key, meta_value, meta_type) VALUES (?, ?, ?, ?)");
+			try {
+				SqlDatabase.addMetadata(insert, "admin", metadata);
+				insert.executeBatch();
+			} finally {
+				insert.close();
+			}
+			Map<String, DataValue> read = SqlDatabase.readMetadata(connection, SELECT_METADATA, null).get("admin");
+			assertEquals(metadata.size(), read.size());
+			for (Map.Entry<String, Object> entry : metadata.entrySet()) {
+				assertEquals(entry.getKey(), entry.getValue(), read.get(entry.getKey()).getValue());
+			}
+		} finally {
+			database.release(connection);
+		}
+	}
+
+	@Test
+	public void untypedValuesAreReadAsStrings() throws SQLException {
+		Connection connection = database.getConnection();
+		try {
+			// the table as created before metadata values were typed
+			Statement statement = connection.createStatement();
+			try {
+				statement.executeUpdate("CREATE TABLE permissions_group_metadata (group_key VARCHAR(64) NOT NULL, meta_key VARCHAR(255) NOT NULL, meta_value VARCHAR(1024), PRIMARY KEY (group_key, meta_key))");
+				statement.executeUpdate("INSERT INTO permissions_group_metadata (group_key, meta_key, meta_value) VALUES ('admin', 'build-limit', '5')");
+			} finally {
+				statement.close();
+			}
+		} finally {
+			database.release(connection);
+		}
+		database.createSchema();
+
+		connection = database.getConnection();
+		try {
+			Map<String, DataValue> read = SqlDatabase.readMetadata(connection, SELECT_METADATA, null).get("admin");
+			assertEquals("5", read.get("build-limit").getValue());
+		} finally {
+			database.release(connection);
+		}
+	}
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2012-2013 ${developer}, <http://windwaker.me>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package me.windwaker.permissions.io.yaml;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.spout.api.util.config.yaml.YamlConfiguration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Tests replaying the journal after a crash left a corrupt or incomplete record behind.
+ * @author Windwaker
+ */
+public class YamlJournalTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	private File file;
+	private File journalFile;
+	// size of the journal after each of the records written by setUp
+	private long[] sizes;
+
+	@Before
+	public void setUp() throws IOException {
+		file = new File(folder.getRoot(), "users.yml");
+		journalFile = YamlJournal.fileFor(file);
+		YamlJournal journal = new YamlJournal(journalFile, newData(), Long.MAX_VALUE, Long.MAX_VALUE);
+		journal.replay();
+		sizes = new long[3];
+		journal.set("users/alice/group", "admins");
+		sizes[0] = journal.getSize();
+		journal.set("users/bob/group", "builders");
+		sizes[1] = journal.getSize();
+		journal.set("users/bob/homes", Arrays.<Object>asList("spawn", 3));
+		sizes[2] = journal.getSize();
+		journal.close();
+		assertEquals(sizes[2], journalFile.length());
+	}
+
+	private YamlConfiguration newData() {
+		YamlConfiguration data = new YamlConfiguration(file);
+		data.setPathSeparator("/");
+		return data;
+	}
+
+	@Test
+	public void replaysAllRecords() throws IOException {
+		YamlConfiguration data = newData();
+		YamlJournal journal = new YamlJournal(journalFile, data, Long.MAX_VALUE, Long.MAX_VALUE);
+		assertEquals(3, journal.replay());
+		journal.close();
+		assertEquals("admins", data.getNode("users/alice/group").getValue());
+		assertEquals("builders", data.getNode("users/bob/group").getValue());
+		assertEquals(Arrays.<Object>asList("spawn", 3), data.getNode("users/bob/homes").getValue());
+	}
+
+	@Test
+	public void replayStopsAtCorruptChecksum() throws IOException {
+		// flip the last byte of the second record, its checksum no longer matches
+		RandomAccessFile raf = new RandomAccessFile(journalFile, "rw");
+		try {
+			raf.seek(sizes[1] - 1);
+			int last = raf.read();
+			raf.seek(sizes[1] - 1);
+			raf.write(last ^ 0xFF);
+		} finally {
+			raf.close();
+		}
+
+		YamlConfiguration data = newData();
+		YamlJournal journal = new YamlJournal(journalFile, data, Long.MAX_VALUE, Long.MAX_VALUE);
+		assertEquals(1, journal.replay());
+		assertEquals("admins", data.getNode("users/alice/group").getValue());
+		assertNull(data.getNode("users/bob/group").getValue());
+		assertNull(data.getNode("users/bob/homes").getValue());
+		// the corrupt record and everything after it is dropped, new records follow the last valid one
+		assertEquals(sizes[0], journalFile.length());
+		journal.set("users/carol/group", "guests");
+		journal.close();
+
+		data = newData();
+		journal = new YamlJournal(journalFile, data, Long.MAX_VALUE, Long.MAX_VALUE);
+		assertEquals(2, journal.replay());
+		journal.close();
+		assertEquals("guests", data.getNode("users/carol/group").getValue());
+	}
+
+	@Test
+	public void replayStopsAtIncompleteRecord() throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(journalFile, "rw");
+		try {
+			raf.setLength(sizes[2] - 3);
+		} finally {
+			raf.close();
+		}
+
+		YamlConfiguration data = newData();
+		YamlJournal journal = new YamlJournal(journalFile, data, Long.MAX_VALUE, Long.MAX_VALUE);
+		assertEquals(2, journal.replay());
+		journal.close();
+		assertEquals("builders", data.getNode("users/bob/group").getValue());
+		assertNull(data.getNode("users/bob/homes").getValue());
+		assertEquals(sizes[1], journalFile.length());
+	}
+}
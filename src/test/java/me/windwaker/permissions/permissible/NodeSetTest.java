@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2012-2013 ${developer}, <http://windwaker.me>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package me.windwaker.permissions.permissible;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+import org.spout.api.event.Result;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the switch between sorted arrays and bitsets and that both answer the same.
+ * @author Windwaker
+ */
+public class NodeSetTest {
+	private static Map<String, Boolean> nodes(String prefix, int count) {
+		Map<String, Boolean> nodes = new HashMap<String, Boolean>();
+		for (int i = 0; i < count; i++) {
+			nodes.put(prefix + ".n" + i, i % 3 != 0);
+		}
+		return nodes;
+	}
+
+	private static void assertResolves(NodeSet set, Map<String, Boolean> nodes) {
+		for (Map.Entry<String, Boolean> entry : nodes.entrySet()) {
+			assertEquals(entry.getKey(), entry.getValue() ? Result.ALLOW : Result.DENY, set.resolveExact(entry.getKey()));
+		}
+		assertEquals(nodes, set.toMap());
+	}
+
+	@Test
+	public void sparseUpToLimit() {
+		Map<String, Boolean> nodes = nodes("sparse", 64);
+		NodeSet set = NodeSet.of(nodes);
+		assertTrue(set.isSparse());
+		assertResolves(set, nodes);
+		assertNull(set.resolveExact("sparse.n64"));
+	}
+
+	@Test
+	public void denseBeyondLimit() {
+		Map<String, Boolean> nodes = nodes("dense", 65);
+		NodeSet set = NodeSet.of(nodes);
+		assertFalse(set.isSparse());
+		assertResolves(set, nodes);
+		assertNull(set.resolveExact("dense.n65"));
+	}
+
+	@Test
+	public void expandedNodesCountTowardsLimit() {
+		Map<String, Boolean> nodes = nodes("expanded", 63);
+		nodes.put("expanded.{x,y}", true);
+		NodeSet set = NodeSet.of(nodes);
+		assertFalse(set.isSparse());
+		assertEquals(Result.ALLOW, set.resolveExact("expanded.x"));
+		assertEquals(Result.ALLOW, set.resolveExact("expanded.y"));
+	}
+
+	@Test
+	public void patternsDoNotCountTowardsLimit() {
+		Map<String, Boolean> nodes = nodes("patterns", 64);
+		nodes.put("patterns.*", false);
+		NodeSet set = NodeSet.of(nodes);
+		assertTrue(set.isSparse());
+		assertEquals(1, set.getPatterns().size());
+	}
+
+	@Test
+	public void overrideAcrossRepresentations() {
+		Map<String, Boolean> lower = nodes("override", 100);
+		Map<String, Boolean> higher = new HashMap<String, Boolean>();
+		higher.put("override.n0", true);
+		higher.put("override.n1", false);
+		higher.put("override.extra", true);
+		NodeSet dense = NodeSet.of(lower);
+		NodeSet sparse = NodeSet.of(higher);
+		assertFalse(dense.isSparse());
+		assertTrue(sparse.isSparse());
+
+		Map<String, Boolean> expected = new HashMap<String, Boolean>(lower);
+		expected.putAll(higher);
+		assertResolves(dense.overriddenBy(sparse), expected);
+
+		expected = new HashMap<String, Boolean>(higher);
+		expected.putAll(lower);
+		assertResolves(sparse.overriddenBy(dense), expected);
+	}
+}
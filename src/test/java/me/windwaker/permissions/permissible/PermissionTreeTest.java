@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2012-2013 ${developer}, <http://windwaker.me>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package me.windwaker.permissions.permissible;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+import org.spout.api.event.Result;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Tests the precedence of patterns and that the trie walk answers like the automaton.
+ * @author Windwaker
+ */
+public class PermissionTreeTest {
+	private static final String[] LITERALS = {"a", "b", "c", "d", "e"};
+
+	private static PermissionTree tree(boolean wildcard, Object... nodes) {
+		Map<String, Boolean> map = new LinkedHashMap<String, Boolean>();
+		for (int i = 0; i < nodes.length; i += 2) {
+			map.put((String) nodes[i], (Boolean) nodes[i + 1]);
+		}
+		return new PermissionTree(map, wildcard);
+	}
+
+	@Test
+	public void literalSegmentBeatsWildcard() {
+		PermissionTree tree = tree(false, "region.*.build", false, "region.spawn.build", true);
+		assertEquals(Result.ALLOW, tree.resolve("region.spawn.build"));
+		assertEquals(Result.DENY, tree.resolve("region.nether.build"));
+		assertEquals(Result.DEFAULT, tree.resolve("region.spawn.break"));
+
+		tree = tree(false, "region.spawn.build", false, "region.*.build", true);
+		assertEquals(Result.DENY, tree.resolve("region.spawn.build"));
+		assertEquals(Result.ALLOW, tree.resolve("region.nether.build"));
+	}
+
+	@Test
+	public void literalSegmentBeatsNegation() {
+		PermissionTree tree = tree(false, "chat.!muted", true, "chat.global", false);
+		assertEquals(Result.DENY, tree.resolve("chat.global"));
+		assertEquals(Result.ALLOW, tree.resolve("chat.local"));
+		assertEquals(Result.DEFAULT, tree.resolve("chat.muted"));
+
+		tree = tree(false, "chat.!muted", false, "chat.global", true);
+		assertEquals(Result.ALLOW, tree.resolve("chat.global"));
+		assertEquals(Result.DENY, tree.resolve("chat.local"));
+	}
+
+	@Test
+	public void negationBeatsWildcard() {
+		PermissionTree tree = tree(false, "chat.*", false, "chat.!muted", true);
+		assertEquals(Result.ALLOW, tree.resolve("chat.local"));
+		assertEquals(Result.DENY, tree.resolve("chat.muted"));
+	}
+
+	@Test
+	public void denialWinsTie() {
+		PermissionTree tree = tree(false, "build.*.wood", true, "build.stone.*", false);
+		assertEquals(Result.DENY, tree.resolve("build.stone.wood"));
+		assertEquals(Result.ALLOW, tree.resolve("build.dirt.wood"));
+
+		tree = tree(false, "build.*.wood", false, "build.stone.*", true);
+		assertEquals(Result.DENY, tree.resolve("build.stone.wood"));
+		assertEquals(Result.ALLOW, tree.resolve("build.stone.glass"));
+	}
+
+	@Test
+	public void rootWildcardIsLeastSpecific() {
+		assertEquals(Result.DEFAULT, tree(false, "*", true).resolve("any.node"));
+		PermissionTree tree = tree(true, "*", true, "kit.*", false);
+		assertEquals(Result.ALLOW, tree.resolve("any.node"));
+		assertEquals(Result.DENY, tree.resolve("kit.diamond"));
+	}
+
+	@Test
+	public void trieWalkAnswersLikeAutomaton() {
+		Random random = new Random(7);
+		for (int round = 0; round < 50; round++) {
+			Map<String, Boolean> nodes = new HashMap<String, Boolean>();
+			int count = 5 + random.nextInt(40);
+			for (int i = 0; i < count; i++) {
+				nodes.put(randomPattern(random), random.nextBoolean());
+			}
+			PermissionTree automaton = new PermissionTree(nodes, true);
+			PermissionTree walk = new PermissionTree(nodes, true, 0);
+			assertFalse(walk.isAutomaton());
+			for (int query = 0; query < 500; query++) {
+				String node = randomNode(random);
+				assertEquals(nodes + " " + node, automaton.resolve(node), walk.resolve(node));
+				assertEquals(nodes + " " + node, automaton.resolve(NodeHandle.of(node)), walk.resolve(NodeHandle.of(node)));
+			}
+		}
+	}
+
+	@Test
+	public void automatonBeyondLimitFallsBack() {
+		// pattern i matches 'a' as segment i, any segment before and any segment but 'b' after it; a query can be
+		// in any subset of the patterns after each segment, so the automaton grows beyond the limit
+		Map<String, Boolean> nodes = new HashMap<String, Boolean>();
+		int length = 16;
+		for (int i = 0; i < length; i++) {
+			StringBuilder node = new StringBuilder();
+			for (int j = 0; j < length; j++) {
+				if (j > 0) {
+					node.append('.');
+				}
+				node.append(j == i ? "a" : j < i ? "*" : "!b");
+			}
+			nodes.put(node.toString(), i % 2 == 0);
+		}
+		PermissionTree tree = new PermissionTree(nodes, false);
+		assertFalse(tree.isAutomaton());
+		assertEquals(Result.ALLOW, tree.resolve("a.c.c.c.c.c.c.c.c.c.c.c.c.c.c.c"));
+		assertEquals(Result.DENY, tree.resolve("c.c.c.a.c.c.c.c.c.c.c.c.c.c.c.c"));
+		assertEquals(Result.DEFAULT, tree.resolve("a.b.c.c.c.c.c.c.c.c.c.c.c.c.c.c"));
+		assertEquals(Result.DEFAULT, tree.resolve("a.b"));
+	}
+
+	private static String randomPattern(Random random) {
+		StringBuilder node = new StringBuilder();
+		int length = 1 + random.nextInt(5);
+		for (int i = 0; i < length; i++) {
+			if (i > 0) {
+				node.append('.');
+			}
+			int kind = random.nextInt(6);
+			if (kind == 0) {
+				node.append('*');
+			} else if (kind == 1) {
+				node.append('!').append(LITERALS[random.nextInt(LITERALS.length)]);
+			} else if (kind == 2) {
+				node.append("{a,b}");
+			} else {
+				node.append(LITERALS[random.nextInt(LITERALS.length)]);
+			}
+		}
+		return node.toString();
+	}
+
+	private static String randomNode(Random random) {
+		StringBuilder node = new StringBuilder();
+		int length = 1 + random.nextInt(6);
+		for (int i = 0; i < length; i++) {
+			if (i > 0) {
+				node.append('.');
+			}
+			node.append(random.nextInt(8) == 0 ? "z" : LITERALS[random.nextInt(LITERALS.length)]);
+		}
+		return node.toString();
+	}
+}